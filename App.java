@@ -5,6 +5,7 @@ import javafx.application.Platform;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.geometry.VPos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -18,24 +19,32 @@ import javafx.scene.shape.Circle;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.scene.text.Text;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import javafx.animation.*;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
-import java.util.Base64;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 
 public class App extends Application {
+    private static final String QUEUED_TICK = "\u25F7"; // A clock face next to a message until it is sent
+    private static final String FAILED_TICK = "\u2717"; // A cross next to a message or file that could not be sent
+
     private ConnectionHandler connectionHandler;
     private Chatbot chatbot;
     private boolean isServer = false;
@@ -48,6 +57,7 @@ public class App extends Application {
     private TextField messageField;
     private TextField hostField;
     private TextField portField;
+    private ComboBox<PeerDiscovery.Endpoint> peerPicker;
     private Button connectButton;
     private Button serverButton;
     private Button sendButton;
@@ -65,6 +75,17 @@ public class App extends Application {
     private ScrollPane scrollPane;
     private StringBuilder chatHistory = new StringBuilder();
     private Timeline typingTimeline;
+    private PauseTransition resolvePause; // Looks the host up once typing in the host field pauses
+    // Ticks of sent messages not yet read, by sequence number; FX thread only
+    private final NavigableMap<Long, Text> unreadTicks = new TreeMap<>();
+    private long sentUpTo = 0; // Messages up to this sequence have left the outbox; FX thread only
+    // Ticks of messages kept in an outbox, by outbox message id, so a new client finds their bubbles; FX thread only
+    private final Map<Long, Text> queuedTicks = new HashMap<>();
+    // Servers announcing themselves on the local network, and ones connected to before
+    private PeerDiscovery discovery;
+    private final EndpointCache endpointCache = EndpointCache.forUser();
+    private List<PeerDiscovery.Endpoint> livePeers = new ArrayList<>(); // FX thread only
+    private String currentRoom; // Room typed messages go to, or null to chat with the peer directly
 
     private Circle statusIndicator;
     private Label statusText;
@@ -76,6 +97,7 @@ public class App extends Application {
     @Override
     public void start(Stage primaryStage) {
         primaryStage.setTitle("P2P Chat Application");
+        ConnectionMetrics.register();
         try {
             profileImage = new Image(getClass().getResourceAsStream("/images/default_profile.png"));
             primaryStage.getIcons().add(new Image(getClass().getResourceAsStream("/icons/chat_icon.png")));
@@ -109,6 +131,7 @@ public class App extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
         setupEventHandlers();
+        startDiscovery();
         addSystemMessage("Welcome to P2P Chat! Connect to a peer or start a server to begin chatting.");
         Platform.runLater(() -> {
             try {
@@ -122,6 +145,15 @@ public class App extends Application {
             if (connectionHandler != null) {
                 connectionHandler.closeConnection();
             }
+            if (discovery != null) {
+                discovery.close();
+            }
+        });
+        primaryStage.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            // Everything shown while away has now been seen
+            if (focused && showReadReceipts && connectionHandler != null) {
+                connectionHandler.markRead(true);
+            }
         });
     }
 
@@ -220,7 +252,7 @@ public class App extends Application {
             fileIcon.setFitHeight(20);
             fileIcon.setFitWidth(20);
             fileIconPane.getChildren().addAll(fileIconBg, fileIcon);
-            String fileSize = String.format("%.1f KB", file.length() / 1024.0);
+            String fileSize = file.isDirectory() ? "Folder" : String.format("%.1f KB", file.length() / 1024.0);
             Hyperlink fileLink = new Hyperlink(filename);
             fileLink.setTextFill(Color.WHITE);
             fileLink.setFont(Font.font("Verdana", FontWeight.BOLD, 13));
@@ -283,6 +315,7 @@ public class App extends Application {
         Platform.runLater(() -> {
             hostField.setDisable(connected);
             portField.setDisable(connected);
+            peerPicker.setDisable(connected);
             connectButton.setDisable(connected);
             serverButton.setDisable(connected);
             disconnectButton.setDisable(!connected);
@@ -555,6 +588,11 @@ public class App extends Application {
         hostField.setPromptText("Host");
         hostField.setPrefWidth(200);
         styleTextField(hostField);
+        // Resolve the host while the user is still on the form, so Connect does not wait for DNS
+        resolvePause = new PauseTransition(Duration.millis(300));
+        resolvePause.setOnFinished(event -> HostResolver.prefetch(hostField.getText()));
+        hostField.textProperty().addListener((observable, oldValue, newValue) -> resolvePause.playFromStart());
+        HostResolver.prefetch(hostField.getText());
         Label portLabel = new Label("Port:");
         portLabel.setFont(Font.font("Segoe UI", FontWeight.MEDIUM, 13));
         portLabel.setTextFill(isDarkMode ? Color.web("#D1D5DB") : Color.web("#4B5563"));
@@ -562,6 +600,19 @@ public class App extends Application {
         portField.setPromptText("Port");
         portField.setPrefWidth(80);
         styleTextField(portField);
+        peerPicker = new ComboBox<>();
+        peerPicker.setPromptText("Nearby & recent");
+        peerPicker.setPrefWidth(180);
+        peerPicker.setCellFactory(list -> new EndpointCell());
+        peerPicker.setButtonCell(new EndpointCell());
+        peerPicker.setOnAction(event -> {
+            PeerDiscovery.Endpoint endpoint = peerPicker.getValue();
+            if (endpoint != null) {
+                hostField.setText(endpoint.getHost());
+                portField.setText(Integer.toString(endpoint.getPort()));
+            }
+        });
+        updatePeerPicker();
         connectButton = new Button("Connect");
         connectButton.getStyleClass().addAll("button", "primary-button");
         styleButton(connectButton, Color.web("#3B82F6"), Color.WHITE);
@@ -573,12 +624,69 @@ public class App extends Application {
         disconnectButton.getStyleClass().addAll("button", "secondary-button");
         disconnectButton.setDisable(true);
         connectionArea.getChildren().addAll(
+                peerPicker,
                 hostLabel, hostField,
                 portLabel, portField,
                 connectButton, serverButton, disconnectButton);
         return connectionArea;
     }
 
+    // Listens for servers on the local network; the pick list still offers recent ones without it
+    private void startDiscovery() {
+        if (!PeerDiscovery.isEnabled()) {
+            return;
+        }
+        try {
+            discovery = PeerDiscovery.browse(peers -> Platform.runLater(() -> {
+                livePeers = peers;
+                updatePeerPicker();
+            }));
+        } catch (IOException e) {
+            System.out.println("Could not start peer discovery: " + e.getMessage());
+        }
+    }
+
+    // Lists servers found on the network first, then recent ones that are not among them
+    private void updatePeerPicker() {
+        List<PeerDiscovery.Endpoint> endpoints = new ArrayList<>(livePeers);
+        for (PeerDiscovery.Endpoint recent : endpointCache.getEndpoints()) {
+            if (!endpoints.contains(recent)) {
+                endpoints.add(recent);
+            }
+        }
+        PeerDiscovery.Endpoint selected = peerPicker.getValue();
+        peerPicker.getItems().setAll(endpoints);
+        if (selected != null && endpoints.contains(selected)) {
+            peerPicker.setValue(selected);
+        }
+    }
+
+    // Remembers a server once connected, under the name it announced if it did
+    private void rememberEndpoint(String host, int port) {
+        Platform.runLater(() -> {
+            PeerDiscovery.Endpoint endpoint = new PeerDiscovery.Endpoint(null, host, port);
+            for (PeerDiscovery.Endpoint known : peerPicker.getItems()) {
+                if (known.equals(endpoint)) {
+                    endpoint = known;
+                }
+            }
+            endpointCache.remember(endpoint);
+            updatePeerPicker();
+        });
+    }
+
+    private class EndpointCell extends ListCell<PeerDiscovery.Endpoint> {
+        @Override
+        protected void updateItem(PeerDiscovery.Endpoint endpoint, boolean empty) {
+            super.updateItem(endpoint, empty);
+            if (empty || endpoint == null) {
+                setText(null);
+            } else {
+                setText(livePeers.contains(endpoint) ? endpoint.toString() : endpoint + " (recent)");
+            }
+        }
+    }
+
     private HBox createInputArea() {
         HBox inputArea = new HBox(10);
         inputArea.setPadding(new Insets(12, 15, 12, 15));
@@ -607,7 +715,7 @@ public class App extends Application {
         sendButton.getStyleClass().addAll("button", "primary-button");
         styleButton(sendButton, Color.web("#3B82F6"), Color.WHITE);
         fileButton = createCircularButton(createIcon("/icons/fileshare.png"), Color.web("#E8ECEF"));
-        fileButton.setTooltip(new Tooltip("Send File"));
+        fileButton.setTooltip(new Tooltip("Send Files or a Folder"));
         fileButton.getStyleClass().addAll("button", "accent-button");
         emojiButton = createCircularButton(createIcon("/icons/emojishare.png"), Color.web("#E8ECEF"));
         emojiButton.setTooltip(new Tooltip("Insert Emoji"));
@@ -758,6 +866,7 @@ public class App extends Application {
                 connectionHandler.closeConnection();
                 connectionHandler = null;
             }
+            currentRoom = null;
             updateConnectionStatus("Disconnected");
         });
 
@@ -765,12 +874,16 @@ public class App extends Application {
             String message = messageField.getText().trim();
             if (!message.isEmpty()) {
                 messageField.clear();
-                addSentMessage(message);
+                if (sendToRoom(message)) {
+                    return;
+                }
+                Text tick = newTick();
+                addSentMessage(message, tick);
                 System.out.println("DEBUG: About to process message with chatbot: " + message);
                 boolean processedByBot = chatbot.processMessage(message);
                 System.out.println("DEBUG: Chatbot processed: " + processedByBot);
-                if (!processedByBot && connectionHandler != null && connectionHandler.isConnected()) {
-                    connectionHandler.sendMessage(message);
+                if (!processedByBot) {
+                    sendOrQueue(message, tick);
                 }
             }
         });
@@ -798,17 +911,25 @@ public class App extends Application {
                 showAlert("Not Connected", "You must be connected to send a file.");
                 return;
             }
-            FileChooser fileChooser = new FileChooser();
-            fileChooser.setTitle("Select File to Send");
-            File selectedFile = fileChooser.showOpenDialog(null);
-            if (selectedFile != null) {
-                try {
-                    connectionHandler.sendFile(selectedFile);
-                    addSentMessage("File sent: " + selectedFile.getName());
-                } catch (Exception e) {
-                    showAlert("File Error", "Could not send file: " + e.getMessage());
+            MenuItem filesItem = new MenuItem("Files...");
+            filesItem.setOnAction(e -> {
+                FileChooser fileChooser = new FileChooser();
+                fileChooser.setTitle("Select Files to Send");
+                List<File> selectedFiles = fileChooser.showOpenMultipleDialog(null);
+                if (selectedFiles != null && !selectedFiles.isEmpty()) {
+                    sendFiles(selectedFiles);
                 }
-            }
+            });
+            MenuItem folderItem = new MenuItem("Folder...");
+            folderItem.setOnAction(e -> {
+                DirectoryChooser directoryChooser = new DirectoryChooser();
+                directoryChooser.setTitle("Select Folder to Send");
+                File selectedFolder = directoryChooser.showDialog(null);
+                if (selectedFolder != null) {
+                    sendFiles(Collections.singletonList(selectedFolder));
+                }
+            });
+            new ContextMenu(filesItem, folderItem).show(fileButton, Side.TOP, 0, 0);
         });
         
 
@@ -973,6 +1094,21 @@ public class App extends Application {
             CheckBox readReceiptsCheckbox = new CheckBox("Show Read Receipts");
             readReceiptsCheckbox.setSelected(showReadReceipts);
             readReceiptsCheckbox.setTextFill(isDarkMode ? Color.WHITE : Color.BLACK);
+            Label uploadLimitLabel = new Label("Upload Limit for Files (KB/s, 0 = unlimited):");
+            uploadLimitLabel.setTextFill(isDarkMode ? Color.WHITE : Color.BLACK);
+            TextField globalLimitInput = new TextField(Long.toString(RateLimiter.getGlobalLimit() / 1024));
+            globalLimitInput.setPromptText("Total");
+            styleTextField(globalLimitInput);
+            TextField connectionLimitInput = new TextField(Long.toString(RateLimiter.getConnectionLimit() / 1024));
+            connectionLimitInput.setPromptText("Per connection");
+            styleTextField(connectionLimitInput);
+            Label globalLimitLabel = new Label("Total");
+            globalLimitLabel.setTextFill(isDarkMode ? Color.WHITE : Color.BLACK);
+            Label connectionLimitLabel = new Label("Per connection");
+            connectionLimitLabel.setTextFill(isDarkMode ? Color.WHITE : Color.BLACK);
+            HBox uploadLimitBox = new HBox(8, globalLimitLabel, globalLimitInput, connectionLimitLabel,
+                    connectionLimitInput);
+            uploadLimitBox.setAlignment(Pos.CENTER_LEFT);
             Button saveSettingsButton = new Button("Save Settings");
             styleButton(saveSettingsButton, Color.web("#4CAF50"), Color.WHITE);
             settingsBox.getChildren().addAll(
@@ -980,6 +1116,7 @@ public class App extends Application {
                     profilePrompt, profileButton,
                     notificationLabel, notificationCheckbox,
                     readReceiptsLabel, readReceiptsCheckbox,
+                    uploadLimitLabel, uploadLimitBox,
                     saveSettingsButton);
             profileButton.setOnAction(e -> {
                 FileChooser fileChooser = new FileChooser();
@@ -1001,6 +1138,21 @@ public class App extends Application {
                 }
             });
             saveSettingsButton.setOnAction(e -> {
+                long globalLimit;
+                long connectionLimit;
+                try {
+                    globalLimit = Long.parseLong(globalLimitInput.getText().trim());
+                    connectionLimit = Long.parseLong(connectionLimitInput.getText().trim());
+                } catch (NumberFormatException ex) {
+                    showAlert("Invalid Upload Limit", "Please enter the upload limits as whole KB/s.");
+                    return;
+                }
+                if (globalLimit < 0 || connectionLimit < 0) {
+                    showAlert("Invalid Upload Limit", "Upload limits cannot be negative.");
+                    return;
+                }
+                // Takes effect on transfers already running
+                RateLimiter.setLimits(globalLimit * 1024, connectionLimit * 1024);
                 username = usernameInput.getText();
                 usernameLabel.setText(username);
                 enableNotifications = notificationCheckbox.isSelected();
@@ -1008,7 +1160,7 @@ public class App extends Application {
                 settingsStage.close();
                 addSystemMessage("Settings updated successfully.");
             });
-            Scene settingsScene = new Scene(settingsBox, 400, 350);
+            Scene settingsScene = new Scene(settingsBox, 460, 430);
             settingsStage.setScene(settingsScene);
             settingsStage.show();
         });
@@ -1019,16 +1171,142 @@ public class App extends Application {
         if (message.isEmpty()) {
             return;
         }
-        if (connectionHandler == null || !connectionHandler.isConnected()) {
-            showAlert("Not Connected", "You must be connected to send messages.");
+        if (sendToRoom(message)) {
+            messageField.clear();
             return;
         }
-        connectionHandler.sendMessage(message);
-        addSentMessage(message);
+        Text tick = newTick();
+        addSentMessage(message, tick);
+        sendOrQueue(message, tick);
         messageField.clear();
     }
 
+    private void sendOrQueue(String message, Text tick) {
+        try {
+            if (connectionHandler != null) {
+                connectionHandler.sendMessage(message, tick);
+            } else {
+                queueOffline(message, tick);
+            }
+        } catch (IOException e) {
+            Platform.runLater(() -> {
+                tick.setText(FAILED_TICK);
+                tick.setVisible(true);
+            });
+            showAlert("Message Not Sent", e.getMessage());
+        }
+    }
+
+    // With no connection, the message waits in the outbox for the peer in the address fields
+    private void queueOffline(String message, Text tick) throws IOException {
+        String host = hostField.getText();
+        int port;
+        try {
+            port = Integer.parseInt(portField.getText());
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (host.trim().isEmpty() || port <= 0) {
+            showAlert("Not Connected", "Enter the peer's address to keep messages for it until you connect.");
+            return;
+        }
+        // Named as the client will name it, so connecting later picks the message up
+        String peer = host + ":" + port;
+        Outbox.Message queued = Outbox.forPeer(new File("downloads"), peer).add(message);
+        Platform.runLater(() -> {
+            tick.setText(QUEUED_TICK);
+            tick.setVisible(true);
+            queuedTicks.put(queued.getId(), tick);
+        });
+        addSystemMessage("Not connected, message will be sent once connected to " + peer);
+    }
+
     public void addSentMessage(String message) {
+        addSentMessage(message, null);
+    }
+
+    /**
+     * Sends files in the background. A single file is sent on its own, so it
+     * can resume; several files or a folder go as one bundle, except from a
+     * server, which sends each file on its own. Each bubble shows a clock
+     * until its own send is over, see {@link #finishFileSend}.
+     */
+    private void sendFiles(List<File> files) {
+        boolean single = files.size() == 1 && files.get(0).isFile();
+        List<CompletableFuture<Boolean>> sends;
+        try {
+            sends = single ? Collections.singletonList(connectionHandler.sendFile(files.get(0)))
+                    : connectionHandler.sendFiles(files);
+        } catch (Exception e) {
+            showAlert("File Error", "Could not send files: " + e.getMessage());
+            return;
+        }
+        List<String> labels = new ArrayList<>();
+        if (single || isServer) {
+            for (File file : files) {
+                labels.add("File: " + file.getName());
+            }
+        } else {
+            labels.add(files.size() == 1 ? "Folder: " + FileBundle.nameOf(files) : files.size() + " files");
+        }
+        for (int i = 0; i < labels.size(); i++) {
+            Text tick = newTick();
+            tick.setText(QUEUED_TICK);
+            tick.setVisible(true);
+            addSentMessage(labels.get(i), tick);
+            sends.get(i).thenAccept(delivered -> finishFileSend(tick, delivered));
+        }
+    }
+
+    /**
+     * Moves a file's tick from the clock to two ticks once the peer has it,
+     * or every peer a server sent it to, or to a cross if sending failed.
+     */
+    private void finishFileSend(Text tick, boolean delivered) {
+        Platform.runLater(() -> tick.setText(delivered ? "\u2713\u2713" : FAILED_TICK));
+    }
+
+    // "/join name" enters a room and "/leave" goes back to the direct chat; in a room, messages go to it
+    private boolean sendToRoom(String message) {
+        if (message.startsWith("/join ")) {
+            String room = message.substring("/join ".length()).trim();
+            if (connectionHandler == null) {
+                showAlert("Not Connected", "Connect to a server to join a room.");
+                return true;
+            }
+            try {
+                if (currentRoom != null) {
+                    connectionHandler.leaveRoom(currentRoom);
+                }
+                connectionHandler.joinRoom(room);
+                currentRoom = room;
+                addSystemMessage("Joined room " + room + "; /leave to go back");
+            } catch (IOException e) {
+                showAlert("Invalid Room", e.getMessage());
+            }
+            return true;
+        }
+        if (message.equals("/leave")) {
+            if (currentRoom != null && connectionHandler != null) {
+                connectionHandler.leaveRoom(currentRoom);
+                addSystemMessage("Left room " + currentRoom);
+            }
+            currentRoom = null;
+            return true;
+        }
+        if (currentRoom == null || connectionHandler == null) {
+            return false;
+        }
+        if (connectionHandler.sendRoomMessage(currentRoom, message)) {
+            addSentMessage("[" + currentRoom + "] " + message);
+        } else {
+            addSystemMessage("Not connected, message to " + currentRoom + " was not sent");
+        }
+        return true;
+    }
+
+    // The tick, if any, goes next to the time and stays hidden until the message is numbered
+    private void addSentMessage(String message, Text tick) {
         Platform.runLater(() -> {
             HBox messageBox = new HBox(10);
             messageBox.setAlignment(Pos.CENTER_RIGHT);
@@ -1041,7 +1319,13 @@ public class App extends Application {
             Text timeText = new Text(getCurrentTime());
             timeText.setFill(Color.rgb(255, 255, 255, 0.7));
             timeText.setFont(Font.font("Segoe UI", 9));
-            messageContent.getChildren().addAll(messageText, timeText);
+            if (tick != null) {
+                HBox statusRow = new HBox(4, timeText, tick);
+                statusRow.setAlignment(Pos.CENTER_RIGHT);
+                messageContent.getChildren().addAll(messageText, statusRow);
+            } else {
+                messageContent.getChildren().addAll(messageText, timeText);
+            }
             DropShadow shadow = new DropShadow();
             shadow.setRadius(5.0);
             shadow.setOffsetX(2.0);
@@ -1055,6 +1339,106 @@ public class App extends Application {
         });
     }
 
+    private Text newTick() {
+        Text tick = new Text();
+        tick.setFill(Color.rgb(255, 255, 255, 0.7));
+        tick.setFont(Font.font("Segoe UI", FontWeight.BOLD, 9));
+        tick.setVisible(false);
+        return tick;
+    }
+
+    // Shows a clock for a queued message, or a single tick once it is sent, and follows its receipts from now on
+    private void trackReceipts(long sequence, Text tick) {
+        if (sequence <= 0) {
+            return;
+        }
+        Platform.runLater(() -> showTick(sequence, tick));
+    }
+
+    // As trackReceipts, for a message kept in the outbox until the peer confirms it
+    private void trackQueued(Outbox.Message message, Text tick) {
+        Platform.runLater(() -> {
+            queuedTicks.put(message.getId(), tick);
+            showTick(message.getSequence(), tick);
+        });
+    }
+
+    private void showTick(long sequence, Text tick) {
+        tick.setText(sequence <= sentUpTo ? "\u2713" : QUEUED_TICK);
+        tick.setVisible(true);
+        unreadTicks.put(sequence, tick);
+    }
+
+    /**
+     * Shows the messages a new client takes over from the outbox as queued:
+     * those typed while offline or left by an earlier client keep their
+     * bubbles, and only ones from an earlier run get new ones.
+     */
+    public void showPendingMessages(List<Outbox.Message> messages) {
+        Platform.runLater(() -> {
+            // A new client numbers its messages from 1 again
+            unreadTicks.clear();
+            sentUpTo = 0;
+            Set<Long> pending = new HashSet<>();
+            for (Outbox.Message message : messages) {
+                Text tick = queuedTicks.get(message.getId());
+                if (tick == null) {
+                    tick = newTick();
+                    addSentMessage(message.getText(), tick);
+                    queuedTicks.put(message.getId(), tick);
+                }
+                pending.add(message.getId());
+                showTick(message.getSequence(), tick);
+            }
+            // The rest were confirmed and have left the outbox
+            queuedTicks.keySet().retainAll(pending);
+        });
+    }
+
+    /**
+     * Moves the ticks of messages up to the given sequence number from the
+     * clock to a single tick, as they leave the outbox.
+     */
+    public void markSent(long upToSequence) {
+        Platform.runLater(() -> {
+            if (upToSequence <= sentUpTo) {
+                return;
+            }
+            for (Text tick : unreadTicks.subMap(sentUpTo, false, upToSequence, true).values()) {
+                if (QUEUED_TICK.equals(tick.getText())) {
+                    tick.setText("\u2713");
+                }
+            }
+            sentUpTo = upToSequence;
+        });
+    }
+
+    /**
+     * Moves the ticks of messages numbered fromSequence and up along: two
+     * ticks once delivered, and blue once read. Only the tick text and
+     * colour change; the bubbles stay as they are.
+     */
+    public void updateReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        Platform.runLater(() -> {
+            if (deliveredUpTo >= fromSequence) {
+                for (Text tick : unreadTicks.subMap(fromSequence, true, deliveredUpTo, true).values()) {
+                    tick.setText("\u2713\u2713");
+                }
+            }
+            // Without read receipts there is nothing more to show once delivered
+            long doneUpTo = showReadReceipts ? readUpTo : deliveredUpTo;
+            if (doneUpTo >= fromSequence) {
+                Map<Long, Text> done = unreadTicks.subMap(fromSequence, true, doneUpTo, true);
+                if (showReadReceipts) {
+                    for (Text tick : done.values()) {
+                        tick.setFill(Color.web("#7DD3FC"));
+                    }
+                }
+                done.clear();
+            }
+        });
+    }
+
     public void addReceivedMessage(String message) {
         Platform.runLater(() -> {
             HBox messageBox = new HBox(10);
@@ -1098,6 +1482,9 @@ public class App extends Application {
             messageBox.getChildren().addAll(smallProfilePic, messageContent);
             messageArea.getChildren().add(messageBox);
             appendToChatHistory("Peer: " + message);
+            if (showReadReceipts && connectionHandler != null && messageField.getScene().getWindow().isFocused()) {
+                connectionHandler.markRead(false); // Seen as it arrived; goes out with the next batch of receipts
+            }
             if (enableNotifications && !messageField.getScene().getWindow().isFocused()) {
                 showDesktopNotification("New Message", "Peer: " + message);
             }
@@ -1127,23 +1514,14 @@ public class App extends Application {
         });
     }
 
-    private class ConnectionHandler {
-        private Socket socket;
-        private ServerSocket serverSocket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private boolean connected = false;
-        private Thread receiverThread;
+    private class ConnectionHandler implements PeerServer.Listener, PeerClient.Listener {
+        private PeerServer peerServer;
+        private PeerDiscovery announcer; // Tells clients on the network about the server
+        private PeerClient client;
         private String host;
         private int port;
         private App app;
 
-        // Increased buffer sizes for better performance
-        private static final int SOCKET_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
-        private static final int STREAM_BUFFER_SIZE = 1024 * 1024; // 1MB
-        private static final long MAX_FILE_SIZE = 2L * 1024 * 1024 * 1024; // 2GB
-        private static final int SOCKET_TIMEOUT = 0; // No timeout for large transfers
-
         public ConnectionHandler(String host, int port, App app) {
             this.host = host;
             this.port = port;
@@ -1156,345 +1534,365 @@ public class App extends Application {
         }
 
         public void startConnection() {
-            receiverThread = new Thread(() -> {
-                try {
-                    // Connect to the server
-                    socket = new Socket();
-
-                    // Configure socket before connecting
-                    socket.setTcpNoDelay(true);
-                    socket.setKeepAlive(true);
-                    socket.setSoTimeout(SOCKET_TIMEOUT); // No timeout
-                    socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
-                    socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
-                    socket.setSoLinger(true, 30); // Proper close handling
-
-                    // Connect with timeout
-                    socket.connect(new java.net.InetSocketAddress(host, port), 30000);
-
-                    setupStreams();
-                    app.updateConnectionStatus("Connected to " + host + ":" + port);
-                    connected = true;
-                    String inputLine;
-                    while ((inputLine = in.readLine()) != null) {
-                        processIncomingMessage(inputLine);
-                    }
-                } catch (IOException e) {
-                    app.updateConnectionStatus("Connection failed: " + e.getMessage());
-                } finally {
-                    closeConnection();
-                }
-            });
-            receiverThread.setDaemon(true);
-            receiverThread.start();
+            // The client connects, keeps the connection alive and reconnects; this handler only shows what happens
+            client = new PeerClient(TcpTransport.INSTANCE, host, port, new File("downloads"), this);
+            app.showPendingMessages(client.getPendingMessages());
+            client.start();
         }
 
         public void startServer() {
-            receiverThread = new Thread(() -> {
-                try {
-                    serverSocket = new ServerSocket();
-
-                    // Configure server socket
-                    serverSocket.setReuseAddress(true);
-                    serverSocket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
-                    serverSocket.bind(new java.net.InetSocketAddress(port));
-
-                    app.updateConnectionStatus("Listening on port " + port);
-                    socket = serverSocket.accept();
-
-                    // Configure accepted socket
-                    socket.setTcpNoDelay(true);
-                    socket.setKeepAlive(true);
-                    socket.setSoTimeout(SOCKET_TIMEOUT); // No timeout
-                    socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
-                    socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
-                    socket.setSoLinger(true, 30);
-
-                    setupStreams();
-                    app.updateConnectionStatus("Client Connected: " + socket.getInetAddress().getHostAddress());
-                    connected = true;
-                    app.updateStatusIndicator(true);
-                    String inputLine;
-                    while ((inputLine = in.readLine()) != null) {
-                        processIncomingMessage(inputLine);
+            // Selector-based server: any number of peers on a few event loop threads
+            peerServer = new PeerServer(port, new File("downloads"), this);
+            try {
+                peerServer.start();
+                app.updateConnectionStatus("Listening on port " + port);
+                if (PeerDiscovery.isEnabled()) {
+                    try {
+                        announcer = PeerDiscovery.announce(app.username, port);
+                    } catch (IOException e) {
+                        app.addSystemMessage("Server is not announced on the network: " + e.getMessage());
                     }
-                } catch (IOException e) {
-                    app.updateConnectionStatus("Server error: " + e.getMessage());
-                } finally {
-                    closeConnection();
-                }
-            });
-            receiverThread.setDaemon(true);
-            receiverThread.start();
-        }
-
-        private void processIncomingMessage(String message) {
-            if (message.startsWith("CMD:")) {
-                String cmd = message.substring(4);
-                if (cmd.equals("TYPING:START")) {
-                    app.updateTypingIndicator(true);
-                } else if (cmd.equals("TYPING:STOP")) {
-                    app.updateTypingIndicator(false);
-                } else if (cmd.startsWith("FILE_TRANSFER:")) {
-                    // Process file transfer in separate thread to avoid blocking
-                    new Thread(() -> handleFileTransfer(cmd.substring(14))).start();
                 }
-            } else {
-                app.addReceivedMessage(message);
+            } catch (IOException e) {
+                peerServer.stop();
+                app.updateConnectionStatus("Server error: " + e.getMessage());
             }
         }
 
-        private void handleFileTransfer(String fileData) {
-            try {
-                // Parse the file data: filename:filesize:base64data
-                String[] parts = fileData.split(":", 3);
-                if (parts.length != 3) {
-                    throw new IOException("Invalid file transfer format");
-                }
-
-                String fileName = parts[0];
-                long expectedFileSize = Long.parseLong(parts[1]);
-                String base64Data = parts[2];
-
-                // Show receiving message
-                Platform.runLater(() -> {
-                    app.addSystemMessage("Receiving file: " + fileName + " (" +
-                            String.format("%.1f MB", expectedFileSize / (1024.0 * 1024.0)) + ")");
-                });
+        @Override
+        public void onConnected(String peer) {
+            app.updateConnectionStatus("Connected to " + host + ":" + port);
+            app.rememberEndpoint(host, port);
+        }
 
-                long startTime = System.currentTimeMillis();
+        @Override
+        public void onReconnecting(String reason, long delayMillis) {
+            app.updateStatusIndicator(false);
+            app.addSystemMessage(reason + ", reconnecting...");
+            app.updateConnectionStatus(String.format("Connecting to %s:%d (retry in %.1fs)...",
+                    host, port, delayMillis / 1000.0));
+        }
 
-                // Use streaming Base64 decoder to avoid memory issues
-                byte[] fileBytes;
-                try {
-                    fileBytes = Base64.getDecoder().decode(base64Data);
-                } catch (OutOfMemoryError e) {
-                    throw new IOException("File too large for available memory");
+        @Override
+        public void onStopped(String reason) {
+            app.updateConnectionStatus(reason);
+            closeConnection();
+            // This client never comes back, so later messages wait in the outbox until the user connects again
+            Platform.runLater(() -> {
+                if (app.connectionHandler == this) {
+                    app.connectionHandler = null;
                 }
+            });
+        }
 
-                // Verify file size
-                if (fileBytes.length != expectedFileSize) {
-                    throw new IOException("File size mismatch. Expected: " + expectedFileSize +
-                            ", Received: " + fileBytes.length);
-                }
+        @Override
+        public void onMessageQueued(String message) {
+            app.addSystemMessage("Not connected, message will be sent when the connection is back");
+        }
 
-                // Create downloads directory if it doesn't exist
-                File downloadsDir = new File("downloads");
-                if (!downloadsDir.exists()) {
-                    downloadsDir.mkdirs();
-                }
+        @Override
+        public void onMessagesSent(long upToSequence) {
+            app.markSent(upToSequence);
+        }
 
-                // Save the file with proper error handling
-                File receivedFile = new File(downloadsDir, fileName);
-                try {
-                    Files.write(receivedFile.toPath(), fileBytes,
-                            StandardOpenOption.CREATE,
-                            StandardOpenOption.WRITE,
-                            StandardOpenOption.TRUNCATE_EXISTING);
-                } finally {
-                    // Clear the byte array from memory immediately
-                    fileBytes = null;
-                    System.gc(); // Suggest garbage collection
-                }
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+            app.updateReceipts(fromSequence, deliveredUpTo, readUpTo);
+        }
 
-                long endTime = System.currentTimeMillis();
-                double transferTime = (endTime - startTime) / 1000.0;
-                double speedMBps = (expectedFileSize / (1024.0 * 1024.0)) / transferTime;
+        @Override
+        public void onFileSending(String fileName, long fileSize) {
+            Platform.runLater(() -> {
+                app.addSystemMessage("Sending file: " + fileName + " (" +
+                        String.format("%.1f MB", fileSize / (1024.0 * 1024.0)) + ")");
+            });
+        }
 
-                // Notify successful file reception
+        @Override
+        public void onFileAccepted(String fileName, long fileSize, long offset) {
+            if (offset == fileSize && fileSize > 0) {
                 Platform.runLater(() -> {
-                    app.addFileReceivedMessage(fileName, receivedFile);
-                    app.addSystemMessage("File received successfully: " + fileName +
-                            String.format(" (%.1f seconds, %.1f MB/s)", transferTime, speedMBps));
+                    app.addSystemMessage("Peer already has " + fileName + ", nothing to send");
                 });
-
-            } catch (Exception e) {
+            } else if (offset > 0) {
                 Platform.runLater(() -> {
-                    app.showAlert("File Receive Error", "Could not save file: " + e.getMessage());
-                    app.addSystemMessage("File transfer failed: " + e.getMessage());
+                    app.addSystemMessage("Resuming file: " + fileName + " from " +
+                            String.format("%.1f MB", offset / (1024.0 * 1024.0)));
                 });
             }
         }
 
-        private void setupStreams() throws IOException {
-            // Use larger buffers and proper encoding
-            out = new PrintWriter(
-                    new BufferedWriter(
-                            new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
-                            STREAM_BUFFER_SIZE),
-                    false // Don't auto-flush for better performance
-            );
-            in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8),
-                    STREAM_BUFFER_SIZE);
+        @Override
+        public void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes,
+                long resentBytes) {
+            double transferTime = Math.max(1, millis) / 1000.0;
+            double speedMBps = (sentBytes / (1024.0 * 1024.0)) / transferTime;
+            String compression = savedBytes > 0
+                    ? String.format(", %.1f MB saved by compression or the peer's older copy",
+                            savedBytes / (1024.0 * 1024.0)) : "";
+            String repairs = resentBytes > 0
+                    ? String.format(", %.1f MB sent again after damage", resentBytes / (1024.0 * 1024.0)) : "";
+
+            // Notify successful file sending
+            Platform.runLater(() -> {
+                app.addSystemMessage("File sent successfully: " + fileName +
+                        String.format(" (%.1f seconds, %.1f MB/s", transferTime, speedMBps) + compression + repairs + ")");
+            });
         }
 
-        public void closeConnection() {
-            connected = false;
-            app.updateStatusIndicator(false);
-
-            // Proper cleanup order
-            try {
-                if (out != null) {
-                    out.flush();
-                    out.close();
-                }
-            } catch (Exception e) {
-                /* Ignore */ }
-
-            try {
-                if (in != null) {
-                    in.close();
-                }
-            } catch (Exception e) {
-                /* Ignore */ }
+        @Override
+        public void onFileSendFailed(String fileName, String reason) {
+            Platform.runLater(() -> {
+                app.addSystemMessage("File send failed: " + reason);
+                app.showAlert("File Transfer Error", reason);
+            });
+        }
 
-            try {
-                if (socket != null && !socket.isClosed()) {
-                    socket.shutdownOutput();
-                    socket.shutdownInput();
-                    socket.close();
-                }
-            } catch (Exception e) {
-                /* Ignore */ }
+        @Override
+        public void onMessage(String peer, String message) {
+            app.addReceivedMessage(peerServer != null ? peer + ": " + message : message);
+        }
 
-            try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-            } catch (Exception e) {
-                /* Ignore */ }
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+            app.addReceivedMessage("[" + room + "] " + sender + ": " + message);
+        }
 
-            app.updateConnectionStatus("Disconnected");
+        @Override
+        public void onTyping(String peer, boolean typing) {
+            app.updateTypingIndicator(typing);
         }
 
-        public void sendMessage(String message) {
-            if (connected && out != null) {
-                synchronized (out) {
-                    out.println(message);
-                    out.flush(); // Explicit flush for messages
-                }
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+            if (resumedFrom > 0) {
+                app.addSystemMessage("Resuming file: " + fileName + " (" +
+                        String.format("%.1f of %.1f MB already received", resumedFrom / (1024.0 * 1024.0),
+                                fileSize / (1024.0 * 1024.0)) + ")");
+            } else {
+                app.addSystemMessage("Receiving file: " + fileName + " (" +
+                        String.format("%.1f MB", fileSize / (1024.0 * 1024.0)) + ")");
             }
         }
 
-        public void sendTypingStatus(boolean isTyping) {
-            if (connected && out != null) {
-                synchronized (out) {
-                    out.println("CMD:TYPING:" + (isTyping ? "START" : "STOP"));
-                    out.flush();
-                }
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+            if (transfer.isDeduplicated()) {
+                Platform.runLater(() -> {
+                    app.addFileReceivedMessage(transfer.getFileName(), transfer.getFile());
+                    app.addSystemMessage("File already in downloads, copied locally: " + transfer.getFileName());
+                });
+                return;
             }
+            double transferTime = Math.max(1, System.currentTimeMillis() - transfer.getStartTime()) / 1000.0;
+            long receivedNow = transfer.getExpectedSize() - transfer.getResumedFrom();
+            double speedMBps = (receivedNow / (1024.0 * 1024.0)) / transferTime;
+
+            // Notify successful file reception
+            Platform.runLater(() -> {
+                app.addFileReceivedMessage(transfer.getFileName(), transfer.getFile());
+                app.addSystemMessage("File received successfully: " + transfer.getFileName() +
+                        String.format(" (%.1f seconds, %.1f MB/s)", transferTime, speedMBps));
+            });
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+            Platform.runLater(() -> {
+                app.showAlert("File Receive Error", "Could not save file: " + reason);
+                app.addSystemMessage("File transfer failed: " + reason);
+            });
         }
 
-        public void sendFile(File file) throws IOException {
-            if (file.length() > MAX_FILE_SIZE) {
-                throw new IOException("File too large. Maximum size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB.");
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize, long receivedBytes) {
+            if (receivedBytes == 0) {
+                app.addSystemMessage("Receiving folder: " + name + " (" + fileCount + " files, " +
+                        String.format("%.1f MB", totalSize / (1024.0 * 1024.0)) + ")");
+            } else {
+                app.addSystemMessage("Receiving folder: " + name + String.format(" (%.0f%%)",
+                        receivedBytes * 100.0 / totalSize));
             }
+        }
 
-            if (!connected || out == null) {
-                throw new IOException("Not connected");
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+            double transferTime = Math.max(1, System.currentTimeMillis() - bundle.getStartTime()) / 1000.0;
+            double speedMBps = (bundle.getTotalSize() / (1024.0 * 1024.0)) / transferTime;
+            Platform.runLater(() -> {
+                app.addFileReceivedMessage(bundle.getDirectory().getName(), bundle.getDirectory());
+                app.addSystemMessage("Folder received successfully: " + bundle.getDirectory().getName() + " (" +
+                        bundle.getFileCount() + " files" +
+                        String.format(", %.1f seconds, %.1f MB/s)", transferTime, speedMBps));
+            });
+        }
+
+        @Override
+        public void onPeerConnected(String peer, int peerCount) {
+            if (peerCount == 1) {
+                app.updateConnectionStatus("Client Connected: " + peer);
+            } else {
+                app.addSystemMessage("Peer connected: " + peer + " (" + peerCount + " peers online)");
             }
+        }
 
-            // Check available memory before proceeding
-            Runtime runtime = Runtime.getRuntime();
-            long maxMemory = runtime.maxMemory();
-            long totalMemory = runtime.totalMemory();
-            long freeMemory = runtime.freeMemory();
-            long availableMemory = maxMemory - totalMemory + freeMemory;
+        @Override
+        public void onPeerDisconnected(String peer, int peerCount) {
+            if (peerServer == null || !peerServer.isRunning()) {
+                return;
+            }
+            app.addSystemMessage("Peer disconnected: " + peer + " (" + peerCount + " peers online)");
+            if (peerCount == 0) {
+                app.updateStatusIndicator(false);
+            }
+        }
 
+        @Override
+        public void onFileSent(String peer, String fileName) {
+            app.addSystemMessage("File sent successfully to " + peer + ": " + fileName);
+        }
 
-            // Need approximately 3x file size in memory (original + base64 + string)
-            long requiredMemory = file.length() * 4; // Conservative estimate
+        @Override
+        public void onFileRejected(String peer, String fileName) {
+            app.addSystemMessage("File send failed: " + peer + " could not save " + fileName);
+        }
 
-            System.out.println("Runtime memory is :"+runtime);
-            System.out.println("MaxMemory memory is :"+maxMemory);
-            System.out.println("Total memory is :"+totalMemory);
-            System.out.println("Free memory is :"+freeMemory);
-            System.out.println("Available memory is :"+availableMemory);
+        public void closeConnection() {
+            if (client != null) {
+                client.close();
+            }
+            app.updateStatusIndicator(false);
 
-            if (requiredMemory > availableMemory) {
-                throw new IOException("Insufficient memory for file transfer. Required: " +
-                        (requiredMemory / (1024 * 1024)) + "MB, Available: " +
-                        (availableMemory / (1024 * 1024)) + "MB");
+            if (announcer != null) {
+                announcer.close();
+            }
+            if (peerServer != null) {
+                peerServer.stop();
             }
 
-            // Send file in separate thread to avoid blocking
-            new Thread(() -> {
-                byte[] fileBytes = null;
-                String encodedFile = null;
+            app.updateConnectionStatus("Disconnected");
+        }
 
-                try {
-                    // Show sending message
-                    Platform.runLater(() -> {
-                        app.addSystemMessage("Sending file: " + file.getName() + " (" +
-                                String.format("%.1f MB", file.length() / (1024.0 * 1024.0)) + ")");
-                    });
+        /**
+         * Sends a message and has the given tick follow its receipts.
+         *
+         * @throws IOException If the message is too long to send
+         */
+        public void sendMessage(String message, Text tick) throws IOException {
+            if (peerServer != null) {
+                // The server has no outbox; a message goes to the peers online now or not at all
+                long sequence = peerServer.sendMessage(message);
+                app.markSent(sequence);
+                app.trackReceipts(sequence, tick);
+            } else if (client != null) {
+                app.trackQueued(client.sendMessage(message), tick);
+            }
+        }
 
-                    long startTime = System.currentTimeMillis();
+        public void joinRoom(String room) throws IOException {
+            if (peerServer != null) {
+                peerServer.joinRoom(room);
+            } else if (client != null) {
+                client.joinRoom(room);
+            }
+        }
 
-                    // Read file
-                    try {
-                        fileBytes = Files.readAllBytes(file.toPath());
-                    } catch (OutOfMemoryError e) {
-                        throw new IOException("File too large for available memory");
-                    }
+        public void leaveRoom(String room) {
+            if (peerServer != null) {
+                peerServer.leaveRoom(room);
+            } else if (client != null) {
+                client.leaveRoom(room);
+            }
+        }
 
-                    // Encode to Base64
-                    try {
-                        encodedFile = Base64.getEncoder().encodeToString(fileBytes);
-                    } catch (OutOfMemoryError e) {
-                        throw new IOException("File too large for Base64 encoding");
-                    } finally {
-                        // Clear file bytes from memory
-                        fileBytes = null;
-                        System.gc();
-                    }
+        public boolean sendRoomMessage(String room, String message) {
+            if (peerServer != null) {
+                peerServer.sendRoomMessage(room, app.username, message);
+                return true;
+            }
+            return client != null && client.sendRoomMessage(room, message);
+        }
 
-                    String fileName = file.getName();
-                    long fileSize = file.length();
+        public void markRead(boolean immediately) {
+            if (peerServer != null) {
+                peerServer.markRead(immediately);
+            } else if (client != null) {
+                client.markRead(immediately);
+            }
+        }
 
-                    // Send file as single message
-                    String fileMessage = "CMD:FILE_TRANSFER:" + fileName + ":" + fileSize + ":" + encodedFile;
+        public void sendTypingStatus(boolean isTyping) {
+            if (peerServer != null) {
+                int flags = isTyping ? FrameType.FLAG_TYPING_ACTIVE : 0;
+                peerServer.broadcastFrame(FrameType.TYPING, flags, FrameCodec.EMPTY_PAYLOAD);
+            } else if (client != null) {
+                client.sendTypingStatus(isTyping);
+            }
+        }
 
-                    synchronized (out) {
-                        out.println(fileMessage);
-                        out.flush();
+        /**
+         * @return Completes with whether the file reached the peer, or every
+         *         peer a server sent it to
+         */
+        public CompletableFuture<Boolean> sendFile(File file) throws IOException {
+            if (peerServer != null) {
+                CompletableFuture<Boolean> done = new CompletableFuture<>();
+                // Hashing a large file for the first time takes a while, so keep it off the FX thread
+                ConnectionExecutors.execute("FileBroadcast-" + file.getName(), () -> {
+                    try {
+                        PeerServer.Broadcast broadcast = peerServer.broadcastFile(file);
+                        int peerCount = broadcast.getPeerCount();
+                        app.addSystemMessage("Sending file: " + file.getName() + " to " + peerCount + " peer(s)");
+                        // Each peer reports on its own; the bubble waits for all of them
+                        broadcast.getDone().thenAccept(delivered -> {
+                            if (peerCount > 1) {
+                                app.addSystemMessage(file.getName() + " reached " + delivered + " of " + peerCount
+                                        + " peers");
+                            }
+                            done.complete(peerCount > 0 && delivered == peerCount);
+                        });
+                    } catch (IOException e) {
+                        done.complete(false);
+                        app.addSystemMessage("File send failed: " + e.getMessage());
                     }
+                });
+                return done;
+            }
+            if (client == null) {
+                throw new IOException("Not connected");
+            }
+            return client.sendFile(file);
+        }
 
-                    long endTime = System.currentTimeMillis();
-                    double transferTime = (endTime - startTime) / 1000.0;
-                    double speedMBps = (fileSize / (1024.0 * 1024.0)) / transferTime;
-
-                    // Notify successful file sending
-                    Platform.runLater(() -> {
-                        app.addSystemMessage("File sent successfully: " + fileName +
-                                String.format(" (%.1f seconds, %.1f MB/s)", transferTime, speedMBps));
-                    });
-
-                } catch (IOException e) {
-                    Platform.runLater(() -> {
-                        app.addSystemMessage("File send failed: " + e.getMessage());
-                        app.showAlert("File Transfer Error", e.getMessage());
-                    });
-                } catch (OutOfMemoryError e) {
-                    Platform.runLater(() -> {
-                        app.addSystemMessage("File too large for memory: " + file.getName());
-                        app.showAlert("Memory Error", "File too large. Try:\n" +
-                                "1. Increase JVM heap size (-Xmx4g)\n" +
-                                "2. Use a smaller file\n" +
-                                "3. Close other applications");
-                    });
-                } finally {
-                    // Clean up memory
-                    fileBytes = null;
-                    encodedFile = null;
-                    System.gc();
+        /**
+         * @return One outcome per file a server sends, or a client's one for
+         *         the whole bundle
+         */
+        public List<CompletableFuture<Boolean>> sendFiles(List<File> files) throws IOException {
+            if (peerServer != null) {
+                // The server broadcasts files one at a time; folders only go from a client to its server
+                for (File file : files) {
+                    if (!file.isFile()) {
+                        throw new IOException("Folders can be sent from a client connection only");
+                    }
                 }
-            }, "FileTransferThread").start();
+                List<CompletableFuture<Boolean>> sends = new ArrayList<>();
+                for (File file : files) {
+                    sends.add(sendFile(file));
+                }
+                return sends;
+            }
+            if (client == null) {
+                throw new IOException("Not connected");
+            }
+            return Collections.singletonList(client.sendFiles(files));
         }
 
         public boolean isConnected() {
-            return connected && socket != null && !socket.isClosed() && socket.isConnected();
+            if (peerServer != null) {
+                return peerServer.isRunning() && peerServer.getPeerCount() > 0;
+            }
+            return client != null && client.isConnected();
         }
     }
 
@@ -0,0 +1,174 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares three ways of sending a folder of small files from the client to
+ * a receiver over an in-memory pipe with some latency: as one bundle, as
+ * one file of the same total size for reference, and file by file, each
+ * with its own offer and answer. The throughput of each is printed; a bundle
+ * should come close to the single file however small its files are.
+ *
+ * Usage: java com.chatapp.BundleBenchmark [files] [KB per file] [latency ms]
+ */
+public final class BundleBenchmark {
+    private static final int PIPE_PORT = 5557;
+
+    private BundleBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int fileKilobytes = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+        File directory = Files.createTempDirectory("chatapp-bundle").toFile();
+        File folder = new File(directory, "folder");
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(folder, "dir" + i / 100 + File.separator + "file" + i + ".bin");
+            file.getParentFile().mkdirs();
+            PeerBenchmark.writeRandomFile(file, fileKilobytes * 1024L);
+        }
+        File single = new File(directory, "single.bin");
+        PeerBenchmark.writeRandomFile(single, (long) fileCount * fileKilobytes * 1024);
+        long totalBytes = single.length();
+        System.out.printf("Pipe, %d ms latency, %d files of %d KB%n", latencyMillis, fileCount, fileKilobytes);
+
+        Endpoint receiver = new Endpoint();
+        PipeTransport pipe = new PipeTransport(latencyMillis, 0);
+        AutoCloseable pipeEndpoint = PeerBenchmark.serve(pipe.listen(PIPE_PORT), new File(directory, "downloads"),
+                receiver);
+        Endpoint sender = new Endpoint();
+        PeerClient client = new PeerClient(pipe, "localhost", PIPE_PORT, new File(directory, "client"), sender);
+        client.start();
+        sender.connected.get(30, TimeUnit.SECONDS);
+
+        // One large file, for reference
+        sender.reset();
+        long startTime = System.nanoTime();
+        client.sendFile(single);
+        sender.sent.get(10, TimeUnit.MINUTES);
+        report("single file", totalBytes, 1, System.nanoTime() - startTime);
+
+        // The folder as one bundle
+        sender.reset();
+        startTime = System.nanoTime();
+        client.sendFiles(Collections.singletonList(folder));
+        sender.sent.get(10, TimeUnit.MINUTES);
+        report("bundle", totalBytes, fileCount, System.nanoTime() - startTime);
+
+        // The same files one at a time, each waiting for the last
+        startTime = System.nanoTime();
+        for (File subfolder : folder.listFiles()) {
+            for (File file : subfolder.listFiles()) {
+                sender.reset();
+                client.sendFile(file);
+                sender.sent.get(10, TimeUnit.MINUTES);
+            }
+        }
+        report("file by file", totalBytes, fileCount, System.nanoTime() - startTime);
+
+        client.close();
+        pipeEndpoint.close();
+    }
+
+    private static void report(String label, long bytes, int files, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-13s %8.1f MB/s  %9.0f files/s  (%.2f s)%n", label, bytes / seconds / (1024 * 1024),
+                files / seconds, seconds);
+    }
+
+    // Both ends' callbacks; the sender's finished files are what is timed
+    private static class Endpoint implements PeerClient.Listener {
+        private final CompletableFuture<String> connected = new CompletableFuture<>();
+        private volatile CompletableFuture<String> sent = new CompletableFuture<>();
+
+        void reset() {
+            sent = new CompletableFuture<>();
+        }
+
+        @Override
+        public void onConnected(String peer) {
+            connected.complete(peer);
+        }
+
+        @Override
+        public void onStopped(String reason) {
+            connected.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes,
+                long resentBytes) {
+            sent.complete(fileName);
+        }
+
+        @Override
+        public void onFileSendFailed(String fileName, String reason) {
+            sent.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+            System.out.println("Receive failed: " + reason);
+        }
+
+        @Override
+        public void onMessage(String peer, String message) {
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onReconnecting(String reason, long delayMillis) {
+        }
+
+        @Override
+        public void onMessageQueued(String message) {
+        }
+
+        @Override
+        public void onMessagesSent(long upToSequence) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        }
+
+        @Override
+        public void onFileSending(String fileName, long fileSize) {
+        }
+
+        @Override
+        public void onFileAccepted(String fileName, long fileSize, long offset) {
+        }
+    }
+}
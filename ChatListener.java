@@ -0,0 +1,35 @@
+package com.chatapp;
+
+/**
+ * Callbacks from a peer connection to the user interface. Calls arrive on the
+ * connection's I/O thread; implementations hop to the FX thread themselves.
+ * The peer argument is a readable name of the remote end (its address).
+ */
+public interface ChatListener {
+    void onMessage(String peer, String message);
+
+    /**
+     * A message posted to a room this side has joined.
+     *
+     * @param sender Who posted it, as the server names its peers
+     */
+    void onRoomMessage(String room, String sender, String message);
+
+    void onTyping(String peer, boolean typing);
+
+    void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom);
+
+    void onFileReceived(String peer, IncomingTransfer transfer);
+
+    void onFileFailed(String peer, String reason);
+
+    /**
+     * A bundle of files is coming in: called once its manifest has arrived,
+     * and again as it progresses.
+     *
+     * @param receivedBytes Bytes of the contents received so far
+     */
+    void onFilesReceiving(String peer, String name, int fileCount, long totalSize, long receivedBytes);
+
+    void onFilesReceived(String peer, IncomingBundle bundle);
+}
@@ -0,0 +1,184 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-chunk compression of FILE_DATA frames. Chunks are deflated at the
+ * fastest level and only sent compressed when that saves at least a tenth
+ * of their size; otherwise they go out raw with zero-copy as before.
+ *
+ * Content that is already compressed (archives, images, video) is
+ * recognised by its magic bytes and never tried. Other files are tried
+ * chunk by chunk; after a run of chunks that do not shrink, only an
+ * occasional chunk is tried, so a file that stops compressing costs little
+ * and one that starts compressing again is noticed.
+ *
+ * A compressed FILE_DATA payload is: transferId (and checksum), raw length,
+ * deflated bytes.
+ */
+public class ChunkCompressor {
+    public static final String DISABLE_COMPRESSION_PROPERTY = "chatapp.disableCompression";
+    private static final boolean COMPRESSION_ENABLED = !Boolean.getBoolean(DISABLE_COMPRESSION_PROPERTY);
+    private static final int MAX_MISSES = 4; // Incompressible chunks in a row before backing off
+    private static final int PROBE_INTERVAL = 8; // While backed off, try one chunk in this many
+
+    // Leading bytes of common formats that are compressed already
+    private static final byte[][] COMPRESSED_MAGIC = {
+            { 0x1f, (byte) 0x8b }, // gzip
+            { 'P', 'K', 0x03, 0x04 }, // zip, jar, docx, xlsx, apk
+            { (byte) 0x89, 'P', 'N', 'G' },
+            { (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // jpeg
+            { 'G', 'I', 'F', '8' },
+            { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c },
+            { 'R', 'a', 'r', '!' },
+            { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 },
+            { 'B', 'Z', 'h' },
+            { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, // zstd
+            { 'O', 'g', 'g', 'S' },
+            { 'I', 'D', '3' }, // mp3
+            { 'f', 'L', 'a', 'C' },
+    };
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final ByteBuffer output = ByteBuffer.allocate(FrameCodec.MAX_PAYLOAD_SIZE);
+    private int misses = 0;
+    private int skipped = 0;
+
+    public static boolean isEnabled() {
+        return COMPRESSION_ENABLED;
+    }
+
+    /**
+     * Returns true if the file starts like a format that is compressed
+     * already, such as an archive, image or video.
+     */
+    public static boolean looksCompressed(FileChannel fileChannel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(12);
+        fileChannel.read(head, 0);
+        head.flip();
+        byte[] bytes = new byte[head.remaining()];
+        head.get(bytes);
+
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(bytes, 0, magic)) {
+                return true;
+            }
+        }
+        // ISO media (mp4, mov, heic) have "ftyp" after a box size, WebP and AVI are RIFF containers
+        return startsWith(bytes, 4, new byte[] { 'f', 't', 'y', 'p' })
+                || startsWith(bytes, 8, new byte[] { 'W', 'E', 'B', 'P' });
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        if (bytes.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the next chunk is worth trying to compress. Called once
+     * per chunk, before it is read.
+     */
+    public boolean shouldTry() {
+        return misses < MAX_MISSES || ++skipped % PROBE_INTERVAL == 0;
+    }
+
+    /**
+     * Compresses one chunk of a file into a FILE_DATA payload.
+     *
+     * @param prefix The payload's leading fields, transferId and checksum
+     * @param chunk The raw chunk, in a heap buffer; its position is not moved
+     * @return The compressed payload, valid until the next call, or null if
+     *         the chunk should be sent raw
+     */
+    public ByteBuffer compress(ByteBuffer prefix, ByteBuffer chunk) {
+        int length = chunk.remaining();
+        output.clear();
+        output.put(prefix.duplicate());
+        FrameCodec.putVarInt(output, length);
+        int budget = length - length / 10; // Must save at least 10%
+        deflater.reset();
+        deflater.setInput(chunk.array(), chunk.arrayOffset() + chunk.position(), length);
+        deflater.finish();
+        int compressedLength = deflater.deflate(output.array(), output.position(), budget);
+        if (!deflater.finished()) {
+            misses++;
+            return null;
+        }
+
+        misses = 0;
+        output.position(output.position() + compressedLength);
+        output.flip();
+        return output;
+    }
+
+    public void close() {
+        deflater.end();
+    }
+
+    /**
+     * Receive side: inflates compressed FILE_DATA payloads into buffers that
+     * are reused from chunk to chunk.
+     */
+    public static class Decompressor {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] input; // Copy of a payload that is not backed by an array
+        private ByteBuffer output;
+
+        /**
+         * Inflates the rest of a compressed FILE_DATA payload, after its
+         * transferId.
+         *
+         * @return The raw chunk, valid until the next call
+         */
+        public ByteBuffer decompress(ByteBuffer payload) throws IOException {
+            int rawLength = FrameCodec.getVarInt(payload);
+            if (rawLength < 0 || rawLength > FrameCodec.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Invalid compressed chunk length: " + rawLength);
+            }
+            if (output == null || output.capacity() < rawLength) {
+                output = ByteBuffer.allocate(Math.max(rawLength, FileTransfers.FILE_CHUNK_SIZE));
+            }
+
+            inflater.reset();
+            if (payload.hasArray()) {
+                inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            } else {
+                // Payloads read into a direct buffer are copied out once, the inflater needs an array
+                if (input == null || input.length < payload.remaining()) {
+                    input = new byte[Math.max(payload.remaining(), FileTransfers.FILE_CHUNK_SIZE)];
+                }
+                int length = payload.remaining();
+                payload.duplicate().get(input, 0, length);
+                inflater.setInput(input, 0, length);
+            }
+            output.clear();
+            try {
+                int inflated = inflater.inflate(output.array(), 0, rawLength);
+                if (inflated != rawLength || !inflater.finished()) {
+                    throw new IOException("Compressed chunk is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+            }
+            payload.position(payload.limit());
+            output.limit(rawLength);
+            return output;
+        }
+
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.chatapp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor for blocking connection work: receiver loops and file
+ * transfers. The thread mode is chosen once at startup with
+ * -Dchatapp.threads=virtual|platform (default platform).
+ *
+ * Virtual mode runs every task on its own virtual thread, so thousands of
+ * peers and transfers cost almost no stack memory while the code stays plain
+ * blocking I/O. It needs Java 21; on older runtimes it falls back to the
+ * platform pool. Platform mode is a cached pool of named daemon threads.
+ *
+ * Short periodic checks such as heartbeats run on one shared timer thread.
+ */
+public final class ConnectionExecutors {
+    public static final String THREAD_MODE_PROPERTY = "chatapp.threads";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_PLATFORM = "platform";
+
+    private static final ExecutorService EXECUTOR = create(System.getProperty(THREAD_MODE_PROPERTY, MODE_PLATFORM));
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chatapp-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ConnectionExecutors() {
+    }
+
+    public static ExecutorService get() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Runs a task on the shared executor under a readable thread name.
+     */
+    public static void execute(String name, Runnable task) {
+        EXECUTOR.execute(() -> {
+            Thread thread = Thread.currentThread();
+            String previousName = thread.getName();
+            thread.setName(name);
+            try {
+                task.run();
+            } finally {
+                thread.setName(previousName);
+            }
+        });
+    }
+
+    /**
+     * Submits a task to the shared executor under a readable thread name.
+     */
+    public static <T> Future<T> submit(String name, Callable<T> task) {
+        return EXECUTOR.submit(() -> {
+            Thread thread = Thread.currentThread();
+            String previousName = thread.getName();
+            thread.setName(name);
+            try {
+                return task.call();
+            } finally {
+                thread.setName(previousName);
+            }
+        });
+    }
+
+    /**
+     * Runs a short, non-blocking task every period on the shared timer thread.
+     */
+    public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodMillis) {
+        return TIMER.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a short, non-blocking task once after a delay on the shared timer thread.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return TIMER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates an executor for the given thread mode. Exposed for
+     * {@link ThreadModeBenchmark}, which compares the two side by side.
+     */
+    public static ExecutorService create(String mode) {
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+            try {
+                return createVirtual();
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21 or newer, using platform threads");
+            }
+        }
+        return createPlatform();
+    }
+
+    // Looked up reflectively so the app still builds and runs on older JDKs
+    private static ExecutorService createVirtual() throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "chatapp-virtual-", 0L);
+        ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) newExecutor.invoke(null, factory);
+    }
+
+    private static ExecutorService createPlatform() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "chatapp-io-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,327 @@
+package com.chatapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters for every connection, client and server alike.
+ *
+ * Recording is cheap enough for the I/O paths: counters are LongAdders, so
+ * writer and event loop threads never contend on one cache line, and queue
+ * depths are only summed when someone reads them. Everything is published
+ * as one MBean, so jconsole or a JMX exporter can read it while the app runs
+ * (start the JVM with the usual com.sun.management.jmxremote properties to
+ * scrape it remotely).
+ */
+public final class ConnectionMetrics implements ConnectionMetricsMBean {
+    public static final String OBJECT_NAME = "com.chatapp:type=ConnectionMetrics";
+
+    private static final ConnectionMetrics INSTANCE = new ConnectionMetrics();
+
+    private static final LongAdder BYTES_SENT = new LongAdder();
+    private static final LongAdder BYTES_RECEIVED = new LongAdder();
+    private static final LongAdder MESSAGES_SENT = new LongAdder();
+    private static final LongAdder MESSAGES_RECEIVED = new LongAdder();
+    private static final LongAdder ROOM_MESSAGES_DROPPED = new LongAdder();
+    private static final LongAdder SLOW_PEERS_DISCONNECTED = new LongAdder();
+    private static final LongAdder FILES_SENT = new LongAdder();
+    private static final LongAdder FILES_RECEIVED = new LongAdder();
+    private static final LongAdder FILE_BYTES_SENT = new LongAdder();
+    private static final LongAdder FILE_BYTES_RECEIVED = new LongAdder();
+    private static final LongAdder CONNECTS = new LongAdder();
+    private static final LongAdder RECONNECTS = new LongAdder();
+    private static final Histogram ROUND_TRIPS = new Histogram(); // Microseconds
+    // Outbound queues of open connections, by owner
+    private static final Map<Object, IntSupplier> QUEUES = new ConcurrentHashMap<>();
+    private static volatile double lastSendThroughput = 0;
+    private static volatile double lastReceiveThroughput = 0;
+
+    private ConnectionMetrics() {
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server. Safe to call more
+     * than once.
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            /* Already published */
+        } catch (JMException e) {
+            System.out.println("Could not publish connection metrics: " + e.getMessage());
+        }
+    }
+
+    public static void bytesSent(long bytes) {
+        if (bytes > 0) {
+            BYTES_SENT.add(bytes);
+        }
+    }
+
+    public static void bytesReceived(long bytes) {
+        if (bytes > 0) {
+            BYTES_RECEIVED.add(bytes);
+        }
+    }
+
+    public static void messagesSent(int count) {
+        MESSAGES_SENT.add(count);
+    }
+
+    public static void messageReceived() {
+        MESSAGES_RECEIVED.increment();
+    }
+
+    /**
+     * Records a room message a slow peer did not get.
+     */
+    public static void roomMessageDropped() {
+        ROOM_MESSAGES_DROPPED.increment();
+    }
+
+    /**
+     * Records a peer the server disconnected for falling too far behind.
+     */
+    public static void slowPeerDisconnected() {
+        SLOW_PEERS_DISCONNECTED.increment();
+    }
+
+    /**
+     * Records a file sent to one peer.
+     *
+     * @param bytes Bytes sent, not counting any the peer already had
+     */
+    public static void fileSent(long bytes, long millis) {
+        FILES_SENT.increment();
+        FILE_BYTES_SENT.add(bytes);
+        lastSendThroughput = throughput(bytes, millis);
+    }
+
+    /**
+     * Records a file received from a peer.
+     *
+     * @param bytes Bytes received, not counting any resumed from a part file
+     */
+    public static void fileReceived(long bytes, long millis) {
+        FILES_RECEIVED.increment();
+        FILE_BYTES_RECEIVED.add(bytes);
+        lastReceiveThroughput = throughput(bytes, millis);
+    }
+
+    public static void roundTrip(long nanos) {
+        ROUND_TRIPS.record(nanos / 1000);
+    }
+
+    public static void connected() {
+        CONNECTS.increment();
+    }
+
+    public static void reconnecting() {
+        RECONNECTS.increment();
+    }
+
+    /**
+     * Counts a connection's outbound queue in the queue depth until
+     * {@link #unwatchQueue} is called with the same owner.
+     */
+    public static void watchQueue(Object owner, IntSupplier depth) {
+        QUEUES.put(owner, depth);
+    }
+
+    public static void unwatchQueue(Object owner) {
+        QUEUES.remove(owner);
+    }
+
+    private static double throughput(long bytes, long millis) {
+        return bytes / (Math.max(1, millis) / 1000.0) / (1024 * 1024);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return BYTES_SENT.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return BYTES_RECEIVED.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return MESSAGES_SENT.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return MESSAGES_RECEIVED.sum();
+    }
+
+    @Override
+    public long getRoomMessagesDropped() {
+        return ROOM_MESSAGES_DROPPED.sum();
+    }
+
+    @Override
+    public long getSlowPeersDisconnected() {
+        return SLOW_PEERS_DISCONNECTED.sum();
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (IntSupplier queue : QUEUES.values()) {
+            depth += queue.getAsInt();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getFilesSent() {
+        return FILES_SENT.sum();
+    }
+
+    @Override
+    public long getFilesReceived() {
+        return FILES_RECEIVED.sum();
+    }
+
+    @Override
+    public long getFileBytesSent() {
+        return FILE_BYTES_SENT.sum();
+    }
+
+    @Override
+    public long getFileBytesReceived() {
+        return FILE_BYTES_RECEIVED.sum();
+    }
+
+    @Override
+    public double getLastSendThroughput() {
+        return lastSendThroughput;
+    }
+
+    @Override
+    public double getLastReceiveThroughput() {
+        return lastReceiveThroughput;
+    }
+
+    @Override
+    public long getRoundTripCount() {
+        return ROUND_TRIPS.count();
+    }
+
+    @Override
+    public double getRoundTripMillisP50() {
+        return ROUND_TRIPS.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getRoundTripMillisP99() {
+        return ROUND_TRIPS.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getRoundTripMillisMax() {
+        return ROUND_TRIPS.max() / 1000.0;
+    }
+
+    @Override
+    public long getConnects() {
+        return CONNECTS.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return RECONNECTS.sum();
+    }
+
+    @Override
+    public void resetRoundTrips() {
+        ROUND_TRIPS.reset();
+    }
+
+    /**
+     * Lock-free histogram of non-negative values with log-linear buckets,
+     * in the manner of HdrHistogram: each power of two is split into eight
+     * equal buckets, so a percentile is within 12.5% of the true value
+     * whatever the range. Values below eight are counted exactly.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            max.accumulate(value);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @return The highest value of the bucket the percentile falls in,
+         *         or 0 if nothing has been recorded
+         */
+        long percentile(double percent) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(max(), lowestValue(i + 1) - 1);
+                }
+            }
+            return max();
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            max.reset();
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+        }
+
+        private static long lowestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = (index >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+}
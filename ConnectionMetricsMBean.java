@@ -0,0 +1,68 @@
+package com.chatapp;
+
+/**
+ * Management interface of {@link ConnectionMetrics}, published over JMX as
+ * com.chatapp:type=ConnectionMetrics. Counters only grow while the app runs;
+ * rates are left to the tool that scrapes them.
+ */
+public interface ConnectionMetricsMBean {
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    /**
+     * @return Room messages not queued for a peer because it had fallen too
+     *         far behind
+     */
+    long getRoomMessagesDropped();
+
+    /**
+     * @return Peers a server disconnected because the chat and control
+     *         frames waiting for them passed the limit
+     */
+    long getSlowPeersDisconnected();
+
+    /**
+     * @return Frames waiting in every connection's outbound queues right now
+     */
+    long getOutboundQueueDepth();
+
+    long getFilesSent();
+
+    long getFilesReceived();
+
+    long getFileBytesSent();
+
+    long getFileBytesReceived();
+
+    /**
+     * @return Throughput of the last file sent, in MB/s
+     */
+    double getLastSendThroughput();
+
+    /**
+     * @return Throughput of the last file received, in MB/s
+     */
+    double getLastReceiveThroughput();
+
+    long getRoundTripCount();
+
+    double getRoundTripMillisP50();
+
+    double getRoundTripMillisP99();
+
+    double getRoundTripMillisMax();
+
+    long getConnects();
+
+    long getReconnects();
+
+    /**
+     * Clears the round-trip histogram, for example at the start of a test.
+     */
+    void resetRoundTrips();
+}
@@ -0,0 +1,218 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of file content hashes, used to skip sending a file the
+ * peer already has. A content hash is the root of the file's
+ * {@link MerkleTree}, so large files are hashed on every core. Entries are keyed by path and remember the size and
+ * modification time the hash was computed for, so a file that has changed
+ * since is ignored rather than trusted.
+ *
+ * The index is an append-only log in the downloads directory. It is read
+ * once when first used and appended to whenever a file is hashed, so
+ * starting up never rehashes the directory; the log is rewritten without
+ * stale lines once they outnumber the live ones.
+ */
+public class ContentIndex {
+    public static final String HASH_ALGORITHM = "SHA-256";
+    private static final String INDEX_FILE_NAME = ".chatapp-index2";
+    private static final String OLD_INDEX_FILE_NAME = ".chatapp-index"; // Whole-file hashes, no longer valid
+    private static final int MIN_COMPACT_LINES = 64;
+
+    // One index per downloads directory, shared by every connection
+    private static final Map<File, ContentIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final File indexFile;
+    private final Map<String, Entry> entriesByPath = new HashMap<>();
+    private final Map<String, Set<String>> pathsByHash = new HashMap<>();
+    private int logLines = 0;
+
+    private ContentIndex(File directory) {
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        new File(directory, OLD_INDEX_FILE_NAME).delete();
+        load();
+    }
+
+    public static ContentIndex forDirectory(File directory) {
+        return INDEXES.computeIfAbsent(directory.getAbsoluteFile(), ContentIndex::new);
+    }
+
+    /**
+     * Returns the content hash of a file, hashing it only if the index has no
+     * entry for its current size and modification time.
+     */
+    public String hashOf(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        synchronized (this) {
+            Entry entry = entriesByPath.get(path);
+            if (entry != null && entry.matches(file)) {
+                return entry.hash;
+            }
+        }
+
+        String hash = hash(file);
+        put(file, hash);
+        return hash;
+    }
+
+    /**
+     * Finds a local file with the given content, or null if there is none.
+     */
+    public synchronized File find(String hash, long size) {
+        Set<String> paths = pathsByHash.get(hash);
+        if (paths == null) {
+            return null;
+        }
+        for (String path : new ArrayList<>(paths)) {
+            Entry entry = entriesByPath.get(path);
+            File file = new File(path);
+            if (entry.size == size && entry.matches(file)) {
+                return file;
+            }
+            remove(path); // Deleted or changed since it was indexed
+        }
+        return null;
+    }
+
+    /**
+     * Records the content hash of a file as it is now on disk.
+     */
+    public void put(File file, String hash) {
+        if (hash == null || hash.isEmpty()) {
+            return;
+        }
+        try {
+            Entry entry = new Entry(file.getCanonicalPath(), file.length(), file.lastModified(), hash);
+            synchronized (this) {
+                add(entry);
+                append(entry);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not update content index: " + e.getMessage());
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Hashes a whole file.
+     */
+    public static String hash(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return MerkleTree.root(channel, channel.size());
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try {
+            // Line format: hash, size, modification time, path; later lines replace earlier ones
+            for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    add(new Entry(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                    logLines++;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not read content index: " + e.getMessage());
+        }
+    }
+
+    private void add(Entry entry) {
+        remove(entry.path);
+        entriesByPath.put(entry.path, entry);
+        pathsByHash.computeIfAbsent(entry.hash, hash -> new LinkedHashSet<>()).add(entry.path);
+    }
+
+    private void remove(String path) {
+        Entry entry = entriesByPath.remove(path);
+        if (entry == null) {
+            return;
+        }
+        Set<String> paths = pathsByHash.get(entry.hash);
+        paths.remove(path);
+        if (paths.isEmpty()) {
+            pathsByHash.remove(entry.hash);
+        }
+    }
+
+    private void append(Entry entry) throws IOException {
+        File directory = indexFile.getParentFile();
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (logLines >= MIN_COMPACT_LINES && logLines > 2 * entriesByPath.size()) {
+            compact();
+            return;
+        }
+        Files.write(indexFile.toPath(), (entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logLines++;
+    }
+
+    // Rewrites the log with only the live entries
+    private void compact() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entriesByPath.values()) {
+            lines.add(entry.toLine());
+        }
+        File temp = new File(indexFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        IncomingTransfer.moveIntoPlace(temp, indexFile);
+        logLines = lines.size();
+    }
+
+    private static class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        Entry(String path, long size, long lastModified, String hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        boolean matches(File file) {
+            return file.isFile() && file.length() == size && file.lastModified() == lastModified;
+        }
+
+        String toLine() {
+            return hash + "\t" + size + "\t" + lastModified + "\t" + path;
+        }
+    }
+}
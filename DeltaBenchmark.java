@@ -0,0 +1,219 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a large file from the client to a receiver over an in-memory pipe
+ * with limited bandwidth, then a copy of it with a few small edits and a
+ * short insertion in the middle, which the receiver gets as a delta against
+ * the first. The time of both and the bytes the delta saved are printed,
+ * followed by the time to sign the file and to match the edited copy against
+ * the signatures on every core and on one thread.
+ *
+ * Usage: java com.chatapp.DeltaBenchmark [file MB] [edits] [link MB/s]
+ */
+public final class DeltaBenchmark {
+    private static final int PIPE_PORT = 5558;
+    private static final int EDIT_SIZE = 64;
+    private static final int INSERT_SIZE = 4096;
+
+    private DeltaBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int edits = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long bytesPerSecond = (long) ((args.length > 2 ? Double.parseDouble(args[2]) : 50) * 1024 * 1024);
+
+        File directory = Files.createTempDirectory("chatapp-delta").toFile();
+        File original = new File(directory, "v1" + File.separator + "image.bin");
+        File edited = new File(directory, "v2" + File.separator + "image.bin");
+        original.getParentFile().mkdirs();
+        edited.getParentFile().mkdirs();
+        PeerBenchmark.writeRandomFile(original, fileMegabytes * 1024L * 1024);
+        edit(original, edited, edits);
+        System.out.printf("Pipe, %.0f MB/s, %d MB file, %d edits of %d bytes and %d bytes inserted%n",
+                bytesPerSecond / (1024.0 * 1024.0), fileMegabytes, edits, EDIT_SIZE, INSERT_SIZE);
+
+        Endpoint receiver = new Endpoint();
+        PipeTransport pipe = new PipeTransport(0, bytesPerSecond);
+        AutoCloseable pipeEndpoint = PeerBenchmark.serve(pipe.listen(PIPE_PORT), new File(directory, "downloads"),
+                receiver);
+        Endpoint sender = new Endpoint();
+        PeerClient client = new PeerClient(pipe, "localhost", PIPE_PORT, new File(directory, "client"), sender);
+        client.start();
+        sender.connected.get(30, TimeUnit.SECONDS);
+
+        // The receiver has nothing yet, so the whole file goes out
+        sender.reset();
+        long startTime = System.nanoTime();
+        client.sendFile(original);
+        sender.sent.get(10, TimeUnit.MINUTES);
+        report("whole file", original.length(), sender.savedBytes, System.nanoTime() - startTime);
+
+        // Then only what differs from its copy
+        sender.reset();
+        startTime = System.nanoTime();
+        client.sendFile(edited);
+        sender.sent.get(10, TimeUnit.MINUTES);
+        report("delta", edited.length(), sender.savedBytes, System.nanoTime() - startTime);
+
+        client.close();
+        pipeEndpoint.close();
+
+        try (FileChannel basis = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+                FileChannel source = FileChannel.open(edited.toPath(), StandardOpenOption.READ)) {
+            ForkJoinPool single = new ForkJoinPool(1);
+            FileDelta.Signatures signatures = FileDelta.sign(basis, basis.size()); // Warm up the page cache
+            time("sign, parallel", () -> FileDelta.sign(basis, basis.size()));
+            time("sign, serial", () -> single.submit(() -> FileDelta.sign(basis, basis.size())).get());
+            List<long[]> runs = time("match, parallel",
+                    () -> FileDelta.match(source, source.size(), signatures));
+            time("match, serial", () -> single.submit(() -> FileDelta.match(source, source.size(), signatures)).get());
+            System.out.printf("%d blocks of %d KB, %d runs matched%n", signatures.getCount(),
+                    signatures.getBlockSize() / 1024, runs.size());
+            single.shutdown();
+        }
+    }
+
+    // Overwrites a few bytes at evenly spaced places and inserts a few in the middle
+    private static void edit(File original, File edited, int edits) throws IOException {
+        Random random = new Random(7);
+        long size = original.length();
+        try (FileChannel input = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+                FileChannel output = FileChannel.open(edited.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long middle = size / 2;
+            input.transferTo(0, middle, output);
+            byte[] inserted = new byte[INSERT_SIZE];
+            random.nextBytes(inserted);
+            output.write(ByteBuffer.wrap(inserted));
+            input.transferTo(middle, size - middle, output);
+        }
+        try (RandomAccessFile access = new RandomAccessFile(edited, "rw")) {
+            byte[] bytes = new byte[EDIT_SIZE];
+            for (int i = 0; i < edits; i++) {
+                random.nextBytes(bytes);
+                access.seek((access.length() - EDIT_SIZE) * (2L * i + 1) / (2L * edits));
+                access.write(bytes);
+            }
+        }
+    }
+
+    private static void report(String label, long bytes, long savedBytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-12s %8.1f MB/s  %8.1f MB saved  (%.2f s)%n", label, bytes / seconds / (1024 * 1024),
+                savedBytes / (1024.0 * 1024.0), seconds);
+    }
+
+    private static <T> T time(String label, Callable<T> task) throws Exception {
+        long startTime = System.nanoTime();
+        T result = task.call();
+        System.out.printf("%-16s %8.0f ms%n", label, (System.nanoTime() - startTime) / 1e6);
+        return result;
+    }
+
+    // Both ends' callbacks; the sender's finished files are what is timed
+    private static class Endpoint implements PeerClient.Listener {
+        private final CompletableFuture<String> connected = new CompletableFuture<>();
+        private volatile CompletableFuture<String> sent = new CompletableFuture<>();
+        private volatile long savedBytes;
+
+        void reset() {
+            sent = new CompletableFuture<>();
+            savedBytes = 0;
+        }
+
+        @Override
+        public void onConnected(String peer) {
+            connected.complete(peer);
+        }
+
+        @Override
+        public void onStopped(String reason) {
+            connected.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes,
+                long resentBytes) {
+            this.savedBytes = savedBytes;
+            sent.complete(fileName);
+        }
+
+        @Override
+        public void onFileSendFailed(String fileName, String reason) {
+            sent.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+            System.out.println("Receive failed: " + reason);
+        }
+
+        @Override
+        public void onMessage(String peer, String message) {
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onReconnecting(String reason, long delayMillis) {
+        }
+
+        @Override
+        public void onMessageQueued(String message) {
+        }
+
+        @Override
+        public void onMessagesSent(long upToSequence) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        }
+
+        @Override
+        public void onFileSending(String fileName, long fileSize) {
+        }
+
+        @Override
+        public void onFileAccepted(String fileName, long fileSize, long offset) {
+        }
+    }
+}
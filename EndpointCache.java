@@ -0,0 +1,85 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Servers this user connected to successfully, most recent first, kept on
+ * disk so they can be picked again after a restart without typing them or
+ * waiting for discovery.
+ *
+ * The cache is a small text file in the user's home directory, rewritten
+ * whenever a connection succeeds. Only the last MAX_ENTRIES endpoints are
+ * kept.
+ */
+public class EndpointCache {
+    private static final String CACHE_FILE_NAME = ".chatapp-endpoints";
+    private static final int MAX_ENTRIES = 10;
+
+    private final File cacheFile;
+    private final List<PeerDiscovery.Endpoint> endpoints = new ArrayList<>();
+
+    public EndpointCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    public static EndpointCache forUser() {
+        return new EndpointCache(new File(System.getProperty("user.home"), CACHE_FILE_NAME));
+    }
+
+    /**
+     * @return The remembered endpoints, most recently used first
+     */
+    public synchronized List<PeerDiscovery.Endpoint> getEndpoints() {
+        return new ArrayList<>(endpoints);
+    }
+
+    /**
+     * Moves an endpoint to the front after a successful connection, and
+     * saves the cache.
+     */
+    public synchronized void remember(PeerDiscovery.Endpoint endpoint) {
+        endpoints.remove(endpoint);
+        endpoints.add(0, endpoint);
+        while (endpoints.size() > MAX_ENTRIES) {
+            endpoints.remove(endpoints.size() - 1);
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            System.out.println("Could not save recent servers: " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try {
+            // Line format: host, port, name
+            for (String line : Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3 && endpoints.size() < MAX_ENTRIES) {
+                    endpoints.add(new PeerDiscovery.Endpoint(fields[2], fields[0], Integer.parseInt(fields[1])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Could not read recent servers: " + e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (PeerDiscovery.Endpoint endpoint : endpoints) {
+            lines.add(endpoint.getHost() + "\t" + endpoint.getPort() + "\t" + endpoint.getName().replace('\t', ' '));
+        }
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        IncomingTransfer.moveIntoPlace(temp, cacheFile);
+    }
+}
@@ -0,0 +1,164 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Files picked to be sent together, a folder or several files at once,
+ * listed as entries with a path relative to the bundle and a size, so the
+ * whole manifest is known before any data is sent. A folder keeps its
+ * structure, including empty directories; several files picked in one folder
+ * are sent as a bundle named after that folder. Symbolic links are skipped,
+ * as they may point outside what was picked.
+ *
+ * See {@link IncomingBundle} for the receiving side, and
+ * {@link FileTransfers#sendBundle} for how it is sent.
+ */
+public final class FileBundle {
+    private final String name;
+    private final List<Entry> entries;
+    private final long totalSize;
+    private final int fileCount;
+
+    private FileBundle(String name, List<Entry> entries) {
+        this.name = name;
+        this.entries = Collections.unmodifiableList(entries);
+        long size = 0;
+        int files = 0;
+        for (Entry entry : entries) {
+            if (entry.size >= 0) {
+                size += entry.size;
+                files++;
+            }
+        }
+        this.totalSize = size;
+        this.fileCount = files;
+    }
+
+    /**
+     * Lists a folder, or several files and folders, as a bundle.
+     */
+    public static FileBundle of(List<File> selection) throws IOException {
+        if (selection.isEmpty()) {
+            throw new IOException("Nothing to send");
+        }
+        List<Entry> entries = new ArrayList<>();
+        String name = nameOf(selection);
+        File first = selection.get(0).getAbsoluteFile();
+        if (selection.size() == 1 && first.isDirectory()) {
+            for (File child : listSorted(first)) {
+                add(child, child.getName(), entries);
+            }
+        } else {
+            for (File file : selection) {
+                add(file, file.getName(), entries);
+            }
+        }
+        // Fail here with a clear message rather than have the receiver reject the bundle
+        IncomingBundle.checkPath(name);
+        for (Entry entry : entries) {
+            IncomingBundle.checkPath(entry.path);
+        }
+        return new FileBundle(name, entries);
+    }
+
+    /**
+     * The name a selection is sent under: the folder's own name, or that of
+     * the folder the files were picked from.
+     */
+    public static String nameOf(List<File> selection) {
+        if (selection.isEmpty()) {
+            return "files";
+        }
+        File first = selection.get(0).getAbsoluteFile();
+        if (selection.size() == 1 && first.isDirectory()) {
+            return first.getName();
+        }
+        File parent = first.getParentFile();
+        return parent != null && !parent.getName().isEmpty() ? parent.getName() : "files";
+    }
+
+    private static void add(File file, String path, List<Entry> entries) throws IOException {
+        if (Files.isSymbolicLink(file.toPath())) {
+            return;
+        }
+        if (file.isDirectory()) {
+            File[] children = listSorted(file);
+            if (children.length == 0) {
+                entries.add(new Entry(file, path, -1));
+            }
+            for (File child : children) {
+                add(child, path + "/" + child.getName(), entries);
+            }
+        } else if (file.isFile()) {
+            entries.add(new Entry(file, path, file.length()));
+        }
+    }
+
+    private static File[] listSorted(File directory) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Could not read folder " + directory);
+        }
+        Arrays.sort(children, Comparator.comparing(File::getName));
+        return children;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return Bytes of all files together
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * One file, or an empty directory, of a bundle.
+     */
+    public static final class Entry {
+        private final File file;
+        private final String path;
+        private final long size;
+
+        Entry(File file, String path, long size) {
+            this.file = file;
+            this.path = path;
+            this.size = size;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The path within the bundle, with '/' between names
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The file's size, or -1 for an empty directory
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
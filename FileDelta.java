@@ -0,0 +1,432 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Delta transfer of a file the receiver has an older version of, the way
+ * rsync does it. The receiver cuts its copy, the basis, into blocks and sends
+ * a signature of each: a weak checksum that can be rolled along a byte at a
+ * time, and a strong hash. The sender slides a window over its file,
+ * updating the weak checksum in constant time per byte, and where it matches
+ * a block whose strong hash also matches, has the receiver copy that block
+ * from its basis instead of sending the bytes. Everything between matches is
+ * sent as ordinary file data, so an edit costs about the bytes changed plus
+ * a block, wherever it is and even if it shifts the rest of the file.
+ *
+ * Blocks are about the square root of the basis size, between 2KB and 128KB,
+ * so a 300MB file has about 17,000 signatures of 20 bytes. Both sides use
+ * every core: the receiver signs blocks in parallel, and the sender cuts its
+ * file into segments that are scanned in parallel and whose matches are
+ * joined in order afterwards.
+ *
+ * Only whole blocks are signed, so the tail of the basis is always sent. A
+ * block picked wrongly, because both hashes collided or the basis changed,
+ * does not go unnoticed: the content hash of the whole file is still checked
+ * and the ranges that differ sent again, see {@link IncomingTransfer}.
+ */
+public final class FileDelta {
+    public static final String DISABLE_DELTA_PROPERTY = "chatapp.disableDelta";
+    private static final boolean DELTA_ENABLED = !Boolean.getBoolean(DISABLE_DELTA_PROPERTY);
+    public static final long MIN_BASIS_SIZE = 1024 * 1024; // Smaller files are sent whole
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    public static final int MAX_BLOCKS = 1 << 20; // 20MB of signatures; larger files are sent whole
+    public static final int STRONG_SIZE = 16; // MD5
+    public static final int SIGNATURE_SIZE = 4 + STRONG_SIZE;
+    private static final String STRONG_ALGORITHM = "MD5";
+    private static final long MIN_SEGMENT_SIZE = 4L * 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024; // Mapped at once by one worker
+
+    // Buffers for signing blocks read from disk, one per worker thread
+    private static final ThreadLocal<byte[]> BLOCK_BUFFERS = ThreadLocal.withInitial(() -> new byte[MAX_BLOCK_SIZE]);
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(FileDelta::newStrongDigest);
+
+    private FileDelta() {
+    }
+
+    public static boolean isEnabled() {
+        return DELTA_ENABLED;
+    }
+
+    /**
+     * Returns true if a file of this size is worth sending signatures for.
+     */
+    public static boolean canBeBasis(long size) {
+        return size >= MIN_BASIS_SIZE && size / blockSize(size) <= MAX_BLOCKS;
+    }
+
+    /**
+     * Block size for a basis: about its square root, in whole kilobytes.
+     */
+    public static int blockSize(long basisSize) {
+        long root = (long) Math.sqrt((double) basisSize);
+        long rounded = (root + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, rounded));
+    }
+
+    /**
+     * Signs every whole block of the first size bytes of a basis, in parallel.
+     */
+    public static Signatures sign(FileChannel basis, long size) throws IOException {
+        int blockSize = blockSize(size);
+        Signatures signatures = new Signatures(blockSize, (int) Math.min(MAX_BLOCKS, size / blockSize));
+        try {
+            IntStream.range(0, signatures.count).parallel().forEach(block -> {
+                try {
+                    signBlock(basis, signatures, block);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return signatures;
+    }
+
+    private static void signBlock(FileChannel basis, Signatures signatures, int block) throws IOException {
+        int blockSize = signatures.blockSize;
+        byte[] data = BLOCK_BUFFERS.get();
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, blockSize);
+        long position = (long) block * blockSize;
+        while (buffer.hasRemaining()) {
+            if (basis.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File ended while signing");
+            }
+        }
+        signatures.weak[block] = weakChecksum(data, blockSize);
+        MessageDigest digest = DIGESTS.get();
+        digest.update(data, 0, blockSize);
+        System.arraycopy(digest.digest(), 0, signatures.strong, block * STRONG_SIZE, STRONG_SIZE);
+    }
+
+    /**
+     * Finds the blocks of a basis that a file contains, scanning segments of
+     * the file in parallel.
+     *
+     * @return Runs of blocks in file order, each as the position in the file,
+     *         the first block and the number of consecutive blocks; the gaps
+     *         between them are data the basis does not have
+     */
+    public static List<long[]> match(FileChannel source, long size, Signatures signatures) throws IOException {
+        int blockSize = signatures.blockSize;
+        if (signatures.count == 0 || size < blockSize) {
+            return new ArrayList<>();
+        }
+        BlockTable table = new BlockTable(signatures);
+        int workers = Runtime.getRuntime().availableProcessors();
+        long segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, (size + workers - 1) / workers));
+        int segments = (int) ((size + segmentSize - 1) / segmentSize);
+        List<List<long[]>> found;
+        try {
+            found = IntStream.range(0, segments).parallel().mapToObj(segment -> {
+                try {
+                    long start = segment * segmentSize;
+                    return scan(source, size, start, Math.min(size, start + segmentSize), table);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // A segment's first match may overlap the previous segment's last one; keep the earlier
+        List<long[]> runs = new ArrayList<>();
+        long end = 0;
+        for (List<long[]> segmentRuns : found) {
+            for (long[] run : segmentRuns) {
+                if (run[0] < end) {
+                    long overlap = (end - run[0] + blockSize - 1) / blockSize;
+                    if (overlap >= run[2]) {
+                        continue;
+                    }
+                    run = new long[] { run[0] + overlap * blockSize, run[1] + overlap, run[2] - overlap };
+                }
+                addRun(runs, run[0], run[1], run[2], blockSize);
+                end = run[0] + run[2] * blockSize;
+            }
+        }
+        return runs;
+    }
+
+    // Slides the window over every start position in [start, end), reading up to a block past the end
+    private static List<long[]> scan(FileChannel source, long size, long start, long end, BlockTable table)
+            throws IOException {
+        List<long[]> runs = new ArrayList<>();
+        int blockSize = table.signatures.blockSize;
+        int limit = (int) (Math.min(end, size - blockSize + 1) - start); // Positions past this have no whole window
+        if (limit <= 0) {
+            return runs;
+        }
+        MappedByteBuffer data = source.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(size, end + blockSize - 1) - start);
+        MessageDigest digest = DIGESTS.get();
+        int a = 0;
+        int b = 0;
+        boolean fresh = true;
+        int expected = -1; // The block after the last match, tried first
+        int position = 0;
+        while (position < limit) {
+            if (fresh) {
+                a = 0;
+                b = 0;
+                for (int i = position; i < position + blockSize; i++) {
+                    a += data.get(i) & 0xFF;
+                    b += a;
+                }
+                fresh = false;
+            }
+            int block = table.find((a & 0xFFFF) | (b << 16), data, position, expected, digest);
+            if (block >= 0) {
+                addRun(runs, start + position, block, 1, blockSize);
+                expected = block + 1;
+                position += blockSize;
+                fresh = true;
+                continue;
+            }
+            if (position + 1 < limit) {
+                int out = data.get(position) & 0xFF;
+                a += (data.get(position + blockSize) & 0xFF) - out;
+                b += a - blockSize * out;
+            }
+            position++;
+        }
+        return runs;
+    }
+
+    // Appends blocks, extending the last run when they follow on from it in both files
+    private static void addRun(List<long[]> runs, long position, long first, long count, int blockSize) {
+        long[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+        if (last != null && last[0] + last[2] * blockSize == position && last[1] + last[2] == first) {
+            last[2] += count;
+        } else {
+            runs.add(new long[] { position, first, count });
+        }
+    }
+
+    /**
+     * The weak checksum of rsync: the sum of the bytes and the sum of those
+     * sums, 16 bits each.
+     */
+    static int weakChecksum(byte[] data, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance(STRONG_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(STRONG_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * The signatures of a basis: computed by the receiver, or collected by
+     * the sender from FILE_SIGNATURES frames, which may arrive on another
+     * thread than the one waiting for them.
+     */
+    public static final class Signatures {
+        private int blockSize;
+        private int count = -1; // Unknown until the first frame
+        private int[] weak;
+        private byte[] strong;
+        private int added = 0;
+        private final CompletableFuture<Signatures> complete = new CompletableFuture<>();
+
+        /**
+         * Creates signatures to be filled in from frames.
+         */
+        public Signatures() {
+        }
+
+        private Signatures(int blockSize, int count) {
+            this.blockSize = blockSize;
+            this.count = count;
+            this.weak = new int[count];
+            this.strong = new byte[count * STRONG_SIZE];
+            this.added = count;
+            complete.complete(this);
+        }
+
+        /**
+         * Signatures of nothing, for a basis that could not be read; the
+         * sender then sends the whole file.
+         */
+        public static Signatures none() {
+            return new Signatures(MIN_BLOCK_SIZE, 0);
+        }
+
+        /**
+         * Reads the rest of a FILE_SIGNATURES payload, after its transferId.
+         */
+        public synchronized void add(ByteBuffer payload) throws IOException {
+            int size = FrameCodec.getVarInt(payload);
+            int first = FrameCodec.getVarInt(payload);
+            int total = FrameCodec.getVarInt(payload);
+            if (count < 0) {
+                if (size < MIN_BLOCK_SIZE || size > MAX_BLOCK_SIZE || total < 0 || total > MAX_BLOCKS) {
+                    throw new IOException("Invalid signatures: " + total + " blocks of " + size + " bytes");
+                }
+                blockSize = size;
+                count = total;
+                weak = new int[total];
+                strong = new byte[total * STRONG_SIZE];
+            }
+            int entries = payload.remaining() / SIGNATURE_SIZE;
+            if (size != blockSize || total != count || first < 0 || first + entries > count) {
+                throw new IOException("Signatures do not fit: " + first + "+" + entries + " of " + count);
+            }
+            for (int block = first; block < first + entries; block++) {
+                weak[block] = payload.getInt();
+                payload.get(strong, block * STRONG_SIZE, STRONG_SIZE);
+            }
+            added += entries;
+            if (added >= count) {
+                complete.complete(this);
+            }
+        }
+
+        /**
+         * Writes the signatures of blocks [first, first + entries) to a payload.
+         */
+        synchronized void put(ByteBuffer payload, int first, int entries) {
+            for (int block = first; block < first + entries; block++) {
+                payload.putInt(weak[block]);
+                payload.put(strong, block * STRONG_SIZE, STRONG_SIZE);
+            }
+        }
+
+        /**
+         * Waits until every signature has arrived.
+         */
+        public Signatures await(long timeoutMillis) throws IOException {
+            try {
+                return complete.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("Peer did not send the signatures of its copy");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for signatures");
+            }
+        }
+
+        /**
+         * Stops any wait for signatures that will never arrive.
+         */
+        public void fail(IOException e) {
+            complete.completeExceptionally(e);
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * @return How many blocks are signed, or -1 before the first frame
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    // Open addressing from weak checksum to block; blocks with the same signature are only kept once
+    private static final class BlockTable {
+        private final Signatures signatures;
+        private final int[] slots; // Block + 1, or 0 for empty
+        private final int mask;
+
+        BlockTable(Signatures signatures) {
+            this.signatures = signatures;
+            this.slots = new int[Integer.highestOneBit(Math.max(1, signatures.count)) * 4];
+            this.mask = slots.length - 1;
+            for (int block = 0; block < signatures.count; block++) {
+                int slot = slot(signatures.weak[block]);
+                boolean duplicate = false;
+                while (slots[slot] != 0 && !duplicate) {
+                    duplicate = sameSignature(slots[slot] - 1, block);
+                    slot = (slot + 1) & mask;
+                }
+                if (!duplicate) {
+                    slots[slot] = block + 1;
+                }
+            }
+        }
+
+        private int slot(int weak) {
+            return (weak * 0x9E3779B9) >>> 7 & mask;
+        }
+
+        private boolean sameSignature(int block, int other) {
+            return signatures.weak[block] == signatures.weak[other]
+                    && sameBytes(signatures.strong, block * STRONG_SIZE, signatures.strong, other * STRONG_SIZE);
+        }
+
+        // The block the window at position matches, or -1; the strong hash is only computed on a weak match
+        int find(int weak, MappedByteBuffer data, int position, int expected, MessageDigest digest) {
+            byte[] hash = null;
+            if (expected >= 0 && expected < signatures.count && signatures.weak[expected] == weak) {
+                hash = hashWindow(data, position, digest);
+                if (strongMatches(hash, expected)) {
+                    return expected;
+                }
+            }
+            for (int slot = slot(weak); slots[slot] != 0; slot = (slot + 1) & mask) {
+                int block = slots[slot] - 1;
+                if (signatures.weak[block] != weak) {
+                    continue;
+                }
+                if (hash == null) {
+                    hash = hashWindow(data, position, digest);
+                }
+                if (strongMatches(hash, block)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private byte[] hashWindow(MappedByteBuffer data, int position, MessageDigest digest) {
+            ByteBuffer window = data.duplicate();
+            window.limit(position + signatures.blockSize).position(position);
+            digest.update(window);
+            return digest.digest();
+        }
+
+        private boolean strongMatches(byte[] hash, int block) {
+            return sameBytes(hash, 0, signatures.strong, block * STRONG_SIZE);
+        }
+
+        // Compares one strong hash in each array; Arrays.equals over ranges needs Java 9
+        private static boolean sameBytes(byte[] a, int aOffset, byte[] b, int bOffset) {
+            for (int i = 0; i < STRONG_SIZE; i++) {
+                if (a[aOffset + i] != b[bOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,673 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Payload helpers for the file transfer frames, shared by the client
+ * connection and the multi-client server, plus the sender side of file
+ * data, streamed, striped, as a delta or bundled.
+ */
+public final class FileTransfers {
+    public static final int FILE_CHUNK_SIZE = 256 * 1024; // 256KB of raw file data per chunk
+
+    // Striped transfers: -Dchatapp.stripes=N forces N data connections, 1 disables striping, 0 picks automatically
+    public static final String STRIPES_PROPERTY = "chatapp.stripes";
+    private static final int MAX_STRIPES = 8;
+    private static final long MIN_STRIPED_FILE_SIZE = 32L * 1024 * 1024; // Smaller files are not worth the extra connects
+    private static final long BYTES_PER_STRIPE = 64L * 1024 * 1024;
+    private static final int STRIPE_SOCKET_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB per data connection
+
+    // Checksummed transfers
+    private static final int DATA_PREFIX_SIZE = 10 + 10 + 4; // transferId, offset, CRC32
+    public static final int MAX_REPAIR_RANGES = 4096; // Per FILE_REPAIR; the rest are asked for in a later round
+    private static final long VERIFY_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    // Bundles: manifest frames are cut at this size, well under the payload limit
+    private static final int MANIFEST_FRAME_SIZE = 64 * 1024;
+
+    private FileTransfers() {
+    }
+
+    /**
+     * Returns a key that stays the same when the same, unchanged file is sent
+     * again, so the receiver can match it with a part file from an earlier,
+     * interrupted attempt.
+     */
+    public static String resumeKey(File file) throws IOException {
+        String identity = file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified();
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Name of the part file a transfer is received into before it is complete.
+     */
+    public static File partFile(File downloadsDir, String fileName, String resumeKey) {
+        return new File(downloadsDir, fileName + "." + resumeKey + ".part");
+    }
+
+    /**
+     * Returns how many parallel data connections to stripe a file over, or 1
+     * to send it over the control connection as usual. Unless forced, large
+     * files get one stripe per 64MB, up to a small cap.
+     */
+    public static int stripeCount(long fileSize) {
+        int configured = Integer.getInteger(STRIPES_PROPERTY, 0);
+        if (configured > 0) {
+            return Math.min(configured, MAX_STRIPES);
+        }
+        if (fileSize < MIN_STRIPED_FILE_SIZE) {
+            return 1;
+        }
+        return (int) Math.max(2, Math.min(MAX_STRIPES, fileSize / BYTES_PER_STRIPE));
+    }
+
+    public static ByteBuffer encodeFileStart(long transferId, long fileSize, String fileName, String resumeKey,
+            String contentHash) {
+        return encodeFileStart(transferId, fileSize, fileName, resumeKey, contentHash, 0);
+    }
+
+    /**
+     * @param contentHash Hash of the file's content, so a peer that already has it can skip the data
+     * @param stripeToken Token the ranges of a striped transfer are sent under, or 0 if not striped
+     */
+    public static ByteBuffer encodeFileStart(long transferId, long fileSize, String fileName, String resumeKey,
+            String contentHash, long stripeToken) {
+        ByteBuffer payload = ByteBuffer.allocate(30 + FrameCodec.stringSize(fileName) + FrameCodec.stringSize(resumeKey)
+                + FrameCodec.stringSize(contentHash));
+        FrameCodec.putVarLong(payload, transferId);
+        FrameCodec.putVarLong(payload, fileSize);
+        FrameCodec.putString(payload, fileName);
+        FrameCodec.putString(payload, resumeKey);
+        FrameCodec.putString(payload, contentHash);
+        if (stripeToken != 0) {
+            FrameCodec.putVarLong(payload, stripeToken);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Sends a whole file as stripes: the file is cut into one contiguous byte
+     * range per data connection and the ranges are sent in parallel, each as
+     * FILE_RANGE frames with zero-copy transfers. Data connections are opened
+     * through the given transport, and all stripes draw on the same rate
+     * limiter when one is given. Returns once every range has been written;
+     * the caller then sends FILE_END on the control connection.
+     */
+    public static void sendStriped(Transport transport, String host, int port, FileChannel fileChannel,
+            long fileSize, long stripeToken, int stripes, RateLimiter limiter) throws IOException {
+        long stripeSize = (fileSize + stripes - 1) / stripes;
+        List<Future<Void>> ranges = new ArrayList<>();
+        for (int i = 0; i < stripes; i++) {
+            long start = i * stripeSize;
+            long end = Math.min(fileSize, start + stripeSize);
+            if (start >= end) {
+                break;
+            }
+            ranges.add(ConnectionExecutors.submit("FileStripe-" + i, () -> {
+                sendRange(transport, host, port, fileChannel, stripeToken, start, end, limiter);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<Void> range : ranges) {
+                range.get();
+            }
+        } catch (ExecutionException e) {
+            for (Future<Void> range : ranges) {
+                range.cancel(true);
+            }
+            throw new IOException("Striped transfer failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending file stripes");
+        }
+    }
+
+    private static void sendRange(Transport transport, String host, int port, FileChannel fileChannel,
+            long stripeToken, long start, long end, RateLimiter limiter) throws IOException {
+        try (Transport.Connection dataConnection = transport.connect(host, port, STRIPE_SOCKET_BUFFER_SIZE)) {
+            FrameWriter writer = new FrameWriter(dataConnection.output());
+            writer.writePreamble(FrameCodec.ROLE_DATA);
+            ByteBuffer prefix = ByteBuffer.allocate(20);
+            long position = start;
+            while (position < end) {
+                int length = (int) Math.min(FILE_CHUNK_SIZE, end - position);
+                if (limiter != null) {
+                    limiter.acquire(length);
+                }
+                writer.writeFileRegion(FrameType.FILE_RANGE, 0, encodeRangePrefix(prefix, stripeToken, position),
+                        fileChannel, position, length);
+                position += length;
+            }
+            dataConnection.shutdownOutput();
+
+            // Wait for the server to close its side. This also reads its preamble: closing a socket
+            // with unread input sends a reset, which would make the server drop our last ranges.
+            ByteBuffer drain = ByteBuffer.allocate(64);
+            while (dataConnection.input().read(drain) >= 0) {
+                drain.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends a file from an offset as FILE_DATA frames on a stream, then
+     * FILE_END, and waits until all of it has been written. Chunks are
+     * compressed when a compressor is given and carry a CRC32 when the
+     * receiver checks them; when the transfer is flow controlled each chunk
+     * waits for the receiver's credit and chunks are sized from the measured
+     * round trip and throughput.
+     *
+     * @return The number of bytes compression saved
+     */
+    public static long sendChunks(OutboundWriter.Stream stream, FileChannel fileChannel, long offset, long fileSize,
+            ChunkCompressor compressor, FlowControl.Sender credit, boolean checksums) throws IOException {
+        // Each chunk is its own frame, so chat and typing frames can still be interleaved between chunks
+        ChunkSender chunks = new ChunkSender(stream, fileChannel, compressor, checksums);
+        long position = offset;
+        try {
+            while (position < fileSize) {
+                int chunkSize = credit != null ? credit.chunkSize() : FILE_CHUNK_SIZE;
+                int length = (int) Math.min(chunkSize, fileSize - position);
+                if (credit != null) {
+                    length = credit.awaitCredit(position, length);
+                }
+                chunks.send(position, length, false);
+                position += length;
+                if (credit != null) {
+                    credit.onSent(position);
+                }
+            }
+        } catch (IOException e) {
+            // Let chunks already queued go out before the file channel is closed
+            try {
+                stream.flush();
+            } catch (IOException flushFailure) {
+                /* Ignore, the original failure is reported */ }
+            throw e;
+        }
+
+        // Trailer frame
+        stream.send(FrameType.FILE_END, 0, encodeTransferId(stream.getId()));
+        stream.flush(); // Wait for the writer thread to put the whole file on the wire
+        return chunks.savedBytes;
+    }
+
+    /**
+     * Sends a file as a delta against the receiver's older copy: the data
+     * between the given runs of matching blocks as FILE_DATA frames, as
+     * sendChunks does, and each run as a FILE_COPY frame in its place on the
+     * stream, then FILE_END, and waits until all of it has been written.
+     *
+     * @param runs Runs of blocks from {@link FileDelta#match}
+     * @return The number of bytes copies and compression saved
+     */
+    public static long sendDelta(OutboundWriter.Stream stream, FileChannel fileChannel, long fileSize,
+            List<long[]> runs, int blockSize, ChunkCompressor compressor, boolean checksums) throws IOException {
+        ChunkSender chunks = new ChunkSender(stream, fileChannel, compressor, checksums);
+        long copied = 0;
+        long position = 0;
+        try {
+            for (long[] run : runs) {
+                sendLiteral(chunks, position, run[0]);
+                stream.send(FrameType.FILE_COPY, 0, encodeFileCopy(stream.getId(), run[1], run[2]));
+                position = run[0] + run[2] * blockSize;
+                copied += run[2] * blockSize;
+            }
+            sendLiteral(chunks, position, fileSize);
+        } catch (IOException e) {
+            try {
+                stream.flush();
+            } catch (IOException flushFailure) {
+                /* Ignore, the original failure is reported */ }
+            throw e;
+        }
+
+        stream.send(FrameType.FILE_END, 0, encodeTransferId(stream.getId()));
+        stream.flush();
+        return copied + chunks.savedBytes;
+    }
+
+    private static void sendLiteral(ChunkSender chunks, long position, long end) throws IOException {
+        for (long offset = position; offset < end; offset += FILE_CHUNK_SIZE) {
+            chunks.send(offset, (int) Math.min(FILE_CHUNK_SIZE, end - offset), false);
+        }
+    }
+
+    /**
+     * Waits for the receiver of a checksummed transfer to verify the file
+     * after FILE_END. Ranges it asks for are sent again, followed by another
+     * FILE_END; when it asks for the file's leaf hashes they are computed on
+     * every core and sent, and it then asks for the leaves that differ.
+     *
+     * @return The number of bytes sent again
+     */
+    public static long awaitVerified(OutboundWriter.Stream stream, FileChannel fileChannel, long fileSize,
+            BlockingQueue<Verdict> verdicts) throws IOException {
+        ChunkSender chunks = new ChunkSender(stream, fileChannel, null, true);
+        long resent = 0;
+        while (true) {
+            Verdict verdict;
+            try {
+                verdict = verdicts.poll(VERIFY_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the peer to verify the file");
+            }
+            if (verdict == null) {
+                throw new IOException("Peer did not verify the file");
+            }
+            if (verdict.failure != null) {
+                throw new IOException(verdict.failure);
+            }
+            if (verdict.hashesWanted) {
+                byte[][] leaves = MerkleTree.leafHashes(fileChannel, fileSize);
+                for (ByteBuffer payload : encodeFileHashes(stream.getId(), leaves)) {
+                    stream.send(FrameType.FILE_HASHES, 0, payload);
+                }
+            } else if (verdict.ranges != null) {
+                for (long[] range : verdict.ranges) {
+                    long end = range[0] + range[1];
+                    if (range[0] < 0 || range[1] <= 0 || end > fileSize) {
+                        throw new IOException("Peer asked for an invalid range: " + range[0] + "+" + range[1]);
+                    }
+                    for (long position = range[0]; position < end; position += FILE_CHUNK_SIZE) {
+                        chunks.send(position, (int) Math.min(FILE_CHUNK_SIZE, end - position), true);
+                    }
+                    resent += range[1];
+                }
+                stream.send(FrameType.FILE_END, 0, encodeTransferId(stream.getId()));
+            } else {
+                return resent;
+            }
+            stream.flush();
+        }
+    }
+
+    /**
+     * Sends a bundle of files on a stream: BUNDLE_START and the manifest in
+     * BUNDLE_ENTRIES frames, then the contents of every file back to back as
+     * BUNDLE_DATA chunks, a chunk holding the end of one file and the start of
+     * the next, then BUNDLE_END with the CRC32 of the contents. Nothing is
+     * waited for until the receiver's FILE_DONE at the end, so a folder of
+     * small files goes out about as fast as one large file. A receiver that
+     * gives up early, as when its disk is too small, stops the sending at the
+     * next chunk.
+     */
+    public static void sendBundle(OutboundWriter.Stream stream, FileBundle bundle, BlockingQueue<Verdict> verdicts)
+            throws IOException {
+        long bundleId = stream.getId();
+        stream.send(FrameType.BUNDLE_START, 0, encodeBundleStart(bundleId, bundle));
+        for (ByteBuffer payload : encodeBundleEntries(bundleId, bundle.getEntries())) {
+            stream.send(FrameType.BUNDLE_ENTRIES, 0, payload);
+        }
+
+        CRC32 checksum = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(10 + FILE_CHUNK_SIZE);
+        FrameCodec.putVarLong(chunk, bundleId);
+        int dataStart = chunk.position();
+        for (FileBundle.Entry entry : bundle.getEntries()) {
+            if (entry.getSize() <= 0) {
+                continue;
+            }
+            try (FileChannel fileChannel = FileChannel.open(entry.getFile().toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < entry.getSize()) {
+                    if (!chunk.hasRemaining()) {
+                        sendBundleChunk(stream, chunk, dataStart, checksum, verdicts);
+                    }
+                    chunk.limit(chunk.position() + (int) Math.min(chunk.remaining(), entry.getSize() - position));
+                    while (chunk.hasRemaining()) {
+                        int read = fileChannel.read(chunk, position);
+                        if (read < 0) {
+                            throw new IOException("File changed while sending: " + entry.getPath());
+                        }
+                        position += read;
+                    }
+                    chunk.limit(chunk.capacity());
+                }
+            }
+        }
+        if (chunk.position() > dataStart) {
+            sendBundleChunk(stream, chunk, dataStart, checksum, verdicts);
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(14);
+        FrameCodec.putVarLong(end, bundleId);
+        end.putInt((int) checksum.getValue());
+        end.flip();
+        stream.send(FrameType.BUNDLE_END, 0, end);
+        stream.flush();
+
+        Verdict verdict;
+        try {
+            verdict = verdicts.poll(VERIFY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the peer to save the files");
+        }
+        if (verdict == null) {
+            throw new IOException("Peer did not confirm the files");
+        }
+        if (verdict.failure != null) {
+            throw new IOException(verdict.failure);
+        }
+    }
+
+    // Sends the chunk's data, then starts the next chunk after the bundle id
+    private static void sendBundleChunk(OutboundWriter.Stream stream, ByteBuffer chunk, int dataStart,
+            CRC32 checksum, BlockingQueue<Verdict> verdicts) throws IOException {
+        Verdict early = verdicts.peek();
+        if (early != null && early.failure != null) {
+            throw new IOException(early.failure);
+        }
+        chunk.flip();
+        ByteBuffer data = chunk.duplicate();
+        data.position(dataStart);
+        checksum.update(data);
+        stream.send(FrameType.BUNDLE_DATA, 0, chunk); // Copied into the frame, so the chunk can be reused
+        chunk.limit(chunk.capacity());
+        chunk.position(dataStart);
+    }
+
+    public static ByteBuffer encodeBundleStart(long bundleId, FileBundle bundle) {
+        ByteBuffer payload = ByteBuffer.allocate(25 + FrameCodec.stringSize(bundle.getName()));
+        FrameCodec.putVarLong(payload, bundleId);
+        FrameCodec.putVarInt(payload, bundle.getEntries().size());
+        FrameCodec.putVarLong(payload, bundle.getTotalSize());
+        FrameCodec.putString(payload, bundle.getName());
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Encodes a bundle's manifest as BUNDLE_ENTRIES payloads of about
+     * MANIFEST_FRAME_SIZE each.
+     */
+    public static List<ByteBuffer> encodeBundleEntries(long bundleId, List<FileBundle.Entry> entries) {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        int first = 0;
+        while (first < entries.size()) {
+            int size = 15;
+            int last = first;
+            while (last < entries.size() && (last == first || size < MANIFEST_FRAME_SIZE)) {
+                size += FrameCodec.stringSize(entries.get(last).getPath()) + 10;
+                last++;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(size);
+            FrameCodec.putVarLong(payload, bundleId);
+            FrameCodec.putVarInt(payload, last - first);
+            for (int i = first; i < last; i++) {
+                FrameCodec.putString(payload, entries.get(i).getPath());
+                FrameCodec.putVarLong(payload, entries.get(i).getSize());
+            }
+            payload.flip();
+            payloads.add(payload);
+            first = last;
+        }
+        return payloads;
+    }
+
+    /**
+     * Reads a chunk of a file into a buffer, ready to be read.
+     */
+    public static void readChunk(FileChannel fileChannel, long position, int length, ByteBuffer chunk)
+            throws IOException {
+        chunk.clear();
+        chunk.limit(length);
+        while (chunk.hasRemaining()) {
+            if (fileChannel.read(chunk, position + chunk.position()) < 0) {
+                throw new IOException("File changed while sending");
+            }
+        }
+        chunk.flip();
+    }
+
+    /**
+     * Returns the checksum of the remaining bytes of a buffer, leaving its
+     * position where it is.
+     */
+    public static int checksum(CRC32 checksum, ByteBuffer data) {
+        checksum.reset();
+        checksum.update(data.duplicate());
+        return (int) checksum.getValue();
+    }
+
+    // Sends chunks of one file as FILE_DATA frames: raw with zero-copy or
+    // compressed, with or without a checksum, in order or for a given range
+    private static final class ChunkSender {
+        private final OutboundWriter.Stream stream;
+        private final FileChannel fileChannel;
+        private final ChunkCompressor compressor;
+        private final CRC32 checksum;
+        private final ByteBuffer prefix = ByteBuffer.allocate(DATA_PREFIX_SIZE);
+        private final ByteBuffer chunk; // The chunk read for its checksum or to compress
+        private long savedBytes = 0;
+
+        ChunkSender(OutboundWriter.Stream stream, FileChannel fileChannel, ChunkCompressor compressor,
+                boolean checksums) {
+            this.stream = stream;
+            this.fileChannel = fileChannel;
+            this.compressor = compressor;
+            this.checksum = checksums ? new CRC32() : null;
+            this.chunk = checksums || compressor != null ? ByteBuffer.allocate(FILE_CHUNK_SIZE) : null;
+        }
+
+        // A chunk sent again carries its offset, since it does not follow on from the last one
+        void send(long position, int length, boolean repair) throws IOException {
+            boolean tryCompress = compressor != null && compressor.shouldTry();
+            if (checksum != null || tryCompress) {
+                readChunk(fileChannel, position, length, chunk);
+            }
+            int flags = 0;
+            prefix.clear();
+            FrameCodec.putVarLong(prefix, stream.getId());
+            if (repair) {
+                FrameCodec.putVarLong(prefix, position);
+                flags |= FrameType.FLAG_DATA_OFFSET;
+            }
+            if (checksum != null) {
+                prefix.putInt(checksum(checksum, chunk));
+                flags |= FrameType.FLAG_DATA_CHECKSUM;
+            }
+            prefix.flip();
+
+            ByteBuffer compressed = tryCompress ? compressor.compress(prefix, chunk) : null;
+            if (compressed != null) {
+                savedBytes += prefix.remaining() + length - compressed.remaining();
+                stream.send(FrameType.FILE_DATA, flags | FrameType.FLAG_DATA_COMPRESSED, compressed);
+            } else {
+                stream.sendFileRegion(FrameType.FILE_DATA, flags, prefix, fileChannel, position, length);
+            }
+        }
+    }
+
+    /**
+     * What the receiver of a checksummed transfer answered after FILE_END:
+     * ranges to send again, a request for the leaf hashes, or FILE_DONE.
+     */
+    public static final class Verdict {
+        private final List<long[]> ranges; // Null unless ranges were asked for
+        private final boolean hashesWanted;
+        private final String failure; // Null unless the transfer failed
+
+        private Verdict(List<long[]> ranges, boolean hashesWanted, String failure) {
+            this.ranges = ranges;
+            this.hashesWanted = hashesWanted;
+            this.failure = failure;
+        }
+
+        /**
+         * Reads the rest of a FILE_REPAIR payload, after its transferId.
+         */
+        public static Verdict fromRepair(int flags, ByteBuffer payload) throws IOException {
+            if ((flags & FrameType.FLAG_REPAIR_HASHES) != 0) {
+                return new Verdict(null, true, null);
+            }
+            int count = FrameCodec.getVarInt(payload);
+            if (count < 0 || count > MAX_REPAIR_RANGES) {
+                throw new IOException("Invalid repair range count: " + count);
+            }
+            List<long[]> ranges = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ranges.add(new long[] { FrameCodec.getVarLong(payload), FrameCodec.getVarLong(payload) });
+            }
+            return new Verdict(ranges, false, null);
+        }
+
+        /**
+         * @return The ranges to send again, or null if something else was asked for
+         */
+        public List<long[]> getRanges() {
+            return ranges;
+        }
+
+        public boolean wantsHashes() {
+            return hashesWanted;
+        }
+
+        public static Verdict fromDone(int flags) {
+            boolean failed = (flags & FrameType.FLAG_DONE_FAILED) != 0;
+            return new Verdict(null, false, failed ? "Peer could not receive the file intact" : null);
+        }
+
+        /**
+         * A verdict that will never come, because the connection was lost.
+         */
+        public static Verdict lost(String reason) {
+            return new Verdict(null, false, reason);
+        }
+    }
+
+    /**
+     * Prefix of a FILE_RANGE frame: stripe token and file offset.
+     */
+    public static ByteBuffer encodeRangePrefix(ByteBuffer prefix, long stripeToken, long offset) {
+        prefix.clear();
+        FrameCodec.putVarLong(prefix, stripeToken);
+        FrameCodec.putVarLong(prefix, offset);
+        prefix.flip();
+        return prefix;
+    }
+
+    public static ByteBuffer encodeFileAccept(long transferId, long offset) {
+        return encodeFileAccept(transferId, offset, -1);
+    }
+
+    /**
+     * @param creditLimit Offset the sender may send up to, or -1 if the transfer is not flow controlled
+     */
+    public static ByteBuffer encodeFileAccept(long transferId, long offset, long creditLimit) {
+        ByteBuffer payload = ByteBuffer.allocate(30);
+        FrameCodec.putVarLong(payload, transferId);
+        FrameCodec.putVarLong(payload, offset);
+        if (creditLimit >= 0) {
+            FrameCodec.putVarLong(payload, creditLimit);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    public static ByteBuffer encodeFileCredit(long transferId, long written, long creditLimit) {
+        ByteBuffer payload = ByteBuffer.allocate(30);
+        FrameCodec.putVarLong(payload, transferId);
+        FrameCodec.putVarLong(payload, written);
+        FrameCodec.putVarLong(payload, creditLimit);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * @param ranges Offset and length of each damaged range; only the first
+     *               MAX_REPAIR_RANGES are sent
+     */
+    public static ByteBuffer encodeFileRepair(long transferId, List<long[]> ranges) {
+        int count = Math.min(ranges.size(), MAX_REPAIR_RANGES);
+        ByteBuffer payload = ByteBuffer.allocate(15 + count * 20);
+        FrameCodec.putVarLong(payload, transferId);
+        FrameCodec.putVarInt(payload, count);
+        for (int i = 0; i < count; i++) {
+            FrameCodec.putVarLong(payload, ranges.get(i)[0]);
+            FrameCodec.putVarLong(payload, ranges.get(i)[1]);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Encodes a file's leaf hashes as FILE_HASHES payloads, as many frames as
+     * it takes to stay under the payload limit.
+     */
+    public static List<ByteBuffer> encodeFileHashes(long transferId, byte[][] leaves) {
+        int perFrame = (FrameCodec.MAX_PAYLOAD_SIZE - 30) / MerkleTree.HASH_SIZE;
+        List<ByteBuffer> payloads = new ArrayList<>();
+        for (int first = 0; first < leaves.length; first += perFrame) {
+            int count = Math.min(perFrame, leaves.length - first);
+            ByteBuffer payload = ByteBuffer.allocate(30 + count * MerkleTree.HASH_SIZE);
+            FrameCodec.putVarLong(payload, transferId);
+            FrameCodec.putVarInt(payload, first);
+            FrameCodec.putVarInt(payload, leaves.length);
+            for (int i = 0; i < count; i++) {
+                payload.put(leaves[first + i]);
+            }
+            payload.flip();
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * Encodes the signatures of a basis as FILE_SIGNATURES payloads, as many
+     * frames as it takes to stay under the payload limit. There is always at
+     * least one, so a basis with no whole block still answers the sender.
+     */
+    public static List<ByteBuffer> encodeFileSignatures(long transferId, FileDelta.Signatures signatures) {
+        int perFrame = (FrameCodec.MAX_PAYLOAD_SIZE - 30) / FileDelta.SIGNATURE_SIZE;
+        List<ByteBuffer> payloads = new ArrayList<>();
+        int first = 0;
+        do {
+            int count = Math.min(perFrame, signatures.getCount() - first);
+            ByteBuffer payload = ByteBuffer.allocate(30 + count * FileDelta.SIGNATURE_SIZE);
+            FrameCodec.putVarLong(payload, transferId);
+            FrameCodec.putVarInt(payload, signatures.getBlockSize());
+            FrameCodec.putVarInt(payload, first);
+            FrameCodec.putVarInt(payload, signatures.getCount());
+            signatures.put(payload, first, count);
+            payload.flip();
+            payloads.add(payload);
+            first += count;
+        } while (first < signatures.getCount());
+        return payloads;
+    }
+
+    public static ByteBuffer encodeFileCopy(long transferId, long firstBlock, long count) {
+        ByteBuffer payload = ByteBuffer.allocate(30);
+        FrameCodec.putVarLong(payload, transferId);
+        FrameCodec.putVarLong(payload, firstBlock);
+        FrameCodec.putVarLong(payload, count);
+        payload.flip();
+        return payload;
+    }
+
+    public static ByteBuffer encodeTransferId(long transferId) {
+        ByteBuffer payload = ByteBuffer.allocate(10);
+        FrameCodec.putVarLong(payload, transferId);
+        payload.flip();
+        return payload;
+    }
+}
@@ -0,0 +1,241 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit-based flow control for file data, so a sender cannot run further
+ * ahead of the receiver's disk than the receiver allows. Without it a fast
+ * sender fills every socket and stream buffer between the two, and chat
+ * frames queued behind that data wait for all of it.
+ *
+ * A sender offers flow control in FILE_START; a receiver that agrees grants
+ * credit in FILE_ACCEPT as an absolute file offset the sender may send up
+ * to. As chunks reach the disk the receiver sends FILE_CREDIT with how far
+ * it has written and a new limit. The window between the two holds a fixed
+ * time's worth of data at the rate the receiver is writing, or twice the
+ * bandwidth-delay product when the round trip is longer than that, so a slow
+ * disk keeps little in flight and a fast disk or a distant sender gets a
+ * window large enough to keep the connection busy. The receiver measures
+ * the round trip from its own credit: the time from granting a new limit to
+ * the first data beyond the old one being written.
+ *
+ * The sender times chunks against the receiver's acknowledgements to
+ * measure the round trip and throughput, and sizes chunks so several fit in
+ * one round trip's worth of data: small chunks on a slow link, where a chat
+ * frame would otherwise wait behind a large one, and full size chunks when
+ * the bandwidth-delay product is large.
+ *
+ * Flow control can be turned off with -Dchatapp.disableFlowControl=true.
+ */
+public final class FlowControl {
+    public static final String DISABLE_FLOW_CONTROL_PROPERTY = "chatapp.disableFlowControl";
+    private static final boolean FLOW_CONTROL_ENABLED = !Boolean.getBoolean(DISABLE_FLOW_CONTROL_PROPERTY);
+
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_ROUND_TRIP = 4;
+    private static final long INITIAL_WINDOW = 4L * FileTransfers.FILE_CHUNK_SIZE;
+    private static final long MIN_WINDOW = 4L * MIN_CHUNK_SIZE;
+    private static final long MAX_WINDOW = 32L * 1024 * 1024;
+    private static final long WINDOW_TIME = TimeUnit.MILLISECONDS.toNanos(100); // Least writing time the window holds
+    private static final long RATE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10); // Shortest rate sample
+    private static final long CREDIT_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private FlowControl() {
+    }
+
+    public static boolean isEnabled() {
+        return FLOW_CONTROL_ENABLED;
+    }
+
+    /**
+     * Receive side of one transfer: decides how much credit to grant as the
+     * file is written.
+     */
+    public static class Receiver {
+        private final Rate writeRate = new Rate();
+        private long window = INITIAL_WINDOW;
+        private long granted;
+        private long probeOffset; // Limit before the grant being timed, or -1
+        private long probeTime;
+        private long minRoundTrip = Long.MAX_VALUE;
+
+        public Receiver(long offset) {
+            this.granted = offset + window;
+            writeRate.reset(offset);
+            probeOffset = offset; // The first data times the accept
+            probeTime = System.nanoTime();
+        }
+
+        /**
+         * @return The credit limit to send in FILE_ACCEPT
+         */
+        public long getLimit() {
+            return granted;
+        }
+
+        /**
+         * Records that the file has been written up to the given offset.
+         *
+         * @return A new credit limit to send in FILE_CREDIT, or -1 if the
+         *         last one is still far enough ahead
+         */
+        public long onWritten(long offset) {
+            long now = System.nanoTime();
+            if (probeOffset >= 0 && offset > probeOffset) {
+                minRoundTrip = Math.min(minRoundTrip, now - probeTime);
+                probeOffset = -1;
+            }
+            if (writeRate.update(offset)) {
+                // While the window limits the rate to window / round trip, this at least doubles it
+                long roundTrip = minRoundTrip == Long.MAX_VALUE ? 0 : minRoundTrip;
+                long size = (long) (writeRate.bytesPerNano * Math.max(WINDOW_TIME, 2 * roundTrip));
+                window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, size));
+            }
+            long limit = offset + window;
+            if (limit - granted < window / 4) {
+                return -1; // Not worth a frame yet
+            }
+            if (probeOffset < 0) {
+                probeOffset = granted;
+                probeTime = now;
+            }
+            granted = limit;
+            return limit;
+        }
+    }
+
+    /**
+     * Send side of one transfer: waits for credit and picks chunk sizes.
+     */
+    public static class Sender {
+        private final Rate ackRate = new Rate();
+        private long acknowledged;
+        private long limit;
+        private long probeOffset = -1; // End of the chunk being timed, or -1
+        private long probeTime;
+        private long minRoundTrip = Long.MAX_VALUE;
+        private IOException failure;
+
+        public Sender(long offset, long limit) {
+            this.acknowledged = offset;
+            this.limit = limit;
+            ackRate.reset(offset);
+        }
+
+        /**
+         * Handles a FILE_CREDIT: the receiver has written up to written and
+         * allows sending up to newLimit.
+         */
+        public synchronized void grant(long written, long newLimit) {
+            if (probeOffset >= 0 && written >= probeOffset) {
+                minRoundTrip = Math.min(minRoundTrip, System.nanoTime() - probeTime);
+                probeOffset = -1;
+            }
+            if (written > acknowledged) {
+                acknowledged = written;
+                ackRate.update(written);
+            }
+            if (newLimit > limit) {
+                limit = newLimit;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Returns how much of a chunk at the given position may be sent now:
+         * all of it, a shorter chunk that uses up the credit, or 0 if the
+         * credit left is too small to be worth a frame.
+         */
+        public synchronized int credit(long position, int length) {
+            if (failure != null) {
+                return length; // Let the send fail
+            }
+            long available = limit - position;
+            return available >= Math.min(length, MIN_CHUNK_SIZE) ? (int) Math.min(length, available) : 0;
+        }
+
+        /**
+         * Waits until part of a chunk at the given position may be sent.
+         *
+         * @return How much of it to send
+         */
+        public synchronized int awaitCredit(long position, int length) throws IOException {
+            long deadline = System.currentTimeMillis() + CREDIT_TIMEOUT;
+            int allowed;
+            while ((allowed = credit(position, length)) == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Peer stopped accepting data");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the peer");
+                }
+            }
+            if (failure != null) {
+                throw new IOException(failure.getMessage());
+            }
+            return allowed;
+        }
+
+        /**
+         * Records that data up to end has been sent, timing one chunk at a time.
+         */
+        public synchronized void onSent(long end) {
+            if (probeOffset < 0) {
+                probeOffset = end;
+                probeTime = System.nanoTime();
+            }
+        }
+
+        /**
+         * Returns the chunk size to send next: a quarter of the
+         * bandwidth-delay product, and never more than a quarter of the window.
+         */
+        public synchronized int chunkSize() {
+            if (minRoundTrip == Long.MAX_VALUE || ackRate.bytesPerNano == 0) {
+                return FileTransfers.FILE_CHUNK_SIZE; // Nothing measured yet
+            }
+            long bandwidthDelay = (long) (ackRate.bytesPerNano * minRoundTrip);
+            long size = Math.min(bandwidthDelay, limit - acknowledged) / CHUNKS_PER_ROUND_TRIP;
+            return (int) Math.max(MIN_CHUNK_SIZE, Math.min(FileTransfers.FILE_CHUNK_SIZE, size));
+        }
+
+        /**
+         * Wakes a sender waiting for credit; used when the connection is lost.
+         */
+        public synchronized void fail(IOException e) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    // Smoothed rate at which a file offset advances
+    private static class Rate {
+        private long startOffset;
+        private long startTime;
+        private double bytesPerNano = 0;
+
+        void reset(long offset) {
+            startOffset = offset;
+            startTime = System.nanoTime();
+        }
+
+        // Returns true if the rate was updated
+        boolean update(long offset) {
+            long now = System.nanoTime();
+            long elapsed = now - startTime;
+            if (elapsed < RATE_INTERVAL) {
+                return false;
+            }
+            double sample = (double) (offset - startOffset) / elapsed;
+            bytesPerNano = bytesPerNano == 0 ? sample : bytesPerNano * 0.75 + sample * 0.25;
+            startOffset = offset;
+            startTime = now;
+            return true;
+        }
+    }
+}
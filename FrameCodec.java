@@ -0,0 +1,234 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the binary peer protocol.
+ *
+ * Each side starts by sending a preamble (magic bytes, protocol version and
+ * connection role). After that the stream is a sequence of frames:
+ *
+ * <pre>
+ *   [type: 1 byte][flags: 1 byte][length: varint][payload: length bytes]
+ * </pre>
+ *
+ * Strings inside payloads are a varint byte count followed by UTF-8 bytes.
+ *
+ * File transfers: FILE_START (id, size, name, resume key, content hash) is
+ * answered by FILE_ACCEPT (id, offset) with the number of bytes the receiver
+ * already has, or the whole size if it already holds that content; the sender
+ * then sends FILE_DATA (id, bytes) from that offset and FILE_END (id).
+ * A striped transfer instead sends FILE_RANGE (stripe token, offset, bytes)
+ * frames over extra connections opened with the data role.
+ * A flow controlled transfer may only send data up to the credit limit the
+ * receiver put in FILE_ACCEPT (id, offset, limit), which it moves forward
+ * with FILE_CREDIT (id, written, limit) as the data reaches its disk.
+ * A checksummed transfer puts a CRC32 of each chunk after the id; at the end
+ * the receiver asks for damaged ranges again with FILE_REPAIR (id, count,
+ * offset/length pairs), or for the file's Merkle leaf hashes, which come back
+ * as FILE_HASHES (id, first index, total, hashes), and finally answers with
+ * FILE_DONE (id). Ranges sent again are FILE_DATA frames that carry their
+ * offset.
+ * A receiver that has an older copy of a file the sender offers as a delta
+ * answers FILE_ACCEPT (id, 0) with the delta flag and then the signatures of
+ * its copy's blocks in FILE_SIGNATURES (id, block size, first index, total,
+ * weak checksum/strong hash pairs); the sender then sends FILE_DATA frames
+ * only for data the copy lacks, and FILE_COPY (id, first block, count) for
+ * runs of blocks the receiver copies from its own. See {@link FileDelta}.
+ *
+ * Bundles of files: BUNDLE_START (id, entry count, total size, name) and
+ * BUNDLE_ENTRIES (id, count, path/size pairs) carry the manifest, followed
+ * by BUNDLE_DATA (id, bytes) with the contents of all entries back to back
+ * and BUNDLE_END (id, CRC32 of the contents), with nothing to wait for in
+ * between. The receiver answers with FILE_DONE (id). See {@link IncomingBundle}.
+ *
+ * Chat: CHAT carries a message's text, after its sequence number and id
+ * when flagged. Messages that waited in the sender's outbox go in
+ * CHAT_BATCH frames (count, sequence/id/text triples). Both are answered by
+ * RECEIPT (delivered, read). See {@link Receipts} and {@link Outbox}.
+ *
+ * Heartbeats: PING (send time) is answered by PONG with the same payload.
+ *
+ * Rooms: ROOM_JOIN (room) and ROOM_LEAVE (room) go from a client to the
+ * server; ROOM_MESSAGE (room, sender, text) goes both ways, with the sender
+ * left empty by clients and filled in by the server. See {@link Rooms}.
+ */
+public final class FrameCodec {
+    public static final byte[] MAGIC = { 'P', '2', 'P', 'C' };
+    public static final int VERSION = 1;
+    public static final int PREAMBLE_LENGTH = MAGIC.length + 2;
+
+    // Connection roles announced in the preamble
+    public static final int ROLE_CONTROL = 0; // A chat peer
+    public static final int ROLE_DATA = 1; // An extra connection carrying file stripes only
+
+    public static final int MAX_PAYLOAD_SIZE = 1024 * 1024; // 1MB
+    public static final int MAX_HEADER_SIZE = 2 + 5; // type + flags + longest varint
+
+    // Shared payload for frames that carry only flags; writers never move its position
+    public static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private FrameCodec() {
+    }
+
+    public static void putPreamble(ByteBuffer buffer, int role) {
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) role);
+    }
+
+    /**
+     * Checks the peer's preamble.
+     *
+     * @return The role of the connection
+     * @throws IOException if the peer does not speak this protocol version
+     */
+    public static int checkPreamble(ByteBuffer buffer) throws IOException {
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) {
+                throw new IOException("Peer is not a compatible chat client");
+            }
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version + " (expected " + VERSION + ")");
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Encodes a complete frame into a new buffer, ready for reading. Used
+     * where frames are queued rather than written straight to a channel.
+     */
+    public static ByteBuffer encodeFrame(byte type, int flags, ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(2 + varIntSize(length) + length);
+        putHeader(frame, type, flags, length);
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    public static ByteBuffer encodeText(byte type, int flags, String text) {
+        return encodeFrame(type, flags, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static ByteBuffer encodePreamble(int role) {
+        ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH);
+        putPreamble(preamble, role);
+        preamble.flip();
+        return preamble;
+    }
+
+    public static void putHeader(ByteBuffer buffer, byte type, int flags, int length) {
+        buffer.put(type);
+        buffer.put((byte) flags);
+        putVarInt(buffer, length);
+    }
+
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @return The value, or -1 if the buffer ends before the varint does (the
+     *         buffer position is then undefined and should be reset by the caller)
+     * @throws IOException if the varint is longer than five bytes
+     */
+    public static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Malformed frame length");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed frame length");
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Truncated frame payload");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in frame payload");
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) throws IOException {
+        int length = getVarInt(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Truncated frame payload");
+        }
+        return getText(buffer, length);
+    }
+
+    /**
+     * Decodes the next length bytes of the buffer as UTF-8 and advances past them.
+     */
+    public static String getText(ByteBuffer buffer, int length) {
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Returns the encoded size of a string written with {@link #putString}.
+     */
+    public static int stringSize(String value) {
+        int length = value.getBytes(StandardCharsets.UTF_8).length;
+        return varIntSize(length) + length;
+    }
+}
@@ -0,0 +1,150 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental decoder for the binary peer protocol.
+ *
+ * Bytes are read into one reusable buffer and every complete frame in it is
+ * dispatched through a table indexed by frame type. Payloads are handed to
+ * the handlers as a window on that buffer, so decoding a frame allocates
+ * nothing. Works the same whether the channel is blocking or not.
+ *
+ * The buffer starts small and only grows when a frame larger than it
+ * arrives, so idle connections on a busy server stay cheap. A decoder for a
+ * connection that carries file data can use a direct buffer: the socket
+ * reads straight into it and payloads written to a file channel from it are
+ * not copied again.
+ */
+public class FrameDecoder {
+    private final FrameHandler[] handlers = new FrameHandler[256];
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = FrameCodec.MAX_HEADER_SIZE + FrameCodec.MAX_PAYLOAD_SIZE;
+
+    private final boolean direct;
+    private ByteBuffer buffer;
+    private int peerRole = -1; // Unknown until the preamble has been read
+    private volatile long lastReadTime = System.nanoTime();
+
+    public FrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameDecoder(int initialBufferSize) {
+        this(initialBufferSize, false);
+    }
+
+    public FrameDecoder(boolean direct) {
+        this(DEFAULT_BUFFER_SIZE, direct);
+    }
+
+    public FrameDecoder(int initialBufferSize, boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(Math.min(initialBufferSize, MAX_BUFFER_SIZE));
+    }
+
+    /**
+     * Registers the handler for a frame type. Frames without a handler are skipped.
+     */
+    public void register(byte type, FrameHandler handler) {
+        handlers[type & 0xFF] = handler;
+    }
+
+    /**
+     * @return The role the peer announced in its preamble, or -1 if it has not arrived yet
+     */
+    public int getPeerRole() {
+        return peerRole;
+    }
+
+    /**
+     * @return The System.nanoTime() of the last read that returned data
+     */
+    public long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    /**
+     * Reads once from the channel and dispatches every complete frame.
+     *
+     * @return The number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        int read = channel.read(buffer);
+        if (read > 0) {
+            lastReadTime = System.nanoTime();
+            ConnectionMetrics.bytesReceived(read);
+            decode();
+        }
+        return read;
+    }
+
+    /**
+     * Dispatches every complete frame currently in the buffer and keeps any
+     * trailing partial frame for the next read.
+     */
+    public void decode() throws IOException {
+        int requiredSize = 0;
+        buffer.flip();
+        try {
+            if (peerRole < 0) {
+                if (buffer.remaining() < FrameCodec.PREAMBLE_LENGTH) {
+                    return;
+                }
+                peerRole = FrameCodec.checkPreamble(buffer);
+            }
+
+            while (buffer.remaining() >= 3) {
+                int frameStart = buffer.position();
+                byte type = buffer.get();
+                int flags = buffer.get() & 0xFF;
+                int length = FrameCodec.getVarInt(buffer);
+                if (length < 0) {
+                    buffer.position(frameStart);
+                    break;
+                }
+                if (length > FrameCodec.MAX_PAYLOAD_SIZE) {
+                    throw new IOException("Frame too large: " + FrameType.name(type) + " (" + length + " bytes)");
+                }
+                if (buffer.remaining() < length) {
+                    requiredSize = buffer.position() - frameStart + length;
+                    buffer.position(frameStart);
+                    break;
+                }
+
+                // Narrow the buffer to the payload while the handler runs
+                int frameEnd = buffer.position() + length;
+                int limit = buffer.limit();
+                buffer.limit(frameEnd);
+                try {
+                    FrameHandler handler = handlers[type & 0xFF];
+                    if (handler != null) {
+                        handler.handle(flags, buffer);
+                    }
+                } finally {
+                    buffer.limit(limit);
+                    buffer.position(frameEnd);
+                }
+            }
+        } finally {
+            buffer.compact();
+            if (requiredSize > buffer.capacity()) {
+                grow(requiredSize);
+            }
+        }
+    }
+
+    private void grow(int requiredSize) {
+        int newSize = Math.min(Math.max(requiredSize, buffer.capacity() * 2), MAX_BUFFER_SIZE);
+        ByteBuffer larger = allocate(newSize);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
@@ -0,0 +1,13 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Handles one decoded frame. The payload buffer is a view into the decoder's
+ * reusable read buffer and is only valid for the duration of the call, so
+ * handlers must copy anything they want to keep.
+ */
+public interface FrameHandler {
+    void handle(int flags, ByteBuffer payload) throws IOException;
+}
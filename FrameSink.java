@@ -0,0 +1,12 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Somewhere to send frames back to a peer. The payload buffer is only valid
+ * during the call; implementations copy or write it before returning.
+ */
+public interface FrameSink {
+    void send(byte type, int flags, ByteBuffer payload) throws IOException;
+}
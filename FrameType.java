@@ -0,0 +1,129 @@
+package com.chatapp;
+
+/**
+ * Frame types of the binary peer protocol. The type is the first byte of
+ * every frame and indexes the receiver's dispatch table.
+ */
+public final class FrameType {
+    public static final byte CHAT = 1;
+    public static final byte TYPING = 2;
+    public static final byte FILE_START = 3;
+    public static final byte FILE_DATA = 4;
+    public static final byte FILE_END = 5;
+    public static final byte FILE_ACCEPT = 6;
+    public static final byte FILE_RANGE = 7;
+    public static final byte PING = 8;
+    public static final byte PONG = 9;
+    public static final byte FILE_CREDIT = 10;
+    public static final byte FILE_REPAIR = 11;
+    public static final byte FILE_HASHES = 12;
+    public static final byte FILE_DONE = 13;
+    public static final byte RECEIPT = 14;
+    public static final byte ROOM_JOIN = 15;
+    public static final byte ROOM_LEAVE = 16;
+    public static final byte ROOM_MESSAGE = 17;
+    public static final byte BUNDLE_START = 18;
+    public static final byte BUNDLE_ENTRIES = 19;
+    public static final byte BUNDLE_DATA = 20;
+    public static final byte BUNDLE_END = 21;
+    public static final byte FILE_SIGNATURES = 22;
+    public static final byte FILE_COPY = 23;
+    public static final byte CHAT_BATCH = 24;
+
+    // Flags for TYPING frames
+    public static final int FLAG_TYPING_ACTIVE = 0x01;
+
+    // Flags for FILE_START frames
+    public static final int FLAG_FILE_STRIPED = 0x01;
+    public static final int FLAG_FILE_COMPRESSION = 0x02; // Sender would like to compress chunks
+    public static final int FLAG_FILE_FLOW_CONTROL = 0x04; // Sender will wait for the receiver's credit
+    public static final int FLAG_FILE_CHECKSUMS = 0x08; // Sender checksums chunks and sends damaged ranges again
+    public static final int FLAG_FILE_DELTA = 0x10; // Sender can send only what differs from an older copy
+
+    // Flags for FILE_ACCEPT frames
+    public static final int FLAG_FILE_REJECTED = 0x01;
+    public static final int FLAG_FILE_DUPLICATE = 0x02; // Receiver already had the content; nothing is sent
+    public static final int FLAG_FILE_COMPRESSION_OK = 0x04; // Receiver accepts compressed chunks
+    public static final int FLAG_FILE_CREDIT = 0x08; // Payload ends with a credit limit
+    public static final int FLAG_FILE_CHECKSUMS_OK = 0x10; // Receiver checks chunks and sends FILE_DONE at the end
+    public static final int FLAG_FILE_DELTA_OK = 0x20; // Receiver has an older copy; FILE_SIGNATURES follow
+
+    // Flags for FILE_DATA frames
+    public static final int FLAG_DATA_COMPRESSED = 0x01;
+    public static final int FLAG_DATA_CHECKSUM = 0x02; // CRC32 of the raw chunk follows the transferId
+    public static final int FLAG_DATA_OFFSET = 0x04; // File offset follows the transferId; a range sent again
+
+    // Flags for FILE_REPAIR frames
+    public static final int FLAG_REPAIR_HASHES = 0x01; // Send the file's leaf hashes rather than ranges
+
+    // Flags for FILE_DONE frames
+    public static final int FLAG_DONE_FAILED = 0x01;
+
+    // Flags for CHAT frames
+    public static final int FLAG_CHAT_SEQUENCE = 0x01; // Payload starts with the message's sequence number
+    public static final int FLAG_CHAT_ID = 0x02; // The sequence is followed by the message's 64-bit id
+
+    private FrameType() {
+    }
+
+    /**
+     * Returns a readable name for a frame type, used in log and error messages.
+     *
+     * @param type The frame type byte
+     * @return The name of the frame type
+     */
+    public static String name(int type) {
+        switch (type) {
+            case CHAT:
+                return "CHAT";
+            case TYPING:
+                return "TYPING";
+            case FILE_START:
+                return "FILE_START";
+            case FILE_DATA:
+                return "FILE_DATA";
+            case FILE_END:
+                return "FILE_END";
+            case FILE_ACCEPT:
+                return "FILE_ACCEPT";
+            case FILE_RANGE:
+                return "FILE_RANGE";
+            case PING:
+                return "PING";
+            case PONG:
+                return "PONG";
+            case FILE_CREDIT:
+                return "FILE_CREDIT";
+            case FILE_REPAIR:
+                return "FILE_REPAIR";
+            case FILE_HASHES:
+                return "FILE_HASHES";
+            case FILE_DONE:
+                return "FILE_DONE";
+            case RECEIPT:
+                return "RECEIPT";
+            case ROOM_JOIN:
+                return "ROOM_JOIN";
+            case ROOM_LEAVE:
+                return "ROOM_LEAVE";
+            case ROOM_MESSAGE:
+                return "ROOM_MESSAGE";
+            case BUNDLE_START:
+                return "BUNDLE_START";
+            case BUNDLE_ENTRIES:
+                return "BUNDLE_ENTRIES";
+            case BUNDLE_DATA:
+                return "BUNDLE_DATA";
+            case BUNDLE_END:
+                return "BUNDLE_END";
+            case FILE_SIGNATURES:
+                return "FILE_SIGNATURES";
+            case FILE_COPY:
+                return "FILE_COPY";
+            case CHAT_BATCH:
+                return "CHAT_BATCH";
+            default:
+                return "UNKNOWN(" + (type & 0xFF) + ")";
+        }
+    }
+}
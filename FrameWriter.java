@@ -0,0 +1,229 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking writer for the binary peer protocol.
+ *
+ * Every method writes whole frames under one lock, so frames from different
+ * threads never interleave on the wire. The lock is a ReentrantLock rather
+ * than a monitor so a virtual thread blocked in a socket write does not pin
+ * its carrier thread. Header and text buffers are reused between frames.
+ *
+ * A write that makes no progress waits for the channel to become writable
+ * if it is non-blocking, and fails if it is blocking, so a stalled socket
+ * never turns into a busy loop.
+ */
+public class FrameWriter {
+    // Send file data with FileChannel.transferTo (sendfile) instead of copying through the heap
+    private static final boolean ZERO_COPY_SEND = !Boolean.getBoolean("chatapp.disableZeroCopy");
+    private static final long WRITABLE_TIMEOUT = 30000; // Milliseconds a full socket buffer may take to drain
+
+    private final GatheringByteChannel channel;
+    private final boolean zeroCopy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer header = ByteBuffer.allocateDirect(FrameCodec.MAX_HEADER_SIZE + FrameCodec.PREAMBLE_LENGTH);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer textBuffer = ByteBuffer.allocate(8 * 1024);
+    private ByteBuffer copyBuffer;
+
+    public FrameWriter(GatheringByteChannel channel) {
+        this(channel, ZERO_COPY_SEND);
+    }
+
+    /**
+     * @param zeroCopy Send file regions with transferTo rather than through
+     *        a heap buffer, whatever the system property says
+     */
+    FrameWriter(GatheringByteChannel channel, boolean zeroCopy) {
+        this.channel = channel;
+        this.zeroCopy = zeroCopy;
+    }
+
+    public void writePreamble() throws IOException {
+        writePreamble(FrameCodec.ROLE_CONTROL);
+    }
+
+    public void writePreamble(int role) throws IOException {
+        lock.lock();
+        try {
+            header.clear();
+            FrameCodec.putPreamble(header, role);
+            header.flip();
+            writeFully(header);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes one frame. The payload buffer's position is left unchanged.
+     */
+    public void writeFrame(byte type, int flags, ByteBuffer payload) throws IOException {
+        lock.lock();
+        try {
+            int length = payload.remaining();
+            checkLength(type, length);
+            int mark = payload.position();
+            header.clear();
+            FrameCodec.putHeader(header, type, flags, length);
+            header.flip();
+            gather[0] = header;
+            gather[1] = payload;
+            try {
+                while (header.hasRemaining() || payload.hasRemaining()) {
+                    progress(channel.write(gather));
+                }
+            } finally {
+                gather[1] = null;
+                payload.position(mark);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes frames that are already encoded, in one gathering write where
+     * the channel allows it.
+     */
+    public void writeFrames(ByteBuffer[] frames, int count) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer last = frames[count - 1];
+            while (last.hasRemaining()) {
+                progress(channel.write(frames, 0, count));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes one frame whose payload is the UTF-8 encoding of the text.
+     */
+    public void writeText(byte type, int flags, CharSequence text) throws IOException {
+        lock.lock();
+        try {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                encoder.reset();
+                textBuffer.clear();
+                CoderResult result = encoder.encode(chars, textBuffer, true);
+                if (!result.isOverflow()) {
+                    result = encoder.flush(textBuffer);
+                }
+                if (!result.isOverflow()) {
+                    break;
+                }
+                if (textBuffer.capacity() >= FrameCodec.MAX_PAYLOAD_SIZE) {
+                    throw new IOException("Message too large");
+                }
+                textBuffer = ByteBuffer.allocate(Math.min(textBuffer.capacity() * 2, FrameCodec.MAX_PAYLOAD_SIZE));
+                chars.rewind();
+            }
+            textBuffer.flip();
+            writeFrame(type, flags, textBuffer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes one frame whose payload is a prefix buffer followed by a region
+     * of a file. The file bytes go straight from the page cache to the socket
+     * when zero-copy is enabled.
+     */
+    public void writeFileRegion(byte type, int flags, ByteBuffer prefix,
+            FileChannel file, long position, int length) throws IOException {
+        lock.lock();
+        try {
+            int mark = prefix.position();
+            checkLength(type, prefix.remaining() + length);
+            header.clear();
+            FrameCodec.putHeader(header, type, flags, prefix.remaining() + length);
+            header.flip();
+            gather[0] = header;
+            gather[1] = prefix;
+            try {
+                while (header.hasRemaining() || prefix.hasRemaining()) {
+                    progress(channel.write(gather));
+                }
+            } finally {
+                gather[1] = null;
+                prefix.position(mark);
+            }
+
+            if (zeroCopy) {
+                long sent = 0;
+                while (sent < length) {
+                    long count = file.transferTo(position + sent, length - sent, channel);
+                    if (count <= 0 && position + sent >= file.size()) {
+                        throw new IOException("File changed while sending");
+                    }
+                    sent += count;
+                    progress(count);
+                }
+            } else {
+                if (copyBuffer == null) {
+                    copyBuffer = ByteBuffer.allocate(FrameCodec.MAX_PAYLOAD_SIZE);
+                }
+                copyBuffer.clear();
+                copyBuffer.limit(length);
+                while (copyBuffer.hasRemaining()) {
+                    if (file.read(copyBuffer, position + copyBuffer.position()) < 0) {
+                        throw new IOException("File changed while sending");
+                    }
+                }
+                copyBuffer.flip();
+                writeFully(copyBuffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkLength(byte type, int length) throws IOException {
+        if (length > FrameCodec.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Frame too large: " + FrameType.name(type) + " (" + length + " bytes)");
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            progress(channel.write(buffer));
+        }
+    }
+
+    // Counts the bytes a write took; none means waiting for a non-blocking channel, or a failed blocking one
+    private void progress(long count) throws IOException {
+        if (count > 0) {
+            ConnectionMetrics.bytesSent(count);
+            return;
+        }
+        if (!(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking()) {
+            throw new IOException("Connection is not taking data");
+        }
+        try (Selector selector = Selector.open()) {
+            ((SelectableChannel) channel).register(selector, SelectionKey.OP_WRITE);
+            if (selector.select(WRITABLE_TIMEOUT) == 0) {
+                throw new IOException("Peer stopped reading");
+            }
+        }
+    }
+}
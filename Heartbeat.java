@@ -0,0 +1,93 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application-level liveness check for one connection. TCP keepalive takes
+ * hours to notice a peer that vanished without closing (a closed laptop lid,
+ * an expired NAT mapping), so each side sends a PING once the connection has
+ * been silent for an interval, and gives up on the peer once it has been
+ * silent for several intervals. Any incoming data counts as a sign of life,
+ * so a busy connection never needs pings.
+ *
+ * The interval and the number of missed intervals are set with
+ * -Dchatapp.heartbeatInterval (milliseconds) and -Dchatapp.heartbeatMisses.
+ */
+public class Heartbeat {
+    public static final String INTERVAL_PROPERTY = "chatapp.heartbeatInterval";
+    public static final String MISSES_PROPERTY = "chatapp.heartbeatMisses";
+    public static final long INTERVAL = Math.max(100, Long.getLong(INTERVAL_PROPERTY, 5000));
+    public static final int MISSES = Math.max(1, Integer.getInteger(MISSES_PROPERTY, 3));
+
+    private final FrameDecoder decoder;
+    private final FrameSink sink;
+    private final ByteBuffer pingPayload = ByteBuffer.allocate(10);
+    private volatile long roundTripNanos = -1;
+    private ScheduledFuture<?> task;
+
+    public Heartbeat(FrameDecoder decoder, FrameSink sink) {
+        this.decoder = decoder;
+        this.sink = sink;
+        decoder.register(FrameType.PONG, (flags, payload) -> {
+            roundTripNanos = System.nanoTime() - FrameCodec.getVarLong(payload);
+            ConnectionMetrics.roundTrip(roundTripNanos);
+        });
+    }
+
+    /**
+     * Checks the peer from the shared timer, calling onDead once if it stops
+     * responding.
+     */
+    public synchronized void start(Runnable onDead) {
+        stop();
+        task = ConnectionExecutors.scheduleAtFixedRate(() -> {
+            if (!check()) {
+                stop();
+                onDead.run();
+            }
+        }, INTERVAL);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Sends a PING if the connection has been quiet for an interval.
+     *
+     * @return false if the peer has been silent too long, or the PING could
+     *         not be sent
+     */
+    public boolean check() {
+        long silent = System.nanoTime() - decoder.getLastReadTime();
+        if (silent > TimeUnit.MILLISECONDS.toNanos(INTERVAL * MISSES)) {
+            return false;
+        }
+        if (silent >= TimeUnit.MILLISECONDS.toNanos(INTERVAL)) {
+            synchronized (pingPayload) {
+                pingPayload.clear();
+                FrameCodec.putVarLong(pingPayload, System.nanoTime());
+                pingPayload.flip();
+                try {
+                    sink.send(FrameType.PING, 0, pingPayload);
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The round trip time measured by the last PONG, or -1 before the first one
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+}
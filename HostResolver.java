@@ -0,0 +1,167 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Host name lookups for outgoing connections, cached so that reconnects and
+ * the extra connections of a striped transfer do not wait on DNS again.
+ *
+ * Addresses come back in the order they should be tried: address families
+ * alternate, starting with the family the resolver listed first, as RFC 8305
+ * asks, so a connection race reaches the other family on its second attempt.
+ * The address that last connected is moved to the front.
+ *
+ * The platform resolver does not report record TTLs, so an entry lives for
+ * -Dchatapp.dnsCacheTtl seconds (default 30, the JDK's own default). Failed
+ * lookups are not cached, and an entry is dropped when none of its addresses
+ * could be connected to, so a changed record is picked up on the next try.
+ *
+ * A lookup can be started ahead of time with prefetch, as the user types a
+ * host name; a connect that asks while it is still running waits for it
+ * rather than starting another.
+ */
+public final class HostResolver {
+    public static final String CACHE_TTL_PROPERTY = "chatapp.dnsCacheTtl";
+    private static final long CACHE_TTL = Math.max(0, Long.getLong(CACHE_TTL_PROPERTY, 30)) * 1000;
+
+    private static final Map<String, Entry> CACHE = new ConcurrentHashMap<>();
+
+    private HostResolver() {
+    }
+
+    /**
+     * @return The host's addresses in the order to try them
+     */
+    public static List<InetAddress> resolve(String host) throws IOException {
+        boolean[] created = new boolean[1];
+        Entry entry = lookup(host, created);
+        if (created[0]) {
+            entry.run();
+        }
+        try {
+            return new ArrayList<>(entry.addresses.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving " + host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new UnknownHostException(host + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Starts looking a host up in the background, unless it is cached or
+     * already being looked up.
+     */
+    public static void prefetch(String host) {
+        if (host == null || host.trim().isEmpty()) {
+            return;
+        }
+        boolean[] created = new boolean[1];
+        Entry entry = lookup(host.trim(), created);
+        if (created[0]) {
+            ConnectionExecutors.execute("Resolve-" + host.trim(), entry::run);
+        }
+    }
+
+    /**
+     * Moves the address a connection succeeded on to the front, so the next
+     * connection to the host tries it first.
+     */
+    public static void connected(String host, InetAddress address) {
+        Entry entry = CACHE.get(host);
+        if (entry != null && entry.addresses.isDone() && !entry.addresses.isCompletedExceptionally()) {
+            List<InetAddress> addresses = entry.addresses.join();
+            if (!addresses.isEmpty() && !addresses.get(0).equals(address) && addresses.contains(address)) {
+                List<InetAddress> reordered = new ArrayList<>(addresses);
+                reordered.remove(address);
+                reordered.add(0, address);
+                CACHE.replace(host, entry, new Entry(entry.expires, reordered));
+            }
+        }
+    }
+
+    /**
+     * Drops a host's cached addresses after none of them answered.
+     */
+    public static void forget(String host) {
+        CACHE.remove(host);
+    }
+
+    // Finds a live entry, or creates one that the caller must run
+    private static Entry lookup(String host, boolean[] created) {
+        long now = System.currentTimeMillis();
+        return CACHE.compute(host, (name, entry) -> {
+            if (entry != null && entry.expires > now) {
+                return entry;
+            }
+            created[0] = true;
+            return new Entry(name, now + CACHE_TTL);
+        });
+    }
+
+    /**
+     * Orders addresses for a connection race: families alternate, starting
+     * with the family of the first address.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.isEmpty()) {
+            return addresses;
+        }
+        boolean firstIsV6 = addresses.get(0) instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private static final class Entry {
+        private final String host;
+        private final long expires;
+        private final CompletableFuture<List<InetAddress>> addresses = new CompletableFuture<>();
+
+        Entry(String host, long expires) {
+            this.host = host;
+            this.expires = expires;
+        }
+
+        Entry(long expires, List<InetAddress> addresses) {
+            this.host = null;
+            this.expires = expires;
+            this.addresses.complete(addresses);
+        }
+
+        void run() {
+            try {
+                addresses.complete(interleave(Arrays.asList(InetAddress.getAllByName(host))));
+            } catch (UnknownHostException | RuntimeException e) {
+                CACHE.remove(host, this); // Not cached; the next lookup tries again
+                addresses.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A folder or a set of files being received as one bundle. The sender
+ * announces the bundle's name, entry count and total size, then the path and
+ * size of every entry, and then streams the contents of all entries back to
+ * back with no handshake per file, much like an archive. Knowing every size
+ * up front, the receiver checks the disk has room for the whole bundle
+ * before anything is written, can tell how far along the bundle is, and
+ * splits the stream into files as it arrives, extending larger files to
+ * their size before writing them.
+ *
+ * Entries are written under a ".part" directory next to the final one, which
+ * is renamed into place once every byte has arrived and the CRC32 of the
+ * whole stream matches the sender's. If the name is taken, a free one is
+ * picked. A bundle is not resumed: if the connection drops, the part
+ * directory is deleted.
+ */
+public class IncomingBundle {
+    public static final int MAX_ENTRIES = 1_000_000;
+    private static final int PREALLOCATE_SIZE = FileTransfers.FILE_CHUNK_SIZE; // Smaller files are written in one go
+    private static final int PROGRESS_STEPS = 4; // Progress is reported every quarter
+
+    private final String name;
+    private final int entryCount;
+    private final long totalSize;
+    private final File downloadsDir;
+    private final File partDirectory;
+    private final List<String> paths = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>(); // -1 for an empty directory
+    private final CRC32 checksum = new CRC32();
+    private final long startTime;
+    private long announcedSize = 0; // Sum of the sizes in the manifest so far
+    private int fileCount = 0;
+    private int current = 0; // Entry the stream is in
+    private long currentRemaining = 0;
+    private FileChannel channel; // Open while the current entry has bytes to come
+    private long received = 0;
+    private int reportedStep = -1;
+    private File directory; // Set once finished
+
+    public IncomingBundle(String name, int entryCount, long totalSize, File downloadsDir) throws IOException {
+        if (entryCount < 0 || entryCount > MAX_ENTRIES || totalSize < 0) {
+            throw new IOException("Invalid bundle: " + entryCount + " entries, " + totalSize + " bytes");
+        }
+        checkPath(name);
+        if (name.indexOf('/') >= 0) {
+            throw new IOException("Invalid bundle name: " + name);
+        }
+        if (!downloadsDir.exists()) {
+            downloadsDir.mkdirs();
+        }
+        if (downloadsDir.getUsableSpace() < totalSize) {
+            throw new IOException(String.format("Not enough disk space for %s (%.1f MB)", name,
+                    totalSize / (1024.0 * 1024.0)));
+        }
+        this.name = name;
+        this.entryCount = entryCount;
+        this.totalSize = totalSize;
+        this.downloadsDir = downloadsDir;
+        this.partDirectory = FileTransfers.partFile(downloadsDir, name, Long.toHexString(System.nanoTime()));
+        if (!partDirectory.mkdirs()) {
+            throw new IOException("Could not create " + partDirectory);
+        }
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds an entry of the manifest.
+     *
+     * @param size The file's size, or -1 for an empty directory
+     */
+    public void addEntry(String path, long size) throws IOException {
+        checkPath(path);
+        if (paths.size() >= entryCount) {
+            throw new IOException("More entries than the bundle announced");
+        }
+        announcedSize += Math.max(0, size);
+        if (size < -1 || announcedSize > totalSize) {
+            throw new IOException("Bundle entries larger than the bundle");
+        }
+        paths.add(path);
+        sizes.add(size);
+        if (size >= 0) {
+            fileCount++;
+        }
+    }
+
+    public boolean isManifestComplete() {
+        return paths.size() == entryCount;
+    }
+
+    /**
+     * @return true once the manifest is complete, and again each time
+     *         another quarter of the bundle has arrived, short of all of it
+     */
+    public boolean takeProgressStep() {
+        if (!isManifestComplete()) {
+            return false;
+        }
+        int step = totalSize > 0 ? (int) (received * PROGRESS_STEPS / totalSize) : PROGRESS_STEPS;
+        if (step > reportedStep && (step < PROGRESS_STEPS || reportedStep < 0)) {
+            reportedStep = step;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the next bytes of the stream, across as many entries as they cover.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        if (received + data.remaining() > totalSize) {
+            throw new IOException("Bundle size mismatch. Expected: " + totalSize +
+                    ", Received: " + (received + data.remaining()));
+        }
+        checksum.update(data.duplicate());
+        received += data.remaining();
+        while (data.hasRemaining()) {
+            openNext();
+            if (channel == null) {
+                throw new IOException("Bundle data before its manifest");
+            }
+            int length = (int) Math.min(data.remaining(), currentRemaining);
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + length);
+            while (slice.hasRemaining()) {
+                channel.write(slice);
+            }
+            data.position(slice.position());
+            currentRemaining -= length;
+            if (currentRemaining == 0) {
+                closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Completes the bundle after the sender's BUNDLE_END and moves it into
+     * place.
+     */
+    public void finish(int expectedChecksum) throws IOException {
+        if (!isManifestComplete() || announcedSize != totalSize) {
+            throw new IOException("Bundle manifest incomplete: " + paths.size() + " of " + entryCount + " entries");
+        }
+        if (received != totalSize) {
+            throw new IOException("Bundle size mismatch. Expected: " + totalSize + ", Received: " + received);
+        }
+        openNext(); // Empty files and directories after the last byte
+        if ((int) checksum.getValue() != expectedChecksum) {
+            throw new IOException("Checksum mismatch for " + name);
+        }
+        File target = new File(downloadsDir, name);
+        for (int i = 2; target.exists(); i++) {
+            target = new File(downloadsDir, name + " (" + i + ")");
+        }
+        Files.move(partDirectory.toPath(), target.toPath());
+        directory = target;
+    }
+
+    /**
+     * Gives up on the bundle and deletes what was written of it.
+     */
+    public void abort() {
+        closeEntry();
+        try (Stream<Path> walk = Files.walk(partDirectory.toPath())) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            /* Ignore, nothing more can be done */ }
+    }
+
+    // Moves on to the entry the next byte belongs to, creating empty files and directories on the way
+    private void openNext() throws IOException {
+        while (channel == null && current < paths.size()) {
+            long size = sizes.get(current);
+            File file = new File(partDirectory, paths.get(current).replace('/', File.separatorChar));
+            File parent = size < 0 ? file : file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create " + parent);
+            }
+            if (size >= 0) {
+                RandomAccessFile access = new RandomAccessFile(file, "rw");
+                try {
+                    if (size > PREALLOCATE_SIZE) {
+                        access.setLength(size); // As IncomingTransfer does, so the space can be reserved in one piece
+                    }
+                } catch (IOException e) {
+                    access.close();
+                    throw e;
+                }
+                if (size > 0) {
+                    channel = access.getChannel();
+                    currentRemaining = size;
+                    return;
+                }
+                access.close();
+            }
+            current++;
+        }
+    }
+
+    private void closeEntry() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* Ignore */ }
+            channel = null;
+            current++;
+        }
+    }
+
+    /**
+     * Rejects paths that are absolute or would leave the bundle's directory.
+     * Paths use '/' between names on every platform.
+     */
+    static void checkPath(String path) throws IOException {
+        if (path.isEmpty() || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0 || path.indexOf('\0') >= 0) {
+            throw new IOException("Invalid path in bundle: " + path);
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IOException("Invalid path in bundle: " + path);
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return Where the bundle was saved, once finished
+     */
+    public File getDirectory() {
+        return directory;
+    }
+}
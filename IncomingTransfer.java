@@ -0,0 +1,575 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * State of a file being received chunk by chunk. Chunks go straight from the
+ * frame buffer to a ".part" file next to the final file, so only one chunk is
+ * ever held in memory, and the part file is renamed over the final name once
+ * it is complete. It is extended to the announced size up front, so the
+ * filesystem can reserve the space in one piece. If the connection drops the
+ * part file is cut back to what was received and kept, and a later transfer
+ * of the same file resumes from its current length.
+ *
+ * A striped transfer receives byte ranges over several connections at once
+ * and writes them positionally. It has holes until it completes, so it is
+ * never resumed: it starts from an empty part file and completes once the
+ * sender's FILE_END and every byte have both arrived, in either order.
+ *
+ * The content hash is computed as the data arrives and checked against the
+ * hash the sender announced. When the sender checksums its chunks, a chunk
+ * that arrives damaged is skipped and its range kept for the sender to send
+ * again, and if the finished file does not match its hash, the leaves of the
+ * two Merkle trees show which ranges to send again. A file the downloads
+ * directory already holds is not sent at all; it becomes a transfer that is
+ * complete from the start and whose file is a local link or copy. One it
+ * holds an older version of may be sent as a delta, whose unchanged blocks
+ * are copied from that older file, the basis, rather than received, see
+ * {@link FileDelta}.
+ */
+public class IncomingTransfer {
+    private final String fileName;
+    private final long expectedSize;
+    private final File file;
+    private final File partFile;
+    private final long resumedFrom;
+    private final boolean striped;
+    private final boolean deduplicated;
+    private final String expectedHash;
+    private final MerkleTree.Builder tree;
+    private final FileChannel fileChannel;
+    private final long startTime = System.currentTimeMillis();
+    private long received;
+    // Ranges of a striped transfer written so far, start to end, so ranges sent twice are counted once
+    private final NavigableMap<Long, Long> covered = new TreeMap<>();
+    private String contentHash;
+    private boolean endSeen = false;
+    private boolean completed = false;
+    private FileChannel basis; // Older copy of the file blocks are copied from, in a delta transfer
+    private long basisSize;
+
+    // Repair of damaged data, when the sender checksums its chunks
+    public static final int MAX_REPAIR_ROUNDS = 3;
+    private boolean repairable = false;
+    private final List<long[]> badRanges = new ArrayList<>(); // Offset and length of each damaged range
+    private byte[][] leafHashes; // Set once verified
+    private byte[][] senderLeafHashes;
+    private int senderLeafHashCount;
+    private int repairRounds = 0;
+    private boolean leafHashesRequested = false;
+
+    public IncomingTransfer(String fileName, long expectedSize, File file, File partFile) throws IOException {
+        this(fileName, expectedSize, file, partFile, false, null);
+    }
+
+    /**
+     * @param expectedHash Content hash announced by the sender, or null to accept any content
+     */
+    public IncomingTransfer(String fileName, long expectedSize, File file, File partFile, boolean striped,
+            String expectedHash) throws IOException {
+        this.fileName = fileName;
+        this.expectedSize = expectedSize;
+        this.file = file;
+        this.partFile = partFile;
+        this.striped = striped;
+        this.deduplicated = false;
+        this.expectedHash = expectedHash;
+        this.tree = new MerkleTree.Builder(expectedSize);
+        RandomAccessFile partAccess = new RandomAccessFile(partFile, "rw");
+        this.fileChannel = partAccess.getChannel();
+
+        // Resume after whatever a previous attempt left behind, unless it cannot belong to this file.
+        // A part file of the full size was either complete or preallocated by an attempt that
+        // never got to cut it back, so it is only trusted if its content checks out.
+        long existing = fileChannel.size();
+        if (striped || existing > expectedSize || (existing == expectedSize && !hasExpectedContent(existing))) {
+            fileChannel.truncate(0);
+            existing = 0;
+        }
+        tree.skip(existing); // Hashed from the part file at the end, in parallel
+        this.resumedFrom = existing;
+        this.received = existing;
+        fileChannel.position(existing);
+        try {
+            partAccess.setLength(expectedSize);
+        } catch (IOException e) {
+            fileChannel.close();
+            throw new IOException("Not enough space for " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    private boolean hasExpectedContent(long size) throws IOException {
+        if (size == 0) {
+            return true;
+        }
+        if (expectedHash == null || expectedHash.isEmpty()) {
+            return false;
+        }
+        return expectedHash.equals(MerkleTree.root(fileChannel, size));
+    }
+
+    private IncomingTransfer(String fileName, long size, File file, String contentHash) {
+        this.fileName = fileName;
+        this.expectedSize = size;
+        this.file = file;
+        this.partFile = null;
+        this.striped = false;
+        this.deduplicated = true;
+        this.expectedHash = contentHash;
+        this.tree = null;
+        this.fileChannel = null;
+        this.resumedFrom = size;
+        this.received = size;
+        this.contentHash = contentHash;
+        this.completed = true;
+    }
+
+    /**
+     * Completes a transfer from a local file with the same content instead of
+     * the network. The file is hard-linked when both are in the same
+     * directory and copied otherwise, through the part file so the final
+     * name only ever holds the whole file.
+     */
+    public static IncomingTransfer fromLocalCopy(String fileName, long size, File file, File partFile,
+            File source, String contentHash) throws IOException {
+        if (!source.getCanonicalFile().equals(file.getCanonicalFile())) {
+            Files.deleteIfExists(partFile.toPath());
+            boolean linked = false;
+            if (source.getCanonicalFile().getParentFile().equals(file.getCanonicalFile().getParentFile())) {
+                try {
+                    Files.createLink(partFile.toPath(), source.toPath());
+                    linked = true;
+                } catch (IOException | UnsupportedOperationException e) {
+                    /* Fall back to a copy */ }
+            }
+            if (!linked) {
+                Files.copy(source.toPath(), partFile.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            moveIntoPlace(partFile, file);
+        }
+        return new IncomingTransfer(fileName, size, file, contentHash);
+    }
+
+    public void write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (received + length > expectedSize) {
+            throw new IOException("File size mismatch. Expected: " + expectedSize +
+                    ", Received: " + (received + length));
+        }
+        tree.update(data);
+        while (data.hasRemaining()) {
+            fileChannel.write(data);
+        }
+        received += length;
+    }
+
+    /**
+     * Opens the older copy of the file a delta transfer copies blocks from.
+     */
+    public void openBasis(File basisFile) throws IOException {
+        basis = FileChannel.open(basisFile.toPath(), StandardOpenOption.READ);
+        basisSize = basis.size();
+    }
+
+    /**
+     * @return The older copy blocks are copied from, or null if there is none
+     */
+    public FileChannel getBasis() {
+        return basis;
+    }
+
+    public long getBasisSize() {
+        return basisSize;
+    }
+
+    /**
+     * Appends blocks of the basis where the sender of a delta put them
+     * instead of their data. They are hashed from the part file at the end.
+     */
+    public void copyFromBasis(long firstBlock, long count) throws IOException {
+        int blockSize = FileDelta.blockSize(basisSize);
+        if (basis == null || firstBlock < 0 || count <= 0 || firstBlock + count > basisSize / blockSize) {
+            throw new IOException("Invalid blocks to copy for " + fileName + ": " + firstBlock + "+" + count);
+        }
+        long length = count * blockSize;
+        if (received + length > expectedSize) {
+            throw new IOException("File size mismatch. Expected: " + expectedSize +
+                    ", Received: " + (received + length));
+        }
+        long position = firstBlock * blockSize;
+        long copied = 0;
+        while (copied < length) {
+            long transferred = basis.transferTo(position + copied, length - copied, fileChannel);
+            if (transferred <= 0) {
+                throw new IOException("Older copy of " + fileName + " changed while copying from it");
+            }
+            copied += transferred;
+        }
+        tree.skip(length);
+        received += length;
+    }
+
+    /**
+     * Moves past a chunk that arrived damaged, keeping its range to be sent again.
+     */
+    public synchronized void skip(int length) throws IOException {
+        if (received + length > expectedSize) {
+            throw new IOException("File size mismatch. Expected: " + expectedSize +
+                    ", Received: " + (received + length));
+        }
+        long[] last = badRanges.isEmpty() ? null : badRanges.get(badRanges.size() - 1);
+        if (last != null && last[0] + last[1] == received) {
+            last[1] += length;
+        } else {
+            badRanges.add(new long[] { received, length });
+        }
+        tree.skip(length);
+        received += length;
+        fileChannel.position(received);
+    }
+
+    /**
+     * Writes data the sender sent again for a damaged range.
+     */
+    public synchronized void repair(ByteBuffer data, long position) throws IOException {
+        int length = data.remaining();
+        if (position < 0 || position + length > expectedSize) {
+            throw new IOException("File range out of bounds. Size: " + expectedSize +
+                    ", Range end: " + (position + length));
+        }
+        long offset = position;
+        while (data.hasRemaining()) {
+            offset += fileChannel.write(data, offset);
+        }
+        tree.markStale(position, length);
+
+        // Take the range out of the damaged ones, splitting any it lies inside
+        List<long[]> remaining = new ArrayList<>();
+        for (long[] range : badRanges) {
+            long end = range[0] + range[1];
+            if (range[0] < position) {
+                remaining.add(new long[] { range[0], Math.min(end, position) - range[0] });
+            }
+            if (end > position + length) {
+                long start = Math.max(range[0], position + length);
+                remaining.add(new long[] { start, end - start });
+            }
+        }
+        badRanges.clear();
+        badRanges.addAll(remaining);
+    }
+
+    /**
+     * Writes one range of a striped transfer. Safe to call from several
+     * connections at once, and with ranges that overlap ones already
+     * written.
+     */
+    public void writeAt(ByteBuffer data, long position) throws IOException {
+        int length = data.remaining();
+        if (position < 0 || position + length > expectedSize) {
+            throw new IOException("File range out of bounds. Size: " + expectedSize +
+                    ", Range end: " + (position + length));
+        }
+        long offset = position;
+        while (data.hasRemaining()) {
+            offset += fileChannel.write(data, offset);
+        }
+        synchronized (this) {
+            received += cover(position, position + length);
+        }
+    }
+
+    // Adds a range to the covered ones, merging it with those it touches, and returns how many of its bytes are new
+    private long cover(long start, long end) {
+        long mergedStart = start;
+        long mergedEnd = end;
+        long overlap = 0;
+        Map.Entry<Long, Long> before = covered.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            mergedStart = before.getKey();
+        }
+        Iterator<Map.Entry<Long, Long>> touching = covered.subMap(mergedStart, true, end, true).entrySet().iterator();
+        while (touching.hasNext()) {
+            Map.Entry<Long, Long> range = touching.next();
+            overlap += Math.max(0, Math.min(range.getValue(), end) - Math.max(range.getKey(), start));
+            mergedEnd = Math.max(mergedEnd, range.getValue());
+            touching.remove();
+        }
+        covered.put(mergedStart, mergedEnd);
+        return end - start - overlap;
+    }
+
+    /**
+     * Records that the sender has sent everything.
+     */
+    public synchronized void markEnd() {
+        endSeen = true;
+    }
+
+    /**
+     * Returns true exactly once, when a striped transfer has both seen its
+     * end and received every byte of the file; the caller then finishes it.
+     */
+    public synchronized boolean tryComplete() {
+        if (completed || !endSeen || received < expectedSize) {
+            return false;
+        }
+        completed = true;
+        return true;
+    }
+
+    public boolean isStriped() {
+        return striped;
+    }
+
+    /**
+     * @return True if the file was already on disk and nothing was received
+     */
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+
+    public synchronized void setRepairable(boolean repairable) {
+        this.repairable = repairable;
+    }
+
+    /**
+     * @return True if the sender checksums its chunks and sends damaged ranges again
+     */
+    public synchronized boolean isRepairable() {
+        return repairable;
+    }
+
+    /**
+     * @return The offset and length of every range that arrived damaged and
+     *         has not been sent again yet
+     */
+    public synchronized List<long[]> getBadRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        for (long[] range : badRanges) {
+            ranges.add(range.clone());
+        }
+        return ranges;
+    }
+
+    /**
+     * Counts a round of asking the sender for data or hashes again.
+     *
+     * @return False once the rounds are used up and the transfer should fail
+     */
+    public synchronized boolean startRepairRound() {
+        return ++repairRounds <= MAX_REPAIR_ROUNDS;
+    }
+
+    /**
+     * @return True once the sender has been asked for data again; what it
+     *         sends then arrives on the control connection, also for a
+     *         striped transfer
+     */
+    public synchronized boolean isRepairing() {
+        return repairRounds > 0;
+    }
+
+    /**
+     * Records that the sender's leaf hashes have been asked for.
+     *
+     * @return False if they were asked for already
+     */
+    public synchronized boolean requestLeafHashes() {
+        if (leafHashesRequested) {
+            return false;
+        }
+        leafHashesRequested = true;
+        return true;
+    }
+
+    /**
+     * Stores some of the sender's leaf hashes.
+     *
+     * @return True once all of them have arrived
+     */
+    public synchronized boolean addSenderLeafHashes(int first, int total, ByteBuffer hashes) throws IOException {
+        if (total != MerkleTree.leafCount(expectedSize) || first < 0
+                || first + hashes.remaining() / MerkleTree.HASH_SIZE > total) {
+            throw new IOException("Leaf hashes do not fit " + fileName);
+        }
+        if (senderLeafHashes == null) {
+            senderLeafHashes = new byte[total][];
+        }
+        for (int leaf = first; hashes.remaining() >= MerkleTree.HASH_SIZE; leaf++) {
+            if (senderLeafHashes[leaf] == null) {
+                senderLeafHashCount++;
+            }
+            senderLeafHashes[leaf] = new byte[MerkleTree.HASH_SIZE];
+            hashes.get(senderLeafHashes[leaf]);
+        }
+        return senderLeafHashCount == total;
+    }
+
+    /**
+     * Compares the sender's leaf hashes with ours and marks every leaf that
+     * differs as a damaged range.
+     *
+     * @return The number of leaves that differ
+     */
+    public synchronized int markDifferingLeaves() {
+        int differing = 0;
+        for (int leaf = 0; leaf < leafHashes.length; leaf++) {
+            if (!Arrays.equals(leafHashes[leaf], senderLeafHashes[leaf])) {
+                long offset = (long) leaf * MerkleTree.LEAF_SIZE;
+                badRanges.add(new long[] { offset, Math.min(MerkleTree.LEAF_SIZE, expectedSize - offset) });
+                differing++;
+            }
+        }
+        senderLeafHashes = null;
+        senderLeafHashCount = 0;
+        return differing;
+    }
+
+    /**
+     * Checks the size and computes the content hash, hashing whatever was
+     * not hashed on the way in on every core.
+     *
+     * @return False if the content does not match the hash the sender announced
+     */
+    public boolean verify() throws IOException {
+        long total;
+        synchronized (this) {
+            total = received;
+        }
+        if (total != expectedSize) {
+            throw new IOException("File size mismatch. Expected: " + expectedSize +
+                    ", Received: " + total);
+        }
+
+        byte[][] leaves = tree.finish(fileChannel);
+        synchronized (this) {
+            leafHashes = leaves;
+        }
+        contentHash = ContentIndex.toHex(MerkleTree.root(leaves));
+        return expectedHash == null || expectedHash.isEmpty() || expectedHash.equals(contentHash);
+    }
+
+    /**
+     * Verifies the size and content hash and moves the part file into place.
+     */
+    public void finish() throws IOException {
+        try {
+            if (!verify()) {
+                throw new IOException("Content hash mismatch for " + fileName);
+            }
+        } finally {
+            fileChannel.close();
+            closeBasis(); // Before the file it reads is replaced
+        }
+        moveIntoPlace(partFile, file);
+    }
+
+    static void moveIntoPlace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Stops receiving but keeps the part file so the transfer can be resumed.
+     * A striped part file has holes and cannot be resumed, so it is deleted.
+     */
+    public void suspend() {
+        try {
+            if (!striped && fileChannel.isOpen()) {
+                fileChannel.truncate(intactLength()); // Drop the preallocated tail and any damaged range
+            }
+        } catch (IOException e) {
+            /* Ignore, the next attempt checks the part file */ }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            /* Ignore */ }
+        closeBasis();
+        if (striped) {
+            partFile.delete();
+        }
+    }
+
+    private void closeBasis() {
+        if (basis != null) {
+            try {
+                basis.close();
+            } catch (IOException e) {
+                /* Ignore */ }
+        }
+    }
+
+    // Length of the part file from the start up to the first damaged range
+    private synchronized long intactLength() {
+        long length = received;
+        for (long[] range : badRanges) {
+            length = Math.min(length, range[0]);
+        }
+        return length;
+    }
+
+    /**
+     * Stops receiving and deletes the part file; used when the data is known to be bad.
+     */
+    public void abort() {
+        suspend();
+        partFile.delete();
+    }
+
+    /**
+     * @return How many bytes of the file are on disk so far
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getExpectedSize() {
+        return expectedSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return How many bytes were already on disk when this transfer started
+     */
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    /**
+     * @return The content hash of the received file, once it is finished
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+}
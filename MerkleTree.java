@@ -0,0 +1,196 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Content hash of a file as a Merkle tree. The file is cut into 1MB leaves
+ * that are hashed independently, and the leaf hashes are combined pairwise
+ * up to a single root. The root identifies the content just like a hash of
+ * the whole file, but the leaves of a large file are hashed on every core at
+ * once, and when a received copy does not match, comparing leaf hashes shows
+ * which megabytes differ so only those are sent again.
+ *
+ * Leaves and inner nodes are hashed with different prefix bytes, so a leaf
+ * can never pass for a node. A node without a sibling moves up unchanged.
+ */
+public final class MerkleTree {
+    public static final int LEAF_SIZE = 1024 * 1024;
+    public static final int HASH_SIZE = 32; // SHA-256
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    // Buffers for hashing leaves read from disk, one per worker thread
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocateDirect(LEAF_SIZE));
+
+    private MerkleTree() {
+    }
+
+    public static int leafCount(long size) {
+        return size == 0 ? 1 : (int) ((size + LEAF_SIZE - 1) / LEAF_SIZE);
+    }
+
+    /**
+     * Hashes every leaf of the first size bytes of a file, in parallel.
+     */
+    public static byte[][] leafHashes(FileChannel channel, long size) throws IOException {
+        byte[][] leaves = new byte[leafCount(size)][];
+        hashLeaves(channel, size, leaves);
+        return leaves;
+    }
+
+    /**
+     * Returns the root of the first size bytes of a file as hex.
+     */
+    public static String root(FileChannel channel, long size) throws IOException {
+        return ContentIndex.toHex(root(leafHashes(channel, size)));
+    }
+
+    public static byte[] root(byte[][] leaves) {
+        MessageDigest digest = ContentIndex.newDigest();
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    parents[i] = level[2 * i];
+                    continue;
+                }
+                digest.update(NODE_PREFIX);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                parents[i] = digest.digest();
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    // Fills in every missing leaf hash from the file, spreading the leaves over the common pool
+    private static void hashLeaves(FileChannel channel, long size, byte[][] leaves) throws IOException {
+        try {
+            IntStream.range(0, leaves.length).parallel().filter(leaf -> leaves[leaf] == null).forEach(leaf -> {
+                try {
+                    leaves[leaf] = hashLeaf(channel, size, leaf);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static byte[] hashLeaf(FileChannel channel, long size, int leaf) throws IOException {
+        MessageDigest digest = ContentIndex.newDigest();
+        digest.update(LEAF_PREFIX);
+        ByteBuffer buffer = READ_BUFFERS.get();
+        long position = (long) leaf * LEAF_SIZE;
+        long end = Math.min(size, position + LEAF_SIZE);
+        buffer.clear();
+        buffer.limit((int) (end - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File ended while hashing");
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    /**
+     * Hashes a file as it is received. Data that arrives in order is hashed
+     * as it goes past; leaves written out of order, skipped or rewritten are
+     * marked stale and hashed from the file at the end, in parallel.
+     */
+    public static class Builder {
+        private final long size;
+        private final byte[][] leaves;
+        private final BitSet stale = new BitSet();
+        private final MessageDigest digest = ContentIndex.newDigest();
+        private long position = 0; // Where the data hashed in order has reached
+
+        public Builder(long size) {
+            this.size = size;
+            this.leaves = new byte[leafCount(size)][];
+            digest.update(LEAF_PREFIX);
+        }
+
+        /**
+         * Hashes data that follows on from everything before it.
+         */
+        public void update(ByteBuffer data) {
+            ByteBuffer rest = data.duplicate();
+            while (rest.hasRemaining()) {
+                long leafEnd = Math.min(size, (position / LEAF_SIZE + 1) * LEAF_SIZE);
+                int length = (int) Math.min(rest.remaining(), leafEnd - position);
+                int limit = rest.limit();
+                rest.limit(rest.position() + length);
+                digest.update(rest);
+                rest.limit(limit);
+                position += length;
+                if (position == leafEnd) {
+                    finishLeaf();
+                }
+            }
+        }
+
+        /**
+         * Moves past data that was not hashed in order; its leaves are
+         * hashed from the file at the end.
+         */
+        public void skip(long length) {
+            markStale(position, length);
+            long end = position + length;
+            while (position < end) {
+                long leafEnd = Math.min(size, (position / LEAF_SIZE + 1) * LEAF_SIZE);
+                position = Math.min(end, leafEnd);
+                if (position == leafEnd) {
+                    finishLeaf();
+                }
+            }
+        }
+
+        /**
+         * Marks the leaves a range of the file touches as needing a hash from the file.
+         */
+        public void markStale(long offset, long length) {
+            if (length <= 0) {
+                return;
+            }
+            int first = (int) (offset / LEAF_SIZE);
+            int last = (int) ((offset + length - 1) / LEAF_SIZE);
+            stale.set(first, last + 1);
+            for (int leaf = first; leaf <= last && leaf < leaves.length; leaf++) {
+                leaves[leaf] = null;
+            }
+        }
+
+        /**
+         * Returns the hash of every leaf, hashing stale and missing ones
+         * from the file.
+         */
+        public byte[][] finish(FileChannel channel) throws IOException {
+            hashLeaves(channel, size, leaves);
+            stale.clear();
+            return Arrays.copyOf(leaves, leaves.length);
+        }
+
+        private void finishLeaf() {
+            int leaf = (int) ((position - 1) / LEAF_SIZE);
+            byte[] hash = digest.digest();
+            if (!stale.get(leaf)) {
+                leaves[leaf] = hash;
+            }
+            digest.update(LEAF_PREFIX);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark of concurrent file transfers sharing one connection.
+ * The sender streams one or two large files at once, each on its own bulk
+ * stream, while it sends a timestamped chat message every few milliseconds.
+ * For each run, every transfer's throughput and finish time and the time
+ * chat messages took to arrive are printed. With equal weights both
+ * transfers should progress together and finish at about the same time,
+ * and chat should not wait behind either of them.
+ *
+ * A receiver rate other than 0 makes the receiver read no faster than that,
+ * standing in for a slow disk. Its credit then paces each transfer, so the
+ * transfers share its rate evenly whatever their weights, and chat waits
+ * behind the data in flight much as with {@link TransferBenchmark}.
+ *
+ * Usage: java com.chatapp.MultiplexBenchmark [file MB] [receiver MB/s, 0 for full speed]
+ */
+public final class MultiplexBenchmark {
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024 * 1024; // As the client connection
+    private static final long CHAT_INTERVAL = 20; // Milliseconds between chat messages
+
+    private MultiplexBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        double receiveRate = (args.length > 1 ? Double.parseDouble(args[1]) : 0) * 1024 * 1024;
+
+        File directory = Files.createTempDirectory("chatapp-multiplex").toFile();
+        File source = new File(directory, "source.bin");
+        PeerBenchmark.writeRandomFile(source, fileMegabytes * 1024L * 1024);
+        System.out.printf("TCP loopback, %d MB files, receiver reading at %s%n", fileMegabytes,
+                receiveRate > 0 ? String.format("%.0f MB/s", receiveRate / (1024 * 1024)) : "full speed");
+
+        run("one transfer", source, new File(directory, "one"), receiveRate, 1);
+        run("two, 1:1", source, new File(directory, "even"), receiveRate, 1, 1);
+        run("two, 2:1", source, new File(directory, "weighted"), receiveRate, 2, 1);
+    }
+
+    private static void run(String label, File source, File downloadsDir, double receiveRate, int... weights)
+            throws Exception {
+        List<Long> chatLatencies = Collections.synchronizedList(new ArrayList<>());
+        Map<String, CompletableFuture<Long>> finished = new ConcurrentHashMap<>(); // By file name, at nanoTime
+        for (int i = 0; i < weights.length; i++) {
+            finished.put(fileName(label, i), new CompletableFuture<>());
+        }
+        ChatListener listener = new ChatListener() {
+            @Override
+            public void onMessage(String peer, String message) {
+                chatLatencies.add(System.nanoTime() - Long.parseLong(message));
+            }
+
+            @Override
+            public void onRoomMessage(String room, String sender, String message) {
+            }
+
+            @Override
+            public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                    long receivedBytes) {
+            }
+
+            @Override
+            public void onFilesReceived(String peer, IncomingBundle bundle) {
+            }
+
+            @Override
+            public void onTyping(String peer, boolean typing) {
+            }
+
+            @Override
+            public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+            }
+
+            @Override
+            public void onFileReceived(String peer, IncomingTransfer transfer) {
+                finished.get(transfer.getFileName()).complete(System.nanoTime());
+            }
+
+            @Override
+            public void onFileFailed(String peer, String reason) {
+                for (CompletableFuture<Long> transfer : finished.values()) {
+                    transfer.completeExceptionally(new IOException(reason));
+                }
+            }
+        };
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread receiver = new Thread(() -> receive(server, downloadsDir, listener, receiveRate), "Receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            try (SocketChannel channel = SocketChannel.open()) {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+                channel.connect(server.getLocalAddress());
+                FrameWriter writer = new FrameWriter(channel);
+                writer.writePreamble();
+                OutboundWriter outbound = new OutboundWriter(writer);
+                outbound.start("Writer");
+
+                // Replies from the receiver: an accept per transfer, then credit as it writes
+                Map<Long, CompletableFuture<long[]>> accepts = new ConcurrentHashMap<>();
+                Map<Long, FlowControl.Sender> credits = new ConcurrentHashMap<>();
+                for (long id = 1; id <= weights.length; id++) {
+                    accepts.put(id, new CompletableFuture<>());
+                }
+                FrameDecoder decoder = new FrameDecoder();
+                decoder.register(FrameType.FILE_ACCEPT, (flags, payload) -> {
+                    long id = FrameCodec.getVarLong(payload);
+                    long offset = FrameCodec.getVarLong(payload);
+                    long limit = (flags & FrameType.FLAG_FILE_CREDIT) != 0 ? FrameCodec.getVarLong(payload) : -1;
+                    accepts.get(id).complete(new long[] { offset, limit });
+                });
+                decoder.register(FrameType.FILE_CREDIT, (flags, payload) -> {
+                    FlowControl.Sender credit = credits.get(FrameCodec.getVarLong(payload));
+                    long written = FrameCodec.getVarLong(payload);
+                    long limit = FrameCodec.getVarLong(payload);
+                    if (credit != null) {
+                        credit.grant(written, limit);
+                    }
+                });
+                ConnectionExecutors.execute("Replies", () -> {
+                    try {
+                        while (decoder.readFrom(channel) >= 0) {
+                            // Dispatched as they complete
+                        }
+                    } catch (IOException e) {
+                        /* Closed at the end of the run */ }
+                });
+
+                CompletableFuture<?> allFinished = CompletableFuture.allOf(
+                        finished.values().toArray(new CompletableFuture<?>[0]));
+                Thread chatter = new Thread(() -> {
+                    try {
+                        while (!allFinished.isDone()) {
+                            outbound.sendText(OutboundWriter.LANE_CHAT, FrameType.CHAT, 0,
+                                    Long.toString(System.nanoTime()));
+                            Thread.sleep(CHAT_INTERVAL);
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        /* Stop chatting */ }
+                }, "Chatter");
+                chatter.start();
+
+                long startTime = System.nanoTime();
+                List<Future<Void>> senders = new ArrayList<>();
+                for (int i = 0; i < weights.length; i++) {
+                    long id = i + 1;
+                    int weight = weights[i];
+                    String name = fileName(label, i);
+                    senders.add(ConnectionExecutors.submit("Send-" + name, () -> {
+                        send(outbound, source, id, name, weight, accepts.get(id), credits);
+                        return null;
+                    }));
+                }
+                for (Future<Void> sender : senders) {
+                    sender.get(10, TimeUnit.MINUTES);
+                }
+                allFinished.get(10, TimeUnit.MINUTES);
+                chatter.join();
+                outbound.close();
+
+                StringBuilder transfers = new StringBuilder();
+                for (int i = 0; i < weights.length; i++) {
+                    double seconds = (finished.get(fileName(label, i)).get() - startTime) / 1e9;
+                    transfers.append(String.format("  #%d %6.1f MB/s at %5.2f s", i + 1,
+                            source.length() / seconds / (1024 * 1024), seconds));
+                }
+                List<Long> latencies = new ArrayList<>(chatLatencies);
+                Collections.sort(latencies);
+                System.out.printf("%-12s%-50s  chat p50 %6.1f ms  p99 %6.1f ms  max %6.1f ms%n", label, transfers,
+                        PeerBenchmark.percentile(latencies, 50), PeerBenchmark.percentile(latencies, 99),
+                        PeerBenchmark.percentile(latencies, 100));
+            }
+        }
+    }
+
+    // Streams one file on its own bulk stream, under the receiver's credit
+    private static void send(OutboundWriter outbound, File source, long id, String name, int weight,
+            CompletableFuture<long[]> accept, Map<Long, FlowControl.Sender> credits) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            outbound.send(OutboundWriter.LANE_CONTROL, FrameType.FILE_START, FrameType.FLAG_FILE_FLOW_CONTROL,
+                    FileTransfers.encodeFileStart(id, fileSize, name, "benchmark-" + System.nanoTime(), ""));
+            long[] accepted = accept.get(30, TimeUnit.SECONDS);
+            FlowControl.Sender credit = accepted[1] >= 0 ? new FlowControl.Sender(accepted[0], accepted[1]) : null;
+            if (credit != null) {
+                credits.put(id, credit);
+            }
+            OutboundWriter.Stream stream = outbound.openStream(id, weight);
+            FileTransfers.sendChunks(stream, fileChannel, accepted[0], fileSize, null, credit, false);
+            stream.close();
+        }
+    }
+
+    private static String fileName(String label, int index) {
+        return label.replaceAll("[^a-z0-9]+", "-") + "-" + (index + 1) + ".bin";
+    }
+
+    // Receives on one connection, reading no faster than the given rate unless it is 0
+    private static void receive(ServerSocketChannel server, File downloadsDir, ChatListener listener,
+            double bytesPerSecond) {
+        try (SocketChannel channel = server.accept()) {
+            FrameWriter writer = new FrameWriter(channel);
+            writer.writePreamble();
+            PeerSession session = new PeerSession("sender", downloadsDir, listener, writer::writeFrame);
+            long startTime = System.nanoTime();
+            long total = 0;
+            int read;
+            while ((read = session.readFrom(channel)) >= 0) {
+                total += read;
+                long wait = startTime + (long) (total / bytesPerSecond * 1e9) - System.nanoTime();
+                if (bytesPerSecond > 0 && wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            session.close();
+        } catch (IOException | InterruptedException e) {
+            /* Sender finished */ }
+    }
+}
@@ -0,0 +1,387 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends every outgoing frame of one connection from a single writer thread,
+ * so callers such as the FX thread only queue a frame and return.
+ *
+ * Control frames (protocol replies) and chat frames (messages and typing)
+ * wait in two lock-free lanes that always go first; everything queued there
+ * is coalesced into one gathering write. Bulk data is multiplexed over
+ * logical streams, one per file transfer: each stream has its own queue and
+ * a credit window bounding how many bytes it may have queued, and streams
+ * with data take turns by weighted deficit round-robin. The writer goes back
+ * to the control and chat lanes after every bulk frame, so a chat message
+ * waits behind one file chunk at most, and several transfers share the
+ * connection in proportion to their weights.
+ *
+ * With a {@link RateLimiter}, bulk frames also wait for tokens. The writer
+ * does not sleep while it waits: it parks until the tokens are due and keeps
+ * sending control and chat frames as they are queued, which are never
+ * limited.
+ */
+public class OutboundWriter {
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_CHAT = 1;
+
+    public static final int DEFAULT_WEIGHT = 1;
+    private static final int QUANTUM = FileTransfers.FILE_CHUNK_SIZE; // Bytes per round for a stream of weight 1
+    private static final int STREAM_WINDOW = 4 * FileTransfers.FILE_CHUNK_SIZE; // Bytes a stream may have queued
+    private static final int MAX_COALESCED_FRAMES = 64;
+
+    private final FrameWriter writer;
+    private final RateLimiter limiter; // Null when bulk data is not limited
+    private final Queue<ByteBuffer> controlLane = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> chatLane = new ConcurrentLinkedQueue<>();
+    private final Queue<Stream> readyStreams = new ConcurrentLinkedQueue<>();
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_COALESCED_FRAMES];
+    private Stream current; // Stream whose turn it is; writer thread only
+    private long throttled; // Nanoseconds the next bulk frame waits for tokens; writer thread only
+    private volatile Thread thread;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+
+    public OutboundWriter(FrameWriter writer) {
+        this(writer, null);
+    }
+
+    public OutboundWriter(FrameWriter writer, RateLimiter limiter) {
+        this.writer = writer;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Starts the writer thread on the connection executor.
+     */
+    public void start(String name) {
+        start(name, () -> {
+        });
+    }
+
+    /**
+     * Starts the writer thread on the connection executor.
+     *
+     * @param onFailure Runs on the writer thread if a write fails, so the
+     *        owner can close the connection rather than go on reading from a
+     *        link nothing can be sent on
+     */
+    public void start(String name, Runnable onFailure) {
+        ConnectionMetrics.watchQueue(this, this::getQueuedFrames);
+        ConnectionExecutors.execute(name, () -> run(onFailure));
+    }
+
+    /**
+     * Queues one control or chat frame. Never blocks.
+     */
+    public void send(int lane, byte type, int flags, ByteBuffer payload) throws IOException {
+        ByteBuffer frame = encode(type, flags, payload);
+        checkOpen();
+        (lane == LANE_CONTROL ? controlLane : chatLane).add(frame);
+        signal();
+    }
+
+    public void sendText(int lane, byte type, int flags, String text) throws IOException {
+        send(lane, type, flags, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Opens a bulk stream. A stream with weight 2 gets twice the bandwidth of
+     * a stream with weight 1 while both have data queued.
+     */
+    public Stream openStream(long id, int weight) throws IOException {
+        checkOpen();
+        Stream stream = new Stream(id, Math.max(1, weight));
+        streams.add(stream);
+        return stream;
+    }
+
+    /**
+     * @return Frames waiting in the lanes and streams right now
+     */
+    public int getQueuedFrames() {
+        int count = controlLane.size() + chatLane.size();
+        for (Stream stream : streams) {
+            count += stream.queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the writer thread; frames still queued are dropped.
+     */
+    public void close() {
+        closed = true;
+        fail(new IOException("Connection closed"));
+        LockSupport.unpark(thread);
+    }
+
+    private static ByteBuffer encode(byte type, int flags, ByteBuffer payload) throws IOException {
+        if (payload.remaining() > FrameCodec.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Frame too large: " + FrameType.name(type) + " (" + payload.remaining() + " bytes)");
+        }
+        return FrameCodec.encodeFrame(type, flags, payload);
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException(failure.getMessage());
+        }
+    }
+
+    private void signal() {
+        if (signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run(Runnable onFailure) {
+        thread = Thread.currentThread();
+        try {
+            while (!closed) {
+                if (writeUrgent() || writeBulk()) {
+                    continue;
+                }
+
+                // Nothing to send now; sleep until a producer signals or, when rate limited, the
+                // tokens are due. Producers that queue after the flag is cleared will unpark us,
+                // so no frame is left waiting.
+                signalled.set(false);
+                if (controlLane.isEmpty() && chatLane.isEmpty() && !closed) {
+                    if (throttled > 0) {
+                        LockSupport.parkNanos(this, throttled);
+                    } else if (readyStreams.isEmpty()) {
+                        LockSupport.park(this);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+            if (!closed) {
+                onFailure.run();
+            }
+        }
+    }
+
+    // Writes every queued control and chat frame, up to a limit, in one gathering write
+    private boolean writeUrgent() throws IOException {
+        int count = 0;
+        ByteBuffer frame;
+        while (count < MAX_COALESCED_FRAMES && (frame = controlLane.poll()) != null) {
+            gather[count++] = frame;
+        }
+        while (count < MAX_COALESCED_FRAMES && (frame = chatLane.poll()) != null) {
+            gather[count++] = frame;
+        }
+        if (count == 0) {
+            return false;
+        }
+        try {
+            writer.writeFrames(gather, count);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+        }
+        return true;
+    }
+
+    // Writes at most one bulk frame, from the stream whose turn it is
+    private boolean writeBulk() throws IOException {
+        throttled = 0;
+        if (current == null) {
+            current = readyStreams.poll();
+            if (current == null) {
+                return false;
+            }
+            current.deficit += (long) current.weight * QUANTUM;
+        }
+
+        Stream stream = current;
+        BulkItem item = stream.queue.peek();
+        if (item == null) {
+            // Drained; it rejoins the round when something is queued again
+            current = null;
+            stream.deficit = 0;
+            stream.scheduled.set(false);
+            if (!stream.queue.isEmpty() && stream.scheduled.compareAndSet(false, true)) {
+                readyStreams.add(stream);
+            }
+            return true;
+        }
+        if (item.size > stream.deficit) {
+            // Used up its share of this round
+            current = null;
+            readyStreams.add(stream);
+            return true;
+        }
+
+        if (limiter != null) {
+            throttled = limiter.tryAcquire(item.size);
+            if (throttled > 0) {
+                return false; // Keeps its turn until the tokens are due
+            }
+        }
+
+        stream.queue.poll();
+        stream.deficit -= item.size;
+        stream.window.release(windowCost(item.size));
+        item.writeTo(writer);
+        return true;
+    }
+
+    private static int windowCost(int size) {
+        return Math.min(size, STREAM_WINDOW);
+    }
+
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = e;
+        }
+        ConnectionMetrics.unwatchQueue(this);
+        controlLane.clear();
+        chatLane.clear();
+        for (Stream stream : streams) {
+            stream.failQueued(e);
+            // Wake a sender still waiting for credit; it sees the failure
+            stream.window.release(Integer.MAX_VALUE / 2);
+        }
+    }
+
+    /**
+     * One logical bulk stream. Its frames are sent in order, interleaved
+     * with other streams' frames.
+     */
+    public class Stream {
+        private final long id;
+        private final int weight;
+        private final Queue<BulkItem> queue = new ConcurrentLinkedQueue<>();
+        private final Semaphore window = new Semaphore(STREAM_WINDOW);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private long deficit = 0; // Writer thread only
+
+        private Stream(long id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Queues one frame, waiting while the stream's window is full.
+         */
+        public void send(byte type, int flags, ByteBuffer payload) throws IOException {
+            ByteBuffer frame = encode(type, flags, payload);
+            enqueue(new BulkItem(frame.remaining()) {
+                @Override
+                void writeTo(FrameWriter writer) throws IOException {
+                    writer.writeFrames(new ByteBuffer[] { frame }, 1);
+                }
+            });
+        }
+
+        /**
+         * Queues a frame whose payload is a prefix followed by a region of a
+         * file, sent zero-copy by the writer thread.
+         */
+        public void sendFileRegion(byte type, int flags, ByteBuffer prefix, FileChannel file, long position,
+                int length) throws IOException {
+            ByteBuffer prefixCopy = ByteBuffer.allocate(prefix.remaining());
+            prefixCopy.put(prefix.duplicate()).flip();
+            enqueue(new BulkItem(FrameCodec.MAX_HEADER_SIZE + prefixCopy.remaining() + length) {
+                @Override
+                void writeTo(FrameWriter writer) throws IOException {
+                    writer.writeFileRegion(type, flags, prefixCopy, file, position, length);
+                }
+            });
+        }
+
+        /**
+         * Waits until every frame queued on this stream so far has been written.
+         */
+        public void flush() throws IOException {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            enqueue(new BulkItem(0) {
+                @Override
+                void writeTo(FrameWriter writer) {
+                    written.complete(null);
+                }
+
+                @Override
+                void fail(IOException e) {
+                    written.completeExceptionally(e);
+                }
+            });
+            try {
+                written.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending");
+            }
+        }
+
+        public void close() {
+            streams.remove(this);
+        }
+
+        private void enqueue(BulkItem item) throws IOException {
+            checkOpen();
+            try {
+                window.acquire(windowCost(item.size));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending");
+            }
+            checkOpen(); // The writer may have failed while we waited
+            queue.add(item);
+            if (scheduled.compareAndSet(false, true)) {
+                readyStreams.add(this);
+            }
+            signal();
+            if (failure != null) {
+                failQueued(failure); // Failed between the check and the add
+            }
+        }
+
+        private void failQueued(IOException e) {
+            BulkItem item;
+            while ((item = queue.poll()) != null) {
+                item.fail(e);
+            }
+        }
+    }
+
+    private abstract static class BulkItem {
+        private final int size;
+
+        BulkItem(int size) {
+            this.size = size;
+        }
+
+        abstract void writeTo(FrameWriter writer) throws IOException;
+
+        void fail(IOException e) {
+        }
+    }
+}
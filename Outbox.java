@@ -0,0 +1,294 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Messages for one peer that it has not confirmed receiving yet, kept on
+ * disk so they survive the peer being offline, the connection dropping and
+ * the app being closed. Each message gets a random 64-bit id when it is
+ * added, which goes out with it; the receiver remembers the ids it has shown
+ * lately, so a message sent again because its receipt was lost with the
+ * connection is shown only once.
+ *
+ * The client sending the messages numbers them for {@link Receipts} and
+ * removes them once the peer's receipts cover them. After a reconnect, it
+ * sends every message still here in order, packed into CHAT_BATCH frames of
+ * up to MAX_BATCH_SIZE bytes.
+ *
+ * Like the {@link ContentIndex}, an outbox is an append-only log in the
+ * downloads directory, one per peer address: a line for every message added
+ * and one for every message delivered. It is read once when first used, and
+ * rewritten with only the pending messages once delivered ones outnumber
+ * them.
+ */
+public class Outbox {
+    public static final int MAX_BATCH_SIZE = 64 * 1024; // Bytes of messages packed into one CHAT_BATCH frame
+    // Bytes of UTF-8 text that fit in one CHAT frame next to the sequence and id
+    public static final int MAX_TEXT_SIZE = FrameCodec.MAX_PAYLOAD_SIZE - 10 - 8;
+    private static final String FILE_PREFIX = ".chatapp-outbox-";
+    private static final int MIN_COMPACT_LINES = 64;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // One outbox per log file, shared by the app and every client for that peer
+    private static final Map<File, Outbox> OUTBOXES = new ConcurrentHashMap<>();
+
+    private final File logFile;
+    private final Map<Long, Message> pending = new LinkedHashMap<>(); // By id, in the order added
+    private FileChannel log; // Open for appending once written to
+    private int logLines = 0;
+
+    private Outbox(File logFile) {
+        this.logFile = logFile;
+        load();
+    }
+
+    /**
+     * @param peer The peer's address, "host:port"
+     */
+    public static Outbox forPeer(File directory, String peer) {
+        String name = FILE_PREFIX + peer.replaceAll("[^A-Za-z0-9.-]", "_");
+        return OUTBOXES.computeIfAbsent(new File(directory, name).getAbsoluteFile(), Outbox::new);
+    }
+
+    /**
+     * Adds a message and writes it to the log before returning, so it is
+     * kept even if it never gets sent.
+     *
+     * @throws IOException If the text is too long to ever be sent, see
+     *         {@link #checkText}
+     */
+    public synchronized Message add(String text) throws IOException {
+        checkText(text);
+        Message message = new Message(RANDOM.nextLong(), text);
+        pending.put(message.id, message);
+        try {
+            append(message.toLine() + "\n");
+        } catch (IOException e) {
+            System.out.println("Could not update outbox: " + e.getMessage());
+        }
+        return message;
+    }
+
+    /**
+     * Removes messages the peer has confirmed.
+     */
+    public synchronized void delivered(Collection<Message> messages) {
+        StringBuilder lines = new StringBuilder();
+        for (Message message : messages) {
+            if (pending.remove(message.id) != null) {
+                lines.append("D\t").append(Long.toHexString(message.id)).append('\n');
+            }
+        }
+        if (lines.length() == 0) {
+            return;
+        }
+        try {
+            append(lines.toString());
+        } catch (IOException e) {
+            System.out.println("Could not update outbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The messages not yet delivered, in the order they were added
+     */
+    public synchronized List<Message> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Encodes one message as a CHAT payload with FLAG_CHAT_SEQUENCE and
+     * FLAG_CHAT_ID: sequence, id, then the text up to the end of the frame.
+     */
+    public static ByteBuffer encodeChat(Message message) {
+        byte[] bytes = message.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(10 + 8 + bytes.length);
+        FrameCodec.putVarLong(payload, message.sequence);
+        payload.putLong(message.id);
+        payload.put(bytes);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Encodes messages as a CHAT_BATCH payload: the count, then the
+     * sequence, id and text of each.
+     */
+    public static ByteBuffer encodeBatch(List<Message> messages) {
+        int size = 5;
+        for (Message message : messages) {
+            size += encodedSize(message);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        FrameCodec.putVarInt(payload, messages.size());
+        for (Message message : messages) {
+            FrameCodec.putVarLong(payload, message.sequence);
+            payload.putLong(message.id);
+            FrameCodec.putString(payload, message.text);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * @return The most bytes a message takes in a CHAT_BATCH payload
+     */
+    /**
+     * Rejects text too long for one frame. Such a message could never be
+     * sent, and kept in the outbox it would hold up every later one.
+     */
+    public static void checkText(String text) throws IOException {
+        int size = text.getBytes(StandardCharsets.UTF_8).length;
+        if (size > MAX_TEXT_SIZE) {
+            throw new IOException("Message too long: " + size + " bytes, at most " + MAX_TEXT_SIZE);
+        }
+    }
+
+    public static int encodedSize(Message message) {
+        return 10 + 8 + FrameCodec.stringSize(message.text);
+    }
+
+    private void load() {
+        if (!logFile.exists()) {
+            return;
+        }
+        try {
+            // Line format: "Q", id, text for a message added; "D", id for one delivered
+            for (String line : Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 3);
+                try {
+                    if (fields.length == 3 && fields[0].equals("Q")) {
+                        long id = Long.parseUnsignedLong(fields[1], 16);
+                        pending.put(id, new Message(id, unescape(fields[2])));
+                        logLines++;
+                    } else if (fields.length == 2 && fields[0].equals("D")) {
+                        pending.remove(Long.parseUnsignedLong(fields[1], 16));
+                        logLines++;
+                    }
+                } catch (NumberFormatException e) {
+                    /* A line cut short when the app stopped; the ones before it still count */ }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read outbox: " + e.getMessage());
+        }
+    }
+
+    private void append(String lines) throws IOException {
+        if (logLines >= MIN_COMPACT_LINES && logLines > 2 * pending.size()) {
+            compact();
+            return;
+        }
+        if (log == null) {
+            File directory = logFile.getParentFile();
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            log.write(bytes);
+        }
+        for (int i = 0; i < lines.length(); i++) {
+            if (lines.charAt(i) == '\n') {
+                logLines++;
+            }
+        }
+    }
+
+    // Rewrites the log with only the pending messages, or deletes it if there are none
+    private void compact() throws IOException {
+        if (log != null) {
+            log.close(); // Windows cannot replace a file that is open
+            log = null;
+        }
+        if (pending.isEmpty()) {
+            Files.deleteIfExists(logFile.toPath());
+            logLines = 0;
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Message message : pending.values()) {
+            lines.add(message.toLine());
+        }
+        File temp = new File(logFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        IncomingTransfer.moveIntoPlace(temp, logFile);
+        logLines = lines.size();
+    }
+
+    // Keeps each message on one line of the log
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+                result.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * A message waiting for the peer.
+     */
+    public static final class Message {
+        private final long id;
+        private final String text;
+        private volatile long sequence = 0; // Given by the client sending it
+
+        Message(long id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return The sequence number receipts refer to, or 0 until a client
+         *         has taken the message on
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        void number(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private String toLine() {
+            return "Q\t" + Long.toHexString(id) + "\t" + escape(text);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of the real client against a receiver in the same process, with
+ * no user interface. By default both ends are joined by an in-memory pipe
+ * that can add latency and limit bandwidth, so runs are repeatable; with
+ * "tcp" the client connects to a {@link PeerServer} over loopback instead.
+ * A burst of chat messages is sent first, then a file, and the message rate
+ * and latency, the number of receipts that acknowledged the burst and the
+ * file throughput are printed.
+ *
+ * Usage: java com.chatapp.PeerBenchmark [pipe|tcp] [file MB] [latency ms] [link MB/s]
+ */
+public final class PeerBenchmark {
+    private static final int PORT = 5555;
+    private static final int MESSAGES = 5000;
+
+    private PeerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean tcp = args.length > 0 && args[0].equals("tcp");
+        int fileMegabytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        long bytesPerSecond = (long) ((args.length > 3 ? Double.parseDouble(args[3]) : 0) * 1024 * 1024);
+
+        File directory = Files.createTempDirectory("chatapp-benchmark").toFile();
+        File source = new File(directory, "source.bin");
+        writeRandomFile(source, fileMegabytes * 1024L * 1024);
+        File downloadsDir = new File(directory, "downloads");
+        Receiver receiver = new Receiver();
+        Sender sender = new Sender();
+
+        Transport transport;
+        AutoCloseable endpoint;
+        int port;
+        if (tcp) {
+            port = freePort();
+            PeerServer server = new PeerServer(port, downloadsDir, receiver);
+            server.start();
+            transport = TcpTransport.INSTANCE;
+            endpoint = server::stop;
+            System.out.printf("TCP loopback, %d MB file%n", fileMegabytes);
+        } else {
+            port = PORT;
+            PipeTransport pipe = new PipeTransport(latencyMillis, bytesPerSecond);
+            endpoint = serve(pipe.listen(port), downloadsDir, receiver);
+            transport = pipe;
+            System.out.printf("Pipe, %d ms latency, %s, %d MB file%n", latencyMillis,
+                    bytesPerSecond > 0 ? (bytesPerSecond / (1024 * 1024)) + " MB/s" : "unlimited bandwidth",
+                    fileMegabytes);
+        }
+
+        PeerClient client = new PeerClient(transport, "localhost", port, new File(directory, "client"), sender);
+        client.start();
+        sender.connected.get(30, TimeUnit.SECONDS);
+
+        // Messages as fast as the client takes them, each carrying its send time
+        long startTime = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            client.sendMessage(Long.toString(System.nanoTime()));
+        }
+        if (!receiver.allMessages.await(5, TimeUnit.MINUTES)) {
+            throw new IOException("Messages did not all arrive");
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        List<Long> latencies = new ArrayList<>(receiver.latencies);
+        Collections.sort(latencies);
+        System.out.printf("chat  %8.0f msg/s  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n", MESSAGES / seconds,
+                percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 100));
+        sender.allDelivered.get(30, TimeUnit.SECONDS);
+        System.out.printf("receipts %d for %d messages%n", sender.receipts.get(), MESSAGES);
+
+        startTime = System.nanoTime();
+        client.sendFile(source);
+        IncomingTransfer transfer = receiver.file.get(30, TimeUnit.MINUTES);
+        sender.fileSent.get(5, TimeUnit.MINUTES);
+        seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("file  %8.1f MB/s  (%.2f s)%n", transfer.getExpectedSize() / seconds / (1024 * 1024),
+                seconds);
+
+        client.close();
+        endpoint.close();
+    }
+
+    // Accepts pipe connections, each with its own session, as the server does for sockets
+    static AutoCloseable serve(PipeTransport.Listener listener, File downloadsDir, ChatListener chat) {
+        ConnectionExecutors.execute("Acceptor", () -> {
+            try {
+                while (true) {
+                    Transport.Connection connection = listener.accept();
+                    ConnectionExecutors.execute("Session-" + connection.getRemoteName(), () ->
+                            runSession(connection, downloadsDir, chat));
+                }
+            } catch (ClosedChannelException e) {
+                /* Benchmark finished */
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        return listener;
+    }
+
+    private static void runSession(Transport.Connection connection, File downloadsDir, ChatListener chat) {
+        try (Transport.Connection open = connection) {
+            FrameWriter writer = new FrameWriter(open.output());
+            writer.writePreamble();
+            // Replies come from the read loop and from the disk writer, one frame at a time
+            FrameSink replies = (type, flags, payload) -> {
+                synchronized (writer) {
+                    writer.writeFrame(type, flags, payload);
+                }
+            };
+            PeerSession session = new PeerSession(open.getRemoteName(), downloadsDir, chat, replies);
+            try {
+                while (session.readFrom(open.input()) >= 0) {
+                    // Frames are dispatched by the session as they complete
+                }
+            } finally {
+                session.close();
+            }
+        } catch (IOException e) {
+            /* Connection closed */ }
+    }
+
+    private static class Receiver implements PeerServer.Listener {
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch allMessages = new CountDownLatch(MESSAGES);
+        private final CompletableFuture<IncomingTransfer> file = new CompletableFuture<>();
+
+        @Override
+        public void onMessage(String peer, String message) {
+            latencies.add(System.nanoTime() - Long.parseLong(message));
+            allMessages.countDown();
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+            file.complete(transfer);
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+            file.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onPeerConnected(String peer, int peerCount) {
+        }
+
+        @Override
+        public void onPeerDisconnected(String peer, int peerCount) {
+        }
+
+        @Override
+        public void onFileSent(String peer, String fileName) {
+        }
+
+        @Override
+        public void onFileRejected(String peer, String fileName) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        }
+    }
+
+    private static class Sender implements PeerClient.Listener {
+        private final CompletableFuture<String> connected = new CompletableFuture<>();
+        private final CompletableFuture<Long> fileSent = new CompletableFuture<>();
+        private final CompletableFuture<Long> allDelivered = new CompletableFuture<>();
+        private final AtomicInteger receipts = new AtomicInteger();
+
+        @Override
+        public void onConnected(String peer) {
+            connected.complete(peer);
+        }
+
+        @Override
+        public void onReconnecting(String reason, long delayMillis) {
+            System.out.println("Reconnecting: " + reason);
+        }
+
+        @Override
+        public void onStopped(String reason) {
+            connected.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onMessageQueued(String message) {
+        }
+
+        @Override
+        public void onMessagesSent(long upToSequence) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+            receipts.incrementAndGet();
+            if (deliveredUpTo >= MESSAGES) {
+                allDelivered.complete(deliveredUpTo);
+            }
+        }
+
+        @Override
+        public void onFileSending(String fileName, long fileSize) {
+        }
+
+        @Override
+        public void onFileAccepted(String fileName, long fileSize, long offset) {
+        }
+
+        @Override
+        public void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes,
+                long resentBytes) {
+            fileSent.complete(sentBytes);
+        }
+
+        @Override
+        public void onFileSendFailed(String fileName, String reason) {
+            fileSent.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onMessage(String peer, String message) {
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(42);
+        ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += block.capacity()) {
+                random.nextBytes(block.array());
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), size - written));
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            }
+        }
+    }
+
+    static double percentile(List<Long> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = Math.min(sorted.size() - 1, sorted.size() * percent / 100);
+        return sorted.get(index) / 1e6;
+    }
+}
@@ -0,0 +1,740 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of a chat connection, with no user interface: connects to a
+ * peer through a {@link Transport}, checks it with heartbeats, reconnects
+ * with backoff when it drops, and sends messages, typing status and files.
+ * Messages are numbered, and the peer's receipts for them are passed on as
+ * they arrive, see {@link Receipts}. Every message stays in the peer's
+ * {@link Outbox} on disk until a receipt covers it, so messages typed while
+ * the connection is down, or sent on one that dropped before they were
+ * confirmed, go out once it is back, even after a restart.
+ *
+ * Everything the user should hear about goes to a {@link Listener}. The app
+ * shows it in the window; tests and benchmarks run the same code over an
+ * in-memory transport without JavaFX.
+ */
+public class PeerClient {
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024 * 1024; // 8MB
+    private static final int FILE_ACCEPT_TIMEOUT = 30; // Seconds to wait for the peer to accept a file
+    // Before accepting, the peer may hash a part file or copy a duplicate; it gets a second per this many bytes more
+    private static final long FILE_ACCEPT_BYTES_PER_SECOND = 20L * 1024 * 1024;
+    private static final long SIGNATURES_TIMEOUT = TimeUnit.MINUTES.toMillis(10); // The peer signs its copy first
+    private static final long RECONNECT_BASE_DELAY = 500; // Milliseconds before the first retry
+    private static final long RECONNECT_MAX_DELAY = 30000; // Retries back off up to this
+
+    /**
+     * Callbacks about the connection and outgoing files, on top of what the
+     * peer sends. Calls arrive on connection and transfer threads.
+     */
+    public interface Listener extends ChatListener {
+        void onConnected(String peer);
+
+        /**
+         * The connection dropped and is tried again after the delay.
+         */
+        void onReconnecting(String reason, long delayMillis);
+
+        /**
+         * The client gave up on its own, because the first connect failed
+         * (most likely a wrong address) or it was interrupted.
+         */
+        void onStopped(String reason);
+
+        /**
+         * A message could not be sent now and waits in the outbox.
+         */
+        void onMessageQueued(String message);
+
+        /**
+         * Messages up to the given sequence number have been handed to the
+         * connection, in order; their receipts follow.
+         */
+        void onMessagesSent(long upToSequence);
+
+        /**
+         * Messages numbered fromSequence and up have been delivered up to
+         * deliveredUpTo and read up to readUpTo.
+         */
+        void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo);
+
+        void onFileSending(String fileName, long fileSize);
+
+        /**
+         * The peer accepted a file and already has the first offset bytes of it.
+         */
+        void onFileAccepted(String fileName, long fileSize, long offset);
+
+        /**
+         * A file has been sent and, if the peer checks chunks, verified.
+         *
+         * @param sentBytes Bytes sent after the peer's offset
+         * @param millis Time from the offer to the end
+         * @param savedBytes Bytes compression and the peer's older copy saved
+         * @param resentBytes Bytes sent again because they arrived damaged
+         */
+        void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes, long resentBytes);
+
+        void onFileSendFailed(String fileName, String reason);
+    }
+
+    private final Transport transport;
+    private final String host;
+    private final int port;
+    private final File downloadsDir;
+    private final Listener listener;
+    private Transport.Connection connection;
+    private OutboundWriter outbound;
+    private PeerSession session;
+    private Heartbeat heartbeat;
+    private volatile boolean connected = false;
+    private volatile boolean stopped = false;
+    private final AtomicLong nextTransferId = new AtomicLong();
+    // Outgoing files waiting for the peer's FILE_ACCEPT
+    private final Map<Long, CompletableFuture<FileAccept>> pendingAccepts = new ConcurrentHashMap<>();
+    // Outgoing files the peer grants credit for
+    private final Map<Long, FlowControl.Sender> creditWindows = new ConcurrentHashMap<>();
+    // Outgoing checksummed files, and what the peer said once they had arrived
+    private final Map<Long, BlockingQueue<FileTransfers.Verdict>> pendingVerdicts = new ConcurrentHashMap<>();
+    // Outgoing files offered as a delta, and the signatures of the peer's older copy as they arrive
+    private final Map<Long, FileDelta.Signatures> pendingSignatures = new ConcurrentHashMap<>();
+    private final Receipts.Tracker receipts = new Receipts.Tracker();
+    // Messages the peer has not confirmed, on disk; in memory they are queued in sequence order, guarded by this
+    private final Outbox outbox;
+    private final Queue<Outbox.Message> unsent = new ArrayDeque<>();
+    private final Queue<Outbox.Message> unconfirmed = new ArrayDeque<>(); // Sent on the current connection
+    // Rooms joined, joined again on every new connection
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // File data sent to this peer, over the connection and any stripes, shares one bucket
+    private final RateLimiter limiter = RateLimiter.forConnection();
+
+    public PeerClient(Transport transport, String host, int port, File downloadsDir, Listener listener) {
+        this.transport = transport;
+        this.host = host;
+        this.port = port;
+        this.downloadsDir = downloadsDir;
+        this.listener = listener;
+        this.outbox = Outbox.forPeer(downloadsDir, getPeerName());
+        // Messages left over from before, perhaps from an earlier run, go first
+        List<Outbox.Message> unsendable = new ArrayList<>();
+        for (Outbox.Message message : outbox.getPending()) {
+            try {
+                Outbox.checkText(message.getText());
+            } catch (IOException e) {
+                // Kept by an older version; it would block every message after it
+                System.out.println("Dropping queued message: " + e.getMessage());
+                unsendable.add(message);
+                continue;
+            }
+            message.number(receipts.next());
+            unsent.add(message);
+        }
+        if (!unsendable.isEmpty()) {
+            outbox.delivered(unsendable);
+        }
+    }
+
+    public String getPeerName() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Connects, and keeps reconnecting until closed, on the shared
+     * connection executor.
+     */
+    public void start() {
+        ConnectionExecutors.execute("Receiver-" + getPeerName(), () -> {
+            int attempt = 0;
+            boolean everConnected = false;
+            AtomicBoolean timedOut = new AtomicBoolean();
+            while (!stopped) {
+                String reason;
+                timedOut.set(false);
+                try {
+                    connect();
+                    everConnected = true;
+                    attempt = 0;
+                    connected = true;
+                    ConnectionMetrics.connected();
+                    listener.onConnected(getPeerName());
+                    rejoinRooms();
+                    flushOutbox();
+                    Transport.Connection current = connection;
+                    heartbeat.start(() -> {
+                        // Closing the connection wakes the read loop below
+                        timedOut.set(true);
+                        try {
+                            current.close();
+                        } catch (IOException e) {
+                            /* Ignore */ }
+                    });
+                    while (session.readFrom(current.input()) >= 0) {
+                        // Frames are dispatched by the session as they complete
+                    }
+                    reason = "Connection closed by peer";
+                } catch (IOException e) {
+                    reason = (everConnected ? "Connection lost: " : "Connection failed: ") + e.getMessage();
+                }
+                teardown();
+                if (stopped) {
+                    break;
+                }
+                if (!everConnected) {
+                    // Most likely a wrong address; let the user correct it rather than retry
+                    close();
+                    listener.onStopped(reason);
+                    break;
+                }
+
+                // Jittered exponential backoff, so peers that lost the same network do not retry in step
+                long ceiling = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << Math.min(attempt++, 16));
+                long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+                ConnectionMetrics.reconnecting();
+                listener.onReconnecting(timedOut.get() ? "Peer not responding" : reason, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    listener.onStopped("Interrupted");
+                    break;
+                }
+            }
+        });
+    }
+
+    private void connect() throws IOException {
+        connection = transport.connect(host, port, SOCKET_BUFFER_SIZE);
+        FrameWriter writer = new FrameWriter(connection.output());
+        writer.writePreamble();
+        // Everything after the preamble goes through one writer thread with priority lanes,
+        // so neither the caller nor the receiver loop ever blocks on the connection
+        outbound = new OutboundWriter(writer, limiter);
+        Transport.Connection opened = connection;
+        outbound.start("Writer-" + getPeerName(), () -> {
+            // Closing the connection wakes the read loop, which reconnects as for any lost connection
+            try {
+                opened.close();
+            } catch (IOException e) {
+                /* Ignore */ }
+        });
+        FrameSink replies = (type, flags, payload) -> outbound.send(OutboundWriter.LANE_CONTROL, type, flags, payload);
+        PeerSession current = new PeerSession(getPeerName(), downloadsDir, listener, replies);
+        session = current;
+        heartbeat = new Heartbeat(session.getDecoder(), replies);
+        // Receipts on this connection cover what it carries: the outbox first, then new messages
+        receipts.addPeer(current, requeueUnconfirmed());
+        session.getDecoder().register(FrameType.RECEIPT, (flags, payload) -> {
+            long delivered = FrameCodec.getVarLong(payload);
+            long read = FrameCodec.getVarLong(payload);
+            confirm(delivered);
+            if (receipts.onReceipt(current, delivered, read)) {
+                listener.onReceipts(receipts.getFrom(), receipts.getDelivered(), receipts.getRead());
+            }
+        });
+        session.getDecoder().register(FrameType.FILE_ACCEPT, (flags, payload) -> {
+            CompletableFuture<FileAccept> accept = pendingAccepts.remove(FrameCodec.getVarLong(payload));
+            long offset = FrameCodec.getVarLong(payload);
+            long creditLimit = (flags & FrameType.FLAG_FILE_CREDIT) != 0 ? FrameCodec.getVarLong(payload) : -1;
+            if (accept != null) {
+                accept.complete(new FileAccept(flags, offset, creditLimit));
+            }
+        });
+        session.getDecoder().register(FrameType.FILE_CREDIT, (flags, payload) -> {
+            FlowControl.Sender credit = creditWindows.get(FrameCodec.getVarLong(payload));
+            long written = FrameCodec.getVarLong(payload);
+            long creditLimit = FrameCodec.getVarLong(payload);
+            if (credit != null) {
+                credit.grant(written, creditLimit);
+            }
+        });
+        session.getDecoder().register(FrameType.FILE_SIGNATURES, (flags, payload) -> {
+            FileDelta.Signatures signatures = pendingSignatures.get(FrameCodec.getVarLong(payload));
+            if (signatures != null) {
+                signatures.add(payload);
+            }
+        });
+        session.getDecoder().register(FrameType.FILE_REPAIR, (flags, payload) -> {
+            BlockingQueue<FileTransfers.Verdict> verdicts = pendingVerdicts.get(FrameCodec.getVarLong(payload));
+            if (verdicts != null) {
+                verdicts.add(FileTransfers.Verdict.fromRepair(flags, payload));
+            }
+        });
+        session.getDecoder().register(FrameType.FILE_DONE, (flags, payload) -> {
+            long transferId = FrameCodec.getVarLong(payload);
+            BlockingQueue<FileTransfers.Verdict> verdicts = pendingVerdicts.get(transferId);
+            if (verdicts != null) {
+                verdicts.add(FileTransfers.Verdict.fromDone(flags));
+            }
+            FlowControl.Sender credit = creditWindows.get(transferId);
+            if (credit != null && (flags & FrameType.FLAG_DONE_FAILED) != 0) {
+                credit.fail(new IOException("Peer could not receive the file")); // Stop sending the rest
+            }
+        });
+    }
+
+    /**
+     * Stops for good and drops the connection. Messages the peer has not
+     * confirmed stay in the outbox for the next client to send.
+     */
+    public void close() {
+        stopped = true;
+        teardown();
+    }
+
+    // Releases everything tied to the current connection, leaving the client free to reconnect
+    private void teardown() {
+        connected = false;
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            /* Ignore */ }
+
+        if (outbound != null) {
+            outbound.close();
+        }
+
+        // Keep half-received files for a later resume, and stop waiting for accepts
+        if (session != null) {
+            session.close();
+            receipts.removePeer(session);
+        }
+        for (CompletableFuture<FileAccept> accept : pendingAccepts.values()) {
+            accept.completeExceptionally(new IOException("Connection lost"));
+        }
+        pendingAccepts.clear();
+        for (FlowControl.Sender credit : creditWindows.values()) {
+            credit.fail(new IOException("Connection lost"));
+        }
+        creditWindows.clear();
+        for (BlockingQueue<FileTransfers.Verdict> verdicts : pendingVerdicts.values()) {
+            verdicts.add(FileTransfers.Verdict.lost("Connection lost"));
+        }
+        pendingVerdicts.clear();
+        for (FileDelta.Signatures signatures : pendingSignatures.values()) {
+            signatures.fail(new IOException("Connection lost"));
+        }
+        pendingSignatures.clear();
+    }
+
+    public boolean isConnected() {
+        return connected && connection != null && connection.isOpen();
+    }
+
+    /**
+     * @return The round trip time the last heartbeat measured, or -1 if none has
+     */
+    public long getRoundTripNanos() {
+        Heartbeat current = heartbeat;
+        return current != null ? current.getRoundTripNanos() : -1;
+    }
+
+    /**
+     * Sends a message, or queues it while the connection is down. Either way
+     * it is kept in the outbox until the peer confirms it.
+     *
+     * @return The message as kept in the outbox, numbered for receipts
+     * @throws IOException If the text is too long to send
+     */
+    public Outbox.Message sendMessage(String text) throws IOException {
+        Outbox.Message message;
+        synchronized (this) {
+            message = outbox.add(text);
+            message.number(receipts.next());
+            unsent.add(message);
+        }
+        if (!flushOutbox()) {
+            listener.onMessageQueued(text);
+        }
+        return message;
+    }
+
+    /**
+     * @return The messages the peer has not confirmed yet, numbered and in
+     *         the order they are sent
+     */
+    public synchronized List<Outbox.Message> getPendingMessages() {
+        List<Outbox.Message> messages = new ArrayList<>(unconfirmed);
+        messages.addAll(unsent);
+        return messages;
+    }
+
+    /**
+     * Marks every message received so far as read, so the peer's receipts
+     * show it.
+     *
+     * @param immediately Send the receipt now, as when the window comes into
+     *        focus, rather than with the next batch
+     */
+    public void markRead(boolean immediately) {
+        PeerSession current = session;
+        if (connected && current != null) {
+            current.markRead(immediately);
+        }
+    }
+
+    /**
+     * Sends the messages this connection has not carried yet, in order and
+     * packed into as few frames as they fit in, stopping at the first
+     * failure so none are skipped.
+     *
+     * @return true if nothing is left unsent
+     */
+    private synchronized boolean flushOutbox() {
+        while (connected && !unsent.isEmpty()) {
+            List<Outbox.Message> batch = new ArrayList<>();
+            int batchSize = 0;
+            for (Outbox.Message message : unsent) {
+                int size = Outbox.encodedSize(message);
+                if (!batch.isEmpty() && batchSize + size > Outbox.MAX_BATCH_SIZE) {
+                    break;
+                }
+                batch.add(message);
+                batchSize += size;
+            }
+            try {
+                if (batch.size() == 1) {
+                    outbound.send(OutboundWriter.LANE_CHAT, FrameType.CHAT,
+                            FrameType.FLAG_CHAT_SEQUENCE | FrameType.FLAG_CHAT_ID, Outbox.encodeChat(batch.get(0)));
+                } else {
+                    outbound.send(OutboundWriter.LANE_CHAT, FrameType.CHAT_BATCH, 0, Outbox.encodeBatch(batch));
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                unconfirmed.add(unsent.poll());
+            }
+            ConnectionMetrics.messagesSent(batch.size());
+            listener.onMessagesSent(batch.get(batch.size() - 1).getSequence());
+        }
+        return connected;
+    }
+
+    // Puts what the last connection carried but the peer never confirmed back in front, to be sent again
+    private synchronized long requeueUnconfirmed() {
+        unconfirmed.addAll(unsent);
+        unsent.clear();
+        unsent.addAll(unconfirmed);
+        unconfirmed.clear();
+        Outbox.Message first = unsent.peek();
+        return first != null ? first.getSequence() : receipts.peekNext();
+    }
+
+    // Drops the messages a receipt on this connection covers from the outbox, for good
+    private void confirm(long delivered) {
+        List<Outbox.Message> confirmed = new ArrayList<>();
+        synchronized (this) {
+            while (!unconfirmed.isEmpty() && unconfirmed.peek().getSequence() <= delivered) {
+                confirmed.add(unconfirmed.poll());
+            }
+        }
+        if (!confirmed.isEmpty()) {
+            outbox.delivered(confirmed);
+        }
+    }
+
+    /**
+     * Joins a room on the server, now if connected and again after every
+     * reconnect.
+     */
+    public void joinRoom(String room) throws IOException {
+        Rooms.checkName(room);
+        if (rooms.add(room)) {
+            sendRoomFrame(FrameType.ROOM_JOIN, room);
+        }
+    }
+
+    public void leaveRoom(String room) {
+        if (rooms.remove(room)) {
+            sendRoomFrame(FrameType.ROOM_LEAVE, room);
+        }
+    }
+
+    /**
+     * Posts to a room this client has joined. Room messages are not kept in
+     * the outbox.
+     *
+     * @return false if the room has not been joined or there is no connection
+     */
+    public boolean sendRoomMessage(String room, String text) {
+        if (!rooms.contains(room) || !connected || outbound == null) {
+            return false;
+        }
+        try {
+            outbound.send(OutboundWriter.LANE_CHAT, FrameType.ROOM_MESSAGE, 0, Rooms.encodeMessage(room, "", text));
+            ConnectionMetrics.messagesSent(1);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void rejoinRooms() {
+        for (String room : rooms) {
+            sendRoomFrame(FrameType.ROOM_JOIN, room);
+        }
+    }
+
+    private void sendRoomFrame(byte type, String room) {
+        if (connected && outbound != null) {
+            try {
+                outbound.send(OutboundWriter.LANE_CONTROL, type, 0, Rooms.encodeName(room));
+            } catch (IOException e) {
+                /* Joined again once reconnected */ }
+        }
+    }
+
+    public void sendTypingStatus(boolean isTyping) {
+        int flags = isTyping ? FrameType.FLAG_TYPING_ACTIVE : 0;
+        if (connected && outbound != null) {
+            try {
+                outbound.send(OutboundWriter.LANE_CHAT, FrameType.TYPING, flags, FrameCodec.EMPTY_PAYLOAD);
+            } catch (IOException e) {
+                /* Ignore, the receiver loop notices the broken connection */ }
+        }
+    }
+
+    /**
+     * Sends a file on the connection executor; the outcome goes to the listener.
+     *
+     * @return Completes with whether the peer got the file, once this send
+     *         is over
+     */
+    public CompletableFuture<Boolean> sendFile(File file) throws IOException {
+        if (!connected || outbound == null) {
+            throw new IOException("Not connected");
+        }
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        ConnectionExecutors.execute("FileTransfer-" + file.getName(), () -> {
+            try {
+                sendFileNow(file);
+                done.complete(true);
+            } catch (IOException e) {
+                listener.onFileSendFailed(file.getName(), e.getMessage());
+                done.complete(false);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Sends a folder, or several files, as one bundle on the connection
+     * executor; the outcome goes to the listener as for a single file, under
+     * the bundle's name.
+     *
+     * @return Completes with whether the peer got the bundle, once this send
+     *         is over
+     */
+    public CompletableFuture<Boolean> sendFiles(List<File> files) throws IOException {
+        if (!connected || outbound == null) {
+            throw new IOException("Not connected");
+        }
+        String name = FileBundle.nameOf(files);
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        ConnectionExecutors.execute("FileBundle-" + name, () -> {
+            try {
+                sendBundleNow(files);
+                done.complete(true);
+            } catch (IOException e) {
+                listener.onFileSendFailed(name, e.getMessage());
+                done.complete(false);
+            }
+        });
+        return done;
+    }
+
+    private void sendBundleNow(List<File> files) throws IOException {
+        FileBundle bundle = FileBundle.of(files);
+        long bundleId = nextTransferId.incrementAndGet();
+        listener.onFileSending(bundle.getName(), bundle.getTotalSize());
+        long startTime = System.currentTimeMillis();
+
+        // No accept to wait for: the manifest and contents go out at once, and the peer answers at the end
+        BlockingQueue<FileTransfers.Verdict> verdicts = new LinkedBlockingQueue<>();
+        pendingVerdicts.put(bundleId, verdicts);
+        OutboundWriter.Stream stream = outbound.openStream(bundleId, OutboundWriter.DEFAULT_WEIGHT);
+        try {
+            FileTransfers.sendBundle(stream, bundle, verdicts);
+        } finally {
+            stream.close();
+            pendingVerdicts.remove(bundleId);
+        }
+
+        long millis = System.currentTimeMillis() - startTime;
+        ConnectionMetrics.fileSent(bundle.getTotalSize(), millis);
+        listener.onFileSendFinished(bundle.getName(), bundle.getTotalSize(), millis, 0, 0);
+    }
+
+    private void sendFileNow(File file) throws IOException {
+        String fileName = file.getName();
+        long transferId = nextTransferId.incrementAndGet();
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            listener.onFileSending(fileName, fileSize);
+            long startTime = System.currentTimeMillis();
+
+            // Large files can be striped over extra data connections to the server
+            int stripes = FileTransfers.stripeCount(fileSize);
+            long stripeToken = stripes > 1 ? new SecureRandom().nextLong() | 1 : 0;
+
+            // Content hash from the local index, so an unchanged file is only hashed once
+            String contentHash = ContentIndex.forDirectory(downloadsDir).hashOf(file);
+
+            // Offer compression unless the file is striped or already compressed, and
+            // flow control unless striped, where each data connection is paced by TCP
+            int startFlags = FrameType.FLAG_FILE_CHECKSUMS | (stripes > 1 ? FrameType.FLAG_FILE_STRIPED : 0);
+            if (stripes == 1 && ChunkCompressor.isEnabled() && !ChunkCompressor.looksCompressed(fileChannel)) {
+                startFlags |= FrameType.FLAG_FILE_COMPRESSION;
+            }
+            if (stripes == 1 && FlowControl.isEnabled()) {
+                startFlags |= FrameType.FLAG_FILE_FLOW_CONTROL;
+            }
+            // A peer with an older copy can then ask for a delta instead, which is never striped
+            FileDelta.Signatures signatures = null;
+            if (FileDelta.isEnabled() && fileSize >= FileDelta.MIN_BASIS_SIZE) {
+                startFlags |= FrameType.FLAG_FILE_DELTA;
+                signatures = new FileDelta.Signatures();
+                pendingSignatures.put(transferId, signatures);
+            }
+
+            // Header frame, then wait for the peer to say how much it already has
+            CompletableFuture<FileAccept> accept = new CompletableFuture<>();
+            pendingAccepts.put(transferId, accept);
+            outbound.send(OutboundWriter.LANE_CONTROL, FrameType.FILE_START, startFlags,
+                    FileTransfers.encodeFileStart(transferId, fileSize, fileName,
+                            FileTransfers.resumeKey(file), contentHash, stripeToken));
+            FileAccept accepted;
+            try {
+                accepted = awaitAccept(transferId, fileSize, accept);
+            } catch (IOException e) {
+                pendingSignatures.remove(transferId);
+                throw e;
+            }
+            boolean delta = signatures != null && (accepted.flags & FrameType.FLAG_FILE_DELTA_OK) != 0;
+            if (!delta) {
+                pendingSignatures.remove(transferId);
+            }
+            long offset = accepted.offset;
+            listener.onFileAccepted(fileName, fileSize, offset);
+
+            // A peer that checks chunks says at the end whether the file arrived intact
+            BlockingQueue<FileTransfers.Verdict> verdicts = null;
+            if ((accepted.flags & FrameType.FLAG_FILE_CHECKSUMS_OK) != 0) {
+                verdicts = new LinkedBlockingQueue<>();
+                pendingVerdicts.put(transferId, verdicts);
+            }
+
+            ChunkCompressor compressor = (accepted.flags & FrameType.FLAG_FILE_COMPRESSION_OK) != 0
+                    ? new ChunkCompressor() : null;
+            long savedBytes = 0;
+            long resentBytes = 0;
+            long position = offset;
+            if (stripes > 1 && !delta && position < fileSize) {
+                // Byte ranges in parallel on their own connections, written positionally by the peer
+                FileTransfers.sendStriped(transport, host, port, fileChannel, fileSize, stripeToken, stripes,
+                        limiter);
+                position = fileSize;
+            }
+
+            // The file gets its own stream, so concurrent transfers share the connection fairly
+            FlowControl.Sender credit = accepted.creditLimit >= 0
+                    ? new FlowControl.Sender(position, accepted.creditLimit) : null;
+            if (credit != null) {
+                creditWindows.put(transferId, credit);
+            }
+            OutboundWriter.Stream stream = outbound.openStream(transferId, OutboundWriter.DEFAULT_WEIGHT);
+            try {
+                if (delta) {
+                    // Only what the peer's copy lacks goes out, the rest is copied from it
+                    FileDelta.Signatures basis = signatures.await(SIGNATURES_TIMEOUT);
+                    pendingSignatures.remove(transferId);
+                    List<long[]> runs = FileDelta.match(fileChannel, fileSize, basis);
+                    savedBytes = FileTransfers.sendDelta(stream, fileChannel, fileSize, runs, basis.getBlockSize(),
+                            compressor, verdicts != null);
+                } else {
+                    savedBytes = FileTransfers.sendChunks(stream, fileChannel, position, fileSize, compressor,
+                            credit, verdicts != null);
+                }
+                if (verdicts != null) {
+                    resentBytes = FileTransfers.awaitVerified(stream, fileChannel, fileSize, verdicts);
+                }
+            } finally {
+                stream.close();
+                creditWindows.remove(transferId);
+                pendingVerdicts.remove(transferId);
+                pendingSignatures.remove(transferId);
+                if (compressor != null) {
+                    compressor.close();
+                }
+            }
+
+            long millis = System.currentTimeMillis() - startTime;
+            ConnectionMetrics.fileSent(fileSize - offset, millis);
+            listener.onFileSendFinished(fileName, fileSize - offset, millis, savedBytes, resentBytes);
+        }
+    }
+
+    // A lost connection fails the wait at once, so only a peer still reading its copy of a large file waits long
+    private FileAccept awaitAccept(long transferId, long fileSize, CompletableFuture<FileAccept> accept)
+            throws IOException {
+        try {
+            FileAccept accepted = accept.get(FILE_ACCEPT_TIMEOUT + fileSize / FILE_ACCEPT_BYTES_PER_SECOND,
+                    TimeUnit.SECONDS);
+            if ((accepted.flags & FrameType.FLAG_FILE_REJECTED) != 0 || accepted.offset < 0) {
+                throw new IOException("Peer could not save the file");
+            }
+            return accepted;
+        } catch (TimeoutException e) {
+            throw new IOException("Peer did not accept the file");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the peer");
+        } finally {
+            pendingAccepts.remove(transferId);
+        }
+    }
+
+    // The peer's answer to FILE_START: how much it already has, and what it agreed to
+    private static class FileAccept {
+        private final int flags;
+        private final long offset;
+        private final long creditLimit; // -1 unless the transfer is flow controlled
+
+        FileAccept(int flags, long offset, long creditLimit) {
+            this.flags = flags;
+            this.offset = offset;
+            this.creditLimit = creditLimit;
+        }
+    }
+}
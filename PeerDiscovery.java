@@ -0,0 +1,270 @@
+package com.chatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Finds servers on the local network, so nobody has to type a host and port.
+ *
+ * A running server announces its port and name on a multicast group every
+ * ANNOUNCE_INTERVAL, and says goodbye when it stops. Clients listen on the
+ * group and keep a table of the servers they hear, each entry expiring when
+ * its announcement's time to live runs out without another one. A client
+ * that starts listening sends a probe, which every server answers at once,
+ * so the table fills in well under a second rather than one interval.
+ *
+ * Announcements are datagrams on an administratively scoped group with a
+ * multicast TTL of 1, so they never leave the local network. The address of
+ * a server is taken from where its datagram came from, not from what it
+ * claims. Discovery is turned off with -Dchatapp.disableDiscovery=true, and
+ * the group port is set with -Dchatapp.discoveryPort.
+ */
+public class PeerDiscovery implements Closeable {
+    public static final String DISABLE_DISCOVERY_PROPERTY = "chatapp.disableDiscovery";
+    public static final String DISCOVERY_PORT_PROPERTY = "chatapp.discoveryPort";
+    public static final String GROUP = "239.255.80.50";
+    public static final int PORT = Integer.getInteger(DISCOVERY_PORT_PROPERTY, 1502);
+    public static final long ANNOUNCE_INTERVAL = 2000;
+    private static final long PEER_TTL = 3 * ANNOUNCE_INTERVAL; // Survives two lost announcements
+
+    private static final byte[] MAGIC = { 'P', '2', 'P', 'D' };
+    private static final byte ANNOUNCE = 1;
+    private static final byte PROBE = 2;
+    private static final byte GOODBYE = 3;
+    private static final int MAX_DATAGRAM = 512;
+    private static final int MAX_NAME_LENGTH = 64;
+
+    /**
+     * Told whenever the table of servers changes. Calls arrive on the
+     * discovery and timer threads.
+     */
+    public interface Listener {
+        void onPeersChanged(List<Endpoint> peers);
+    }
+
+    private final InetAddress group;
+    private final MulticastSocket socket;
+    private final int announcedPort; // 0 unless announcing a server
+    private final String announcedName;
+    private final Listener listener; // Null unless browsing
+    private final Map<Endpoint, Long> peers = new ConcurrentHashMap<>(); // Expiry time in millis
+    private ScheduledFuture<?> task;
+    private volatile boolean closed = false;
+
+    private PeerDiscovery(int announcedPort, String announcedName, Listener listener) throws IOException {
+        this.group = InetAddress.getByName(GROUP);
+        this.announcedPort = announcedPort;
+        this.announcedName = announcedName;
+        this.listener = listener;
+        socket = new MulticastSocket(PORT);
+        try {
+            socket.setTimeToLive(1); // Multicast loopback is on by default, so servers on this machine are found too
+            socket.joinGroup(new InetSocketAddress(group, PORT), null);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return !Boolean.getBoolean(DISABLE_DISCOVERY_PROPERTY);
+    }
+
+    /**
+     * Announces a server on the local network until closed.
+     */
+    public static PeerDiscovery announce(String name, int port) throws IOException {
+        PeerDiscovery discovery = new PeerDiscovery(port, name, null);
+        discovery.start(ANNOUNCE_INTERVAL);
+        discovery.send(ANNOUNCE);
+        return discovery;
+    }
+
+    /**
+     * Listens for servers on the local network until closed.
+     */
+    public static PeerDiscovery browse(Listener listener) throws IOException {
+        PeerDiscovery discovery = new PeerDiscovery(0, null, listener);
+        discovery.start(ANNOUNCE_INTERVAL / 2);
+        discovery.send(PROBE);
+        return discovery;
+    }
+
+    /**
+     * @return The servers heard from and not yet expired, by name
+     */
+    public List<Endpoint> getPeers() {
+        List<Endpoint> live = new ArrayList<>(peers.keySet());
+        live.sort(Comparator.comparing(Endpoint::getName, String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(Endpoint::getHost).thenComparingInt(Endpoint::getPort));
+        return live;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (this) {
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+        if (announcedPort > 0) {
+            send(GOODBYE); // Clients drop us now instead of when the entry expires
+        }
+        socket.close();
+    }
+
+    private synchronized void start(long periodMillis) {
+        ConnectionExecutors.execute("Discovery-" + PORT, this::receiveLoop);
+        // Servers announce themselves; clients expire servers that stopped announcing
+        task = ConnectionExecutors.scheduleAtFixedRate(announcedPort > 0 ? () -> send(ANNOUNCE) : this::expire,
+                periodMillis);
+    }
+
+    private void receiveLoop() {
+        byte[] data = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!closed) {
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                handle(packet);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Peer discovery stopped: " + e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private void handle(DatagramPacket packet) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        try {
+            if (buffer.remaining() < MAGIC.length + 1) {
+                return;
+            }
+            for (byte b : MAGIC) {
+                if (buffer.get() != b) {
+                    return; // Not ours
+                }
+            }
+            byte type = buffer.get();
+            if (type == PROBE) {
+                if (announcedPort > 0) {
+                    send(ANNOUNCE);
+                }
+                return;
+            }
+            if (listener == null || (type != ANNOUNCE && type != GOODBYE)) {
+                return;
+            }
+            int port = FrameCodec.getVarInt(buffer);
+            long ttl = FrameCodec.getVarLong(buffer);
+            String name = FrameCodec.getString(buffer);
+            if (port <= 0 || port > 0xFFFF) {
+                return;
+            }
+            Endpoint endpoint = new Endpoint(name, packet.getAddress().getHostAddress(), port);
+            boolean changed;
+            if (type == GOODBYE) {
+                changed = peers.remove(endpoint) != null;
+            } else {
+                Long previous = peers.put(endpoint, System.currentTimeMillis() + Math.min(ttl, 10 * PEER_TTL));
+                changed = previous == null;
+            }
+            if (changed) {
+                listener.onPeersChanged(getPeers());
+            }
+        } catch (IOException | RuntimeException e) {
+            /* Malformed datagram; ignored */
+        }
+    }
+
+    // Drops servers whose last announcement has run out
+    private void expire() {
+        long now = System.currentTimeMillis();
+        if (peers.entrySet().removeIf(entry -> entry.getValue() < now)) {
+            listener.onPeersChanged(getPeers());
+        }
+    }
+
+    private void send(byte type) {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        buffer.put(MAGIC);
+        buffer.put(type);
+        if (type != PROBE) {
+            String name = announcedName.length() > MAX_NAME_LENGTH ? announcedName.substring(0, MAX_NAME_LENGTH)
+                    : announcedName;
+            FrameCodec.putVarInt(buffer, announcedPort);
+            FrameCodec.putVarLong(buffer, PEER_TTL);
+            FrameCodec.putString(buffer, name);
+        }
+        try {
+            socket.send(new DatagramPacket(buffer.array(), buffer.position(), group, PORT));
+        } catch (IOException e) {
+            /* No multicast route right now; the next announcement tries again */ }
+    }
+
+    /**
+     * A server that can be connected to, found on the network or remembered
+     * from an earlier connection. Equal when host and port are.
+     */
+    public static final class Endpoint {
+        private final String name;
+        private final String host;
+        private final int port;
+
+        public Endpoint(String name, String host, int port) {
+            this.name = name == null || name.isEmpty() ? host : name;
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Endpoint)) {
+                return false;
+            }
+            Endpoint endpoint = (Endpoint) other;
+            return port == endpoint.port && host.equals(endpoint.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port);
+        }
+
+        @Override
+        public String toString() {
+            return name.equals(host) ? host + ":" + port : name + " (" + host + ":" + port + ")";
+        }
+    }
+}
@@ -0,0 +1,1117 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Multi-client server mode. One acceptor thread hands new connections to a
+ * small fixed set of selector-based event loops; each peer gets its own
+ * receive session and outbound queue, so hundreds of peers are served
+ * without a thread per connection. Each event loop also runs the heartbeat
+ * of its peers and drops the ones that stop responding.
+ */
+public class PeerServer {
+    private static final int SOCKET_BUFFER_SIZE = 256 * 1024; // Kept modest, there can be hundreds of peers
+    // Bytes of chat and control frames a peer may have waiting; a peer further behind is disconnected
+    private static final long URGENT_QUEUE_LIMIT = Math.max(16L * 1024 * 1024, 2 * Rooms.QUEUE_LIMIT);
+
+    /**
+     * Server callbacks on top of the per-peer chat callbacks.
+     */
+    public interface Listener extends ChatListener {
+        void onPeerConnected(String peer, int peerCount);
+
+        void onPeerDisconnected(String peer, int peerCount);
+
+        void onFileSent(String peer, String fileName);
+
+        void onFileRejected(String peer, String fileName);
+
+        /**
+         * Messages numbered fromSequence and up have been delivered to every
+         * connected peer up to deliveredUpTo, and read by every one up to
+         * readUpTo.
+         */
+        void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo);
+    }
+
+    private final int port;
+    private final File downloadsDir;
+    private final Listener listener;
+    private final EventLoop[] eventLoops;
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextTransferId = new AtomicLong();
+    private final Receipts.Tracker receipts = new Receipts.Tracker();
+    private final Rooms<Peer> rooms = new Rooms<>();
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet(); // Rooms the server's own user is in
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+    private int nextEventLoop = 0;
+
+    public PeerServer(int port, File downloadsDir, Listener listener) {
+        this(port, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), downloadsDir, listener);
+    }
+
+    public PeerServer(int port, int eventLoopCount, File downloadsDir, Listener listener) {
+        this.port = port;
+        this.downloadsDir = downloadsDir;
+        this.listener = listener;
+        this.eventLoops = new EventLoop[eventLoopCount];
+    }
+
+    /**
+     * Binds the server socket and starts the acceptor and event loop threads.
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "PeerServer-EventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        acceptThread = new Thread(this::acceptLoop, "PeerServer-Acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            /* Ignore */ }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Sends one frame to every connected peer. The frame is encoded once and
+     * the encoded bytes are shared by all peers.
+     */
+    public void broadcastFrame(byte type, int flags, ByteBuffer payload) {
+        broadcast(FrameCodec.encodeFrame(type, flags, payload));
+    }
+
+    /**
+     * Sends a numbered chat message to every connected peer.
+     *
+     * @return The message's sequence number, which receipts refer to
+     * @throws IOException If the text is too long to send
+     */
+    public long sendMessage(String text) throws IOException {
+        Outbox.checkText(text);
+        long sequence = receipts.next();
+        broadcast(FrameCodec.encodeFrame(FrameType.CHAT, FrameType.FLAG_CHAT_SEQUENCE,
+                Receipts.encodeChat(sequence, text)));
+        ConnectionMetrics.messagesSent(peers.size());
+        return sequence;
+    }
+
+    /**
+     * Marks every message received so far as read, for each peer's receipts.
+     *
+     * @param immediately Send the receipts now rather than with the next batch
+     */
+    public void markRead(boolean immediately) {
+        for (Peer peer : peers) {
+            peer.session.markRead(immediately);
+        }
+    }
+
+    /**
+     * Puts the server's own user in a room, so messages posted to it reach
+     * the listener.
+     */
+    public void joinRoom(String room) throws IOException {
+        Rooms.checkName(room);
+        joinedRooms.add(room);
+    }
+
+    public void leaveRoom(String room) {
+        joinedRooms.remove(room);
+    }
+
+    /**
+     * Posts to a room as the server's own user.
+     *
+     * @return The number of peers the message was queued for
+     */
+    public int sendRoomMessage(String room, String sender, String text) {
+        return publish(room, sender, text, null);
+    }
+
+    // Encodes a room message once and queues the shared bytes for every subscriber but the sender
+    private int publish(String room, String sender, String text, Peer from) {
+        ByteBuffer frame = FrameCodec.encodeFrame(FrameType.ROOM_MESSAGE, 0,
+                Rooms.encodeMessage(room, sender, text)).asReadOnlyBuffer();
+        int queued = 0;
+        for (Peer peer : rooms.subscribers(room)) {
+            if (peer != from && peer.offer(frame.duplicate())) {
+                queued++;
+            }
+        }
+        ConnectionMetrics.messagesSent(queued);
+        return queued;
+    }
+
+    public void broadcastText(byte type, int flags, String text) {
+        broadcast(FrameCodec.encodeText(type, flags, text));
+        if (type == FrameType.CHAT) {
+            ConnectionMetrics.messagesSent(peers.size());
+        }
+    }
+
+    /**
+     * Offers a file to every connected peer. Each peer that accepts it is sent
+     * the part it does not already have, reading the shared file channel at
+     * its own pace with zero-copy transfers.
+     *
+     * @return The broadcast, done once every peer it was offered to has the
+     *         file, refused it or gone
+     */
+    public Broadcast broadcastFile(File file) throws IOException {
+        String resumeKey = FileTransfers.resumeKey(file);
+        String contentHash = ContentIndex.forDirectory(downloadsDir).hashOf(file);
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long fileSize = fileChannel.size();
+        long transferId = nextTransferId.incrementAndGet();
+        int startFlags = FrameType.FLAG_FILE_CHECKSUMS | (FlowControl.isEnabled() ? FrameType.FLAG_FILE_FLOW_CONTROL : 0);
+        ByteBuffer startFrame = FrameCodec.encodeFrame(FrameType.FILE_START, startFlags,
+                FileTransfers.encodeFileStart(transferId, fileSize, file.getName(), resumeKey, contentHash));
+
+        SharedFile sharedFile = new SharedFile(fileChannel);
+        List<Peer> targets = new ArrayList<>(peers);
+        Broadcast broadcast = new Broadcast(targets.size());
+        for (Peer peer : targets) {
+            sharedFile.retain();
+            peer.pendingFiles.put(transferId, new PendingFile(sharedFile, fileSize, file.getName(), broadcast));
+            if (peer.closed.get()) {
+                // Closed meanwhile; whichever of this and close takes the offer back reports it
+                PendingFile pending = peer.pendingFiles.remove(transferId);
+                if (pending != null) {
+                    pending.file.release();
+                    broadcast.report(peer, false);
+                }
+                continue;
+            }
+            peer.enqueue(new BufferOutbound(startFrame.duplicate()));
+        }
+        sharedFile.release(); // Drop the reference held while queueing
+        return broadcast;
+    }
+
+    private void broadcast(ByteBuffer frame) {
+        for (Peer peer : peers) {
+            peer.enqueue(new BufferOutbound(frame.duplicate()));
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+
+                EventLoop loop = eventLoops[nextEventLoop];
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                Peer peer = new Peer(channel, loop);
+                loop.execute(peer::register);
+            } catch (ClosedChannelException e) {
+                break; // Server stopped
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // One selector thread serving many peers
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Pings quiet peers and closes the ones that have been silent too long
+        private void checkPeers() {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                Peer peer = (Peer) key.attachment();
+                if (peer != null && !peer.heartbeat.check()) {
+                    peer.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastHeartbeat = System.nanoTime();
+            try {
+                while (running) {
+                    selector.select(Heartbeat.INTERVAL);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Peer peer = (Peer) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                peer.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                peer.flush();
+                            }
+                        } catch (IOException e) {
+                            peer.close();
+                        }
+                    }
+
+                    if (System.nanoTime() - lastHeartbeat >= TimeUnit.MILLISECONDS.toNanos(Heartbeat.INTERVAL)) {
+                        lastHeartbeat = System.nanoTime();
+                        checkPeers();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Event loop stopped: " + e.getMessage());
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    /* Ignore */ }
+            }
+        }
+    }
+
+    // Per-peer state: receive session plus outbound queues drained by the event loop. Chat and
+    // control frames go in the urgent lane and overtake file data at the next frame boundary;
+    // files in the bulk lane take turns a frame at a time. The urgent lane is bounded by bytes.
+    private class Peer {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final PeerSession session;
+        private final Heartbeat heartbeat;
+        private final String name;
+        private final Queue<Outbound> urgent = new ConcurrentLinkedQueue<>();
+        private final Queue<Outbound> bulk = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicLong roomBytes = new AtomicLong(); // Room messages queued and not yet written
+        private final AtomicLong urgentBytes = new AtomicLong(); // Every frame in the urgent lane, rooms included
+        private final AtomicBoolean tooSlow = new AtomicBoolean(false);
+        private boolean announced = false;
+        // Files offered to this peer that are waiting for its FILE_ACCEPT
+        private final Map<Long, PendingFile> pendingFiles = new ConcurrentHashMap<>();
+        // Files being sent. One out of credit leaves the bulk lane until more arrives, one out of rate
+        // limiter tokens until they are due, and a checksummed one leaves it after FILE_END until the
+        // peer asks for ranges again or says it is done.
+        private final Map<Long, FileOutbound> sendingFiles = new ConcurrentHashMap<>();
+        private final RateLimiter limiter = RateLimiter.forConnection();
+        private SelectionKey key;
+
+        Peer(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.name = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress()
+                    + ":" + ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+            FrameSink replies = (type, flags, payload) ->
+                    enqueue(new BufferOutbound(FrameCodec.encodeFrame(type, flags, payload)));
+            this.session = new PeerSession(name, downloadsDir, listener, replies, loop::execute);
+            this.heartbeat = new Heartbeat(session.getDecoder(), replies);
+            session.getDecoder().register(FrameType.FILE_ACCEPT, this::onFileAccept);
+            session.getDecoder().register(FrameType.FILE_CREDIT, this::onFileCredit);
+            session.getDecoder().register(FrameType.FILE_REPAIR, this::onFileRepair);
+            session.getDecoder().register(FrameType.FILE_DONE, this::onFileDone);
+            session.getDecoder().register(FrameType.RECEIPT, this::onReceipt);
+            session.getDecoder().register(FrameType.ROOM_JOIN, this::onRoomJoin);
+            session.getDecoder().register(FrameType.ROOM_LEAVE, this::onRoomLeave);
+            session.getDecoder().register(FrameType.ROOM_MESSAGE, this::onRoomMessage);
+        }
+
+        // Runs on the event loop
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            enqueue(new BufferOutbound(FrameCodec.encodePreamble(FrameCodec.ROLE_CONTROL)));
+            ConnectionMetrics.watchQueue(this, () -> urgent.size() + bulk.size());
+        }
+
+        void onReadable() throws IOException {
+            if (session.readFrom(channel) < 0) {
+                close();
+                return;
+            }
+            // Chat peers are announced once their preamble arrives. Data connections carrying
+            // file stripes are never added to the peer list, so they get no broadcasts.
+            if (!announced && session.getDecoder().getPeerRole() >= 0) {
+                announced = true;
+                if (session.getDecoder().getPeerRole() == FrameCodec.ROLE_CONTROL && !closed.get()) {
+                    receipts.addPeer(this, receipts.peekNext());
+                    peers.add(this);
+                    listener.onPeerConnected(name, peers.size());
+                }
+            }
+        }
+
+        // Runs on the event loop; the peer has received or read our messages up to some sequence
+        private void onReceipt(int flags, ByteBuffer payload) throws IOException {
+            long delivered = FrameCodec.getVarLong(payload);
+            long read = FrameCodec.getVarLong(payload);
+            if (receipts.onReceipt(this, delivered, read)) {
+                listener.onReceipts(receipts.getFrom(), receipts.getDelivered(), receipts.getRead());
+            }
+        }
+
+        // Runs on the event loop
+        private void onRoomJoin(int flags, ByteBuffer payload) throws IOException {
+            String room = FrameCodec.getString(payload);
+            Rooms.checkName(room);
+            if (!closed.get()) {
+                rooms.join(room, this);
+            }
+        }
+
+        // Runs on the event loop
+        private void onRoomLeave(int flags, ByteBuffer payload) throws IOException {
+            rooms.leave(FrameCodec.getString(payload), this);
+        }
+
+        // Runs on the event loop; only members may post to a room
+        private void onRoomMessage(int flags, ByteBuffer payload) throws IOException {
+            String room = FrameCodec.getString(payload);
+            FrameCodec.getString(payload); // Sender; the server says who it came from
+            String text = FrameCodec.getText(payload, payload.remaining());
+            if (!rooms.contains(room, this)) {
+                return;
+            }
+            ConnectionMetrics.messageReceived();
+            if (joinedRooms.contains(room)) {
+                listener.onRoomMessage(room, name, text);
+            }
+            publish(room, name, text, this);
+        }
+
+        // Runs on the event loop; the peer told us how much of an offered file it already has
+        private void onFileAccept(int flags, ByteBuffer payload) throws IOException {
+            long transferId = FrameCodec.getVarLong(payload);
+            long offset = FrameCodec.getVarLong(payload);
+            long creditLimit = (flags & FrameType.FLAG_FILE_CREDIT) != 0 ? FrameCodec.getVarLong(payload) : -1;
+            PendingFile pending = pendingFiles.remove(transferId);
+            if (pending == null) {
+                return;
+            }
+            if ((flags & FrameType.FLAG_FILE_REJECTED) != 0 || offset < 0 || offset > pending.fileSize) {
+                pending.file.release();
+                pending.broadcast.report(this, false);
+                listener.onFileRejected(name, pending.fileName);
+                return;
+            }
+            FlowControl.Sender credit = creditLimit >= 0 ? new FlowControl.Sender(offset, creditLimit) : null;
+            FileOutbound file = new FileOutbound(pending.file, transferId, pending.fileSize, offset, pending.fileName,
+                    pending.broadcast, this, credit, (flags & FrameType.FLAG_FILE_CHECKSUMS_OK) != 0);
+            sendingFiles.put(transferId, file);
+            enqueue(file);
+        }
+
+        // Runs on the event loop; the peer has written more of a file and allows us to send more
+        private void onFileCredit(int flags, ByteBuffer payload) throws IOException {
+            long transferId = FrameCodec.getVarLong(payload);
+            long written = FrameCodec.getVarLong(payload);
+            long creditLimit = FrameCodec.getVarLong(payload);
+            FileOutbound file = sendingFiles.get(transferId);
+            if (file == null || file.credit == null) {
+                return;
+            }
+            file.credit.grant(written, creditLimit);
+            if (file.stalled && file.nextChunkLength() > 0) {
+                file.stalled = false;
+                enqueue(file);
+            }
+        }
+
+        // Runs on the event loop; the peer found damaged data and wants some ranges or the leaf hashes
+        private void onFileRepair(int flags, ByteBuffer payload) throws IOException {
+            long transferId = FrameCodec.getVarLong(payload);
+            FileTransfers.Verdict verdict = FileTransfers.Verdict.fromRepair(flags, payload);
+            FileOutbound file = sendingFiles.get(transferId);
+            if (file == null || !file.checksums) {
+                return;
+            }
+            if (verdict.wantsHashes()) {
+                file.sendLeafHashes();
+                return;
+            }
+            file.addRepairs(verdict.getRanges());
+            if (file.verifying) {
+                file.verifying = false;
+                enqueue(file);
+            }
+        }
+
+        // Runs on the event loop; the peer has verified a file, or given up on it
+        private void onFileDone(int flags, ByteBuffer payload) throws IOException {
+            FileOutbound file = sendingFiles.get(FrameCodec.getVarLong(payload));
+            if (file == null || !file.checksums) {
+                return;
+            }
+            if (file.verifying || file.stalled || file.throttled || file.awaitingChecksum) {
+                file.release(); // In no queue
+            } else {
+                file.cancelled = true; // Still sending; stops at the next frame boundary
+            }
+            if ((flags & FrameType.FLAG_DONE_FAILED) != 0) {
+                file.broadcast.report(this, false);
+                listener.onFileRejected(name, file.fileName);
+            } else {
+                file.recordSent();
+                file.broadcast.report(this, true);
+                listener.onFileSent(name, file.fileName);
+            }
+        }
+
+        // Queues a room message, unless this peer is too far behind to take more of them
+        boolean offer(ByteBuffer frame) {
+            int size = frame.remaining();
+            if (roomBytes.get() + size > Rooms.QUEUE_LIMIT) {
+                ConnectionMetrics.roomMessageDropped();
+                if (Rooms.SLOW_PEER_POLICY == Rooms.SlowPeerPolicy.DISCONNECT) {
+                    loop.execute(this::close);
+                }
+                return false;
+            }
+            roomBytes.addAndGet(size);
+            enqueue(new BufferOutbound(frame, roomBytes));
+            return true;
+        }
+
+        void enqueue(Outbound item) {
+            if (closed.get()) {
+                item.release();
+                return;
+            }
+            if (!item.isBulk() && urgentBytes.addAndGet(item.size()) > URGENT_QUEUE_LIMIT) {
+                // Not reading what it is sent; dropping chat or control frames would break the protocol
+                item.release();
+                if (tooSlow.compareAndSet(false, true)) {
+                    ConnectionMetrics.slowPeerDisconnected();
+                    loop.execute(this::close);
+                }
+                return;
+            }
+            (item.isBulk() ? bulk : urgent).add(item);
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        // Runs on the event loop; writes until the queue is empty or the socket is full
+        void flush() throws IOException {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            while (true) {
+                Outbound item;
+                while ((item = nextOutbound()) != null) {
+                    if (!item.writeTo(channel)) {
+                        if (item.stalled()) {
+                            bulk.poll(); // Waits outside the lane until it gets credit
+                            continue;
+                        }
+                        if (item.yielded()) {
+                            if (item.isBulk() && urgent.isEmpty()) {
+                                bulk.poll(); // Another file's turn
+                                bulk.add(item);
+                            }
+                            continue;
+                        }
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (item.isBulk()) {
+                        bulk.poll();
+                    } else {
+                        urgent.poll();
+                        urgentBytes.addAndGet(-item.size());
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                flushScheduled.set(false);
+                // Something may have been queued after the last peek
+                if ((urgent.isEmpty() && bulk.isEmpty()) || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        // Chat and control frames go first, but never into the middle of a file frame
+        private Outbound nextOutbound() {
+            Outbound file = bulk.peek();
+            return urgent.isEmpty() || (file != null && file.inFrame()) ? file : urgent.peek();
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            ConnectionMetrics.unwatchQueue(this);
+            rooms.leaveAll(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* Ignore */ }
+            session.close();
+            // Files first: releasing one drops it from sendingFiles, and each has to report
+            for (Long transferId : pendingFiles.keySet()) {
+                PendingFile pending = pendingFiles.remove(transferId);
+                if (pending != null) {
+                    pending.file.release();
+                    pending.broadcast.report(this, false);
+                }
+            }
+            for (FileOutbound file : new ArrayList<>(sendingFiles.values())) {
+                file.release(); // Stalled and verifying files are in no queue
+                file.broadcast.report(this, false);
+            }
+            sendingFiles.clear();
+            Outbound item;
+            while ((item = urgent.poll()) != null) {
+                item.release();
+            }
+            while ((item = bulk.poll()) != null) {
+                item.release();
+            }
+            receipts.removePeer(this);
+            if (peers.remove(this)) {
+                listener.onPeerDisconnected(name, peers.size());
+            }
+        }
+    }
+
+    // Something queued for a peer that may take several writable events to send
+    private interface Outbound {
+        /**
+         * @return true once everything has been written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        void release();
+
+        /**
+         * @return true for file data, which yields to chat and control frames
+         */
+        default boolean isBulk() {
+            return false;
+        }
+
+        /**
+         * @return Bytes this item holds in the urgent lane, counted against
+         *         the peer's limit
+         */
+        default int size() {
+            return 0;
+        }
+
+        /**
+         * @return true if the last writeTo stopped at a frame boundary to let
+         *         other items go first, rather than because the socket was full
+         */
+        default boolean yielded() {
+            return false;
+        }
+
+        /**
+         * @return true if the last writeTo stopped because the receiver has
+         *         not granted credit for more data; the item is then taken out
+         *         of the queue until it has
+         */
+        default boolean stalled() {
+            return false;
+        }
+
+        /**
+         * @return true if part of a frame has been written, so nothing else
+         *         may go on the socket before the rest of it
+         */
+        default boolean inFrame() {
+            return false;
+        }
+    }
+
+    private static class BufferOutbound implements Outbound {
+        private final ByteBuffer buffer;
+        private final int size;
+        private final AtomicLong queuedBytes; // Counted down as the buffer is written; null if not counted
+
+        BufferOutbound(ByteBuffer buffer) {
+            this(buffer, null);
+        }
+
+        BufferOutbound(ByteBuffer buffer, AtomicLong queuedBytes) {
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+            this.queuedBytes = queuedBytes;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            int written = channel.write(buffer);
+            ConnectionMetrics.bytesSent(written);
+            if (queuedBytes != null) {
+                queuedBytes.addAndGet(-written);
+            }
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    // File channel shared by every peer a file is broadcast to; closed by the last one
+    private static class SharedFile {
+        private final FileChannel channel;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedFile(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    /* Ignore */ }
+            }
+        }
+    }
+
+    /**
+     * A file offered to the peers connected at the time. It is done once
+     * each of them has received it, refused it or disconnected, and tells
+     * how many received it.
+     */
+    public static final class Broadcast {
+        private final int peerCount;
+        private final Set<Object> reported = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger remaining;
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        Broadcast(int peerCount) {
+            this.peerCount = peerCount;
+            this.remaining = new AtomicInteger(peerCount);
+            if (peerCount == 0) {
+                done.complete(0);
+            }
+        }
+
+        public int getPeerCount() {
+            return peerCount;
+        }
+
+        /**
+         * @return Completes with the number of peers that received the file
+         */
+        public CompletableFuture<Integer> getDone() {
+            return done;
+        }
+
+        // Records a peer's outcome; only its first counts
+        void report(Object peer, boolean received) {
+            if (!reported.add(peer)) {
+                return;
+            }
+            if (received) {
+                delivered.incrementAndGet();
+            }
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(delivered.get());
+            }
+        }
+    }
+
+    private static class PendingFile {
+        private final SharedFile file;
+        private final long fileSize;
+        private final String fileName;
+        private final Broadcast broadcast;
+
+        PendingFile(SharedFile file, long fileSize, String fileName, Broadcast broadcast) {
+            this.file = file;
+            this.fileSize = fileSize;
+            this.fileName = fileName;
+            this.broadcast = broadcast;
+        }
+    }
+
+    // FILE_DATA frames for one peer followed by FILE_END, written zero-copy as the socket drains
+    // and, when flow controlled, as the peer grants credit. A checksummed file stays open after
+    // FILE_END, sending ranges again as the peer asks, until the peer sends FILE_DONE.
+    private class FileOutbound implements Outbound {
+        private final SharedFile file;
+        private final long transferId;
+        private final long fileSize;
+        private final String fileName;
+        private final Broadcast broadcast;
+        private final Peer peer;
+        private final FlowControl.Sender credit; // Null unless flow controlled
+        private final boolean checksums;
+        private final long startOffset; // What the peer already had
+        private final long startTime = System.currentTimeMillis();
+        private final ByteBuffer frameHeader = ByteBuffer.allocate(FrameCodec.MAX_HEADER_SIZE + 24);
+        private final ByteBuffer prefix = ByteBuffer.allocate(24); // transferId, offset, CRC32
+        private final Deque<long[]> repairs = new ArrayDeque<>(); // Ranges to send again
+        private long position;
+        private long rangeEnd; // End of the file, or of the range being sent again
+        private boolean repairing = false;
+        private long chunkEnd;
+        private boolean sentThisTurn = false;
+        private boolean yielded = false;
+        private boolean stalled = false;
+        private boolean throttled = false; // Out of the lane until the rate limiter has tokens again
+        private boolean verifying = false; // FILE_END written, waiting for the peer's verdict
+        // Chunks are read and checksummed on a worker, as that reads the disk, then sent zero-copy
+        private ByteBuffer checksumBuffer;
+        private final CRC32 crc = new CRC32();
+        private boolean checksumming = false; // A worker is checksumming a chunk
+        private boolean awaitingChecksum = false; // Out of the lane until that checksum is ready
+        private long checksumPosition = -1; // Chunk the ready checksum is for
+        private int checksumLength;
+        private int checksumValue;
+        private IOException checksumError;
+        private boolean cancelled = false;
+        private boolean released = false;
+
+        FileOutbound(SharedFile file, long transferId, long fileSize, long offset, String fileName,
+                Broadcast broadcast, Peer peer, FlowControl.Sender credit, boolean checksums) {
+            this.file = file;
+            this.transferId = transferId;
+            this.fileSize = fileSize;
+            this.fileName = fileName;
+            this.broadcast = broadcast;
+            this.peer = peer;
+            this.credit = credit;
+            this.checksums = checksums;
+            this.startOffset = offset;
+            this.position = offset;
+            this.rangeEnd = fileSize;
+            this.chunkEnd = offset;
+            frameHeader.flip(); // Empty until the first chunk is prepared
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            yielded = false;
+            while (true) {
+                if (frameHeader.hasRemaining()) {
+                    ConnectionMetrics.bytesSent(channel.write(frameHeader));
+                    if (frameHeader.hasRemaining()) {
+                        return false;
+                    }
+                }
+                while (position < chunkEnd) {
+                    long count = file.channel.transferTo(position, chunkEnd - position, channel);
+                    if (count <= 0) {
+                        if (position >= file.channel.size()) {
+                            throw new IOException("File changed while sending");
+                        }
+                        return false; // Socket buffer is full
+                    }
+                    position += count;
+                    ConnectionMetrics.bytesSent(count);
+                }
+                if (cancelled) {
+                    release();
+                    return true;
+                }
+                if (chunkEnd < 0) {
+                    // FILE_END has been written
+                    if (checksums) {
+                        chunkEnd = position;
+                        verifying = true; // Leaves the lane until the peer answers
+                        return true;
+                    }
+                    release();
+                    recordSent();
+                    broadcast.report(peer, true);
+                    listener.onFileSent(peer.name, fileName);
+                    return true;
+                }
+
+                // Between frames: chat and control frames go first, and other files get a turn
+                if (!peer.urgent.isEmpty() || (sentThisTurn && peer.bulk.size() > 1)) {
+                    sentThisTurn = false;
+                    yielded = true;
+                    return false;
+                }
+                sentThisTurn = true;
+
+                if (position >= rangeEnd && !repairs.isEmpty()) {
+                    long[] range = repairs.poll();
+                    position = range[0];
+                    chunkEnd = position;
+                    rangeEnd = range[0] + range[1];
+                    repairing = true;
+                }
+                frameHeader.clear();
+                prefix.clear();
+                FrameCodec.putVarLong(prefix, transferId);
+                if (position < rangeEnd) {
+                    int length = nextChunkLength();
+                    if (length == 0) {
+                        frameHeader.flip();
+                        stalled = true;
+                        return false;
+                    }
+                    if (checksums && (checksumPosition != position || checksumLength != length)) {
+                        frameHeader.flip();
+                        if (checksumError != null) {
+                            throw checksumError;
+                        }
+                        awaitingChecksum = true;
+                        if (!checksumming) {
+                            computeChecksum(position, length);
+                        }
+                        return false;
+                    }
+                    long wait = peer.limiter.tryAcquire(length);
+                    if (wait > 0) {
+                        frameHeader.flip();
+                        throttle(wait);
+                        return false;
+                    }
+                    if (credit != null && !repairing) {
+                        credit.onSent(position + length);
+                    }
+                    int flags = 0;
+                    if (repairing) {
+                        FrameCodec.putVarLong(prefix, position);
+                        flags |= FrameType.FLAG_DATA_OFFSET;
+                    }
+                    if (checksums) {
+                        prefix.putInt(checksumValue);
+                        flags |= FrameType.FLAG_DATA_CHECKSUM;
+                    }
+                    prefix.flip();
+                    FrameCodec.putHeader(frameHeader, FrameType.FILE_DATA, flags, prefix.remaining() + length);
+                    frameHeader.put(prefix);
+                    chunkEnd = position + length;
+                    if (checksums && chunkEnd < rangeEnd) {
+                        // Most likely the next chunk, checksummed while this one is written
+                        computeChecksum(chunkEnd, (int) Math.min(
+                                credit == null || repairing ? FileTransfers.FILE_CHUNK_SIZE : credit.chunkSize(),
+                                rangeEnd - chunkEnd));
+                    }
+                } else {
+                    prefix.flip();
+                    FrameCodec.putHeader(frameHeader, FrameType.FILE_END, 0, prefix.remaining());
+                    frameHeader.put(prefix);
+                    chunkEnd = -1;
+                }
+                frameHeader.flip();
+            }
+        }
+
+        // Leaves the lane and comes back on the event loop once the tokens are due
+        private void throttle(long nanos) {
+            throttled = true;
+            ConnectionExecutors.schedule(() -> peer.loop.execute(() -> {
+                throttled = false;
+                if (!released) {
+                    peer.enqueue(this);
+                }
+            }), Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        }
+
+        // Reads and checksums a chunk on a worker, then comes back on the event loop to send it if waiting
+        private void computeChecksum(long chunkPosition, int length) {
+            if (checksumming) {
+                return;
+            }
+            checksumming = true;
+            if (checksumBuffer == null) {
+                checksumBuffer = ByteBuffer.allocate(FileTransfers.FILE_CHUNK_SIZE);
+            }
+            ByteBuffer buffer = checksumBuffer;
+            ConnectionExecutors.execute("Checksum-" + fileName, () -> {
+                int value = 0;
+                IOException error = null;
+                try {
+                    FileTransfers.readChunk(file.channel, chunkPosition, length, buffer);
+                    value = FileTransfers.checksum(crc, buffer);
+                } catch (IOException e) {
+                    error = e;
+                }
+                int checksum = value;
+                IOException failure = error;
+                peer.loop.execute(() -> {
+                    checksumming = false;
+                    if (failure == null) {
+                        checksumPosition = chunkPosition;
+                        checksumLength = length;
+                        checksumValue = checksum;
+                    } else if (!released) {
+                        checksumError = failure; // Thrown by the next write, which closes the connection
+                    }
+                    if (awaitingChecksum) {
+                        awaitingChecksum = false;
+                        if (!released) {
+                            peer.enqueue(this);
+                        }
+                    }
+                });
+            });
+        }
+
+        // Runs on the event loop
+        void addRepairs(List<long[]> ranges) throws IOException {
+            for (long[] range : ranges) {
+                if (range[0] < 0 || range[1] <= 0 || range[0] + range[1] > fileSize) {
+                    throw new IOException("Peer asked for an invalid range: " + range[0] + "+" + range[1]);
+                }
+                repairs.add(range);
+            }
+        }
+
+        // Hashes the leaves on a worker thread, as that reads the whole file, then queues them for the peer
+        void sendLeafHashes() {
+            ConnectionExecutors.execute("LeafHashes-" + fileName, () -> {
+                try {
+                    byte[][] leaves = MerkleTree.leafHashes(file.channel, fileSize);
+                    for (ByteBuffer payload : FileTransfers.encodeFileHashes(transferId, leaves)) {
+                        peer.enqueue(new BufferOutbound(FrameCodec.encodeFrame(FrameType.FILE_HASHES, 0, payload)));
+                    }
+                } catch (IOException e) {
+                    /* The file was closed with the peer's connection */ }
+            });
+        }
+
+        @Override
+        public boolean isBulk() {
+            return true;
+        }
+
+        @Override
+        public boolean yielded() {
+            return yielded;
+        }
+
+        @Override
+        public boolean stalled() {
+            return stalled || throttled || awaitingChecksum;
+        }
+
+        @Override
+        public boolean inFrame() {
+            return frameHeader.hasRemaining() || position < chunkEnd;
+        }
+
+        // Length of the next chunk, sized for the connection and cut to the credit left when flow
+        // controlled; 0 if it has to wait for more credit
+        int nextChunkLength() {
+            if (credit == null || repairing) {
+                return (int) Math.min(FileTransfers.FILE_CHUNK_SIZE, rangeEnd - position);
+            }
+            return credit.credit(position, (int) Math.min(credit.chunkSize(), rangeEnd - position));
+        }
+
+        void recordSent() {
+            ConnectionMetrics.fileSent(fileSize - startOffset, System.currentTimeMillis() - startTime);
+        }
+
+        @Override
+        public void release() {
+            if (!released) {
+                released = true;
+                peer.sendingFiles.remove(transferId);
+                file.release();
+            }
+        }
+    }
+}
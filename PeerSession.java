@@ -0,0 +1,714 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Receive side of one peer connection: decodes frames and turns them into
+ * listener callbacks, writing incoming files into the downloads directory.
+ * Used both by the blocking client connection and by each peer of the
+ * multi-client server. Replies the protocol needs, such as FILE_ACCEPT, go
+ * out through the given sink.
+ *
+ * Striped transfers are announced on the control connection but their
+ * ranges arrive on separate data connections, each with its own session, so
+ * they are looked up by stripe token in a registry shared by all sessions.
+ *
+ * Streamed transfers whose sender offers flow control are granted credit as
+ * their chunks are written, see {@link FlowControl}.
+ *
+ * When the sender checksums its chunks, a chunk that fails its CRC32 is
+ * not written and its range is asked for again once FILE_END arrives. A file
+ * whose content hash still does not match is compared leaf by leaf with the
+ * sender's Merkle tree, and the leaves that differ are asked for again. The
+ * sender learns the outcome from FILE_DONE.
+ *
+ * Hashing a finished file, and checking a full-size part file left by an
+ * earlier attempt, read the whole file, so both run on the connection
+ * executor; the outcome is handed back to the session's loop, the thread
+ * that reads its connection, or where there is none, acted on right there.
+ *
+ * A file offered as a delta that the downloads directory holds an older
+ * version of is received against it: the signatures of its blocks are
+ * computed on every core and sent back, and the blocks the sender finds
+ * unchanged are copied from it, see {@link FileDelta}. Such a transfer is
+ * never striped or flow controlled.
+ *
+ * Bundles of files arrive as a manifest and one stream of contents, which is
+ * split into files as it is written, see {@link IncomingBundle}. Their
+ * outcome also goes back as FILE_DONE.
+ *
+ * Numbered chat messages are acknowledged with batched RECEIPT frames, see
+ * {@link Receipts}. Messages that carry an id, as those from a client's
+ * {@link Outbox} do, are shown only the first time the id arrives, even if
+ * this side was restarted in between, see {@link SeenMessages}; a copy sent
+ * again after a reconnect is still acknowledged.
+ */
+public class PeerSession {
+    private final String peerName;
+    private final File downloadsDir;
+    private final ChatListener listener;
+    private final FrameSink replies;
+    private final Executor loop; // Runs tasks on the thread that reads this connection
+    private final ContentIndex contentIndex;
+    private final SeenMessages seenMessages;
+    private final Receipts.Acknowledger receipts;
+    // Direct, so file data goes from the socket to the disk without a copy through the heap
+    private final FrameDecoder decoder = new FrameDecoder(true);
+    private final Map<Long, IncomingTransfer> incomingTransfers = new ConcurrentHashMap<>();
+    private final Map<Long, FlowControl.Receiver> receiveWindows = new ConcurrentHashMap<>();
+    private final Map<Long, IncomingBundle> incomingBundles = new ConcurrentHashMap<>();
+    private ChunkCompressor.Decompressor decompressor; // Created on the first compressed chunk
+    private final CRC32 checksum = new CRC32();
+    private volatile boolean closed = false;
+
+    // Striped transfers by stripe token, across all sessions in this process
+    private static final Map<Long, StripedTransfer> STRIPED_TRANSFERS = new ConcurrentHashMap<>();
+
+    /**
+     * A session whose connection is read by a thread that blocks in read, so
+     * the outcome of work done on the connection executor is acted on by
+     * the thread that did it.
+     */
+    public PeerSession(String peerName, File downloadsDir, ChatListener listener, FrameSink replies) {
+        this(peerName, downloadsDir, listener, replies, Runnable::run);
+    }
+
+    /**
+     * @param loop Runs tasks on the thread that reads this connection
+     */
+    public PeerSession(String peerName, File downloadsDir, ChatListener listener, FrameSink replies, Executor loop) {
+        this.peerName = peerName;
+        this.downloadsDir = downloadsDir;
+        this.listener = listener;
+        this.replies = replies;
+        this.loop = loop;
+        this.contentIndex = ContentIndex.forDirectory(downloadsDir);
+        this.seenMessages = SeenMessages.forDirectory(downloadsDir);
+        this.receipts = new Receipts.Acknowledger(replies);
+
+        // Dispatch table: one handler per frame type
+        decoder.register(FrameType.CHAT, this::handleChat);
+        decoder.register(FrameType.CHAT_BATCH, this::handleChatBatch);
+        decoder.register(FrameType.ROOM_MESSAGE, this::handleRoomMessage);
+        decoder.register(FrameType.TYPING, (flags, payload) ->
+                listener.onTyping(peerName, (flags & FrameType.FLAG_TYPING_ACTIVE) != 0));
+        decoder.register(FrameType.FILE_START, this::handleFileStart);
+        decoder.register(FrameType.FILE_DATA, this::handleFileData);
+        decoder.register(FrameType.FILE_COPY, this::handleFileCopy);
+        decoder.register(FrameType.FILE_END, this::handleFileEnd);
+        decoder.register(FrameType.FILE_RANGE, this::handleFileRange);
+        decoder.register(FrameType.FILE_HASHES, this::handleFileHashes);
+        decoder.register(FrameType.BUNDLE_START, this::handleBundleStart);
+        decoder.register(FrameType.BUNDLE_ENTRIES, this::handleBundleEntries);
+        decoder.register(FrameType.BUNDLE_DATA, this::handleBundleData);
+        decoder.register(FrameType.BUNDLE_END, this::handleBundleEnd);
+        decoder.register(FrameType.PING, (flags, payload) -> replies.send(FrameType.PONG, 0, payload));
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Reads once from the channel and handles every complete frame.
+     *
+     * @return The number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        return decoder.readFrom(channel);
+    }
+
+    /**
+     * Marks every message received so far as read, for the sender's receipts.
+     *
+     * @param immediately Send the receipt now rather than with the next batch
+     */
+    public void markRead(boolean immediately) {
+        receipts.markRead(immediately);
+    }
+
+    /**
+     * Stops any half-received files, keeping their part files for a later
+     * resume, and drops half-received bundles.
+     */
+    public void close() {
+        closed = true;
+        receipts.close();
+        STRIPED_TRANSFERS.values().removeIf(striped -> striped.owner == this);
+        for (IncomingTransfer transfer : incomingTransfers.values()) {
+            transfer.suspend();
+        }
+        incomingTransfers.clear();
+        receiveWindows.clear();
+        for (IncomingBundle bundle : incomingBundles.values()) {
+            bundle.abort();
+        }
+        incomingBundles.clear();
+        if (decompressor != null) {
+            decompressor.close();
+        }
+    }
+
+    private void handleChat(int flags, ByteBuffer payload) throws IOException {
+        // Payload: the sequence number if numbered, the id if it has one, then the text up to the end of the frame
+        if ((flags & FrameType.FLAG_CHAT_SEQUENCE) != 0) {
+            receipts.onDelivered(FrameCodec.getVarLong(payload));
+        }
+        if ((flags & FrameType.FLAG_CHAT_ID) != 0 && !firstArrival(payload)) {
+            return;
+        }
+        ConnectionMetrics.messageReceived();
+        listener.onMessage(peerName, FrameCodec.getText(payload, payload.remaining()));
+    }
+
+    private void handleChatBatch(int flags, ByteBuffer payload) throws IOException {
+        // Payload: count, then the sequence, id and text of each message
+        int count = FrameCodec.getVarInt(payload);
+        for (int i = 0; i < count; i++) {
+            long sequence = FrameCodec.getVarLong(payload);
+            boolean first = firstArrival(payload);
+            String text = FrameCodec.getString(payload);
+            receipts.onDelivered(sequence);
+            if (first) {
+                ConnectionMetrics.messageReceived();
+                listener.onMessage(peerName, text);
+            }
+        }
+    }
+
+    // Reads a message id, and tells whether it has not been seen lately
+    private boolean firstArrival(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 8) {
+            throw new IOException("Chat message id cut short");
+        }
+        return seenMessages.add(payload.getLong());
+    }
+
+    private void handleRoomMessage(int flags, ByteBuffer payload) throws IOException {
+        // Payload: room, sender, then the text up to the end of the frame
+        String room = FrameCodec.getString(payload);
+        String sender = FrameCodec.getString(payload);
+        ConnectionMetrics.messageReceived();
+        listener.onRoomMessage(room, sender, FrameCodec.getText(payload, payload.remaining()));
+    }
+
+    private void handleFileStart(int flags, ByteBuffer payload) throws IOException {
+        // Payload: transferId, filesize, filename, resume key, content hash, and the stripe token if striped
+        long transferId = FrameCodec.getVarLong(payload);
+        long expectedFileSize = FrameCodec.getVarLong(payload);
+        String fileName = new File(FrameCodec.getString(payload)).getName();
+        String resumeKey = new File(FrameCodec.getString(payload)).getName();
+        String contentHash = FrameCodec.getString(payload);
+        boolean striped = (flags & FrameType.FLAG_FILE_STRIPED) != 0;
+        long stripeToken = striped ? FrameCodec.getVarLong(payload) : 0;
+
+        // Create downloads directory if it doesn't exist
+        if (!downloadsDir.exists()) {
+            downloadsDir.mkdirs();
+        }
+
+        File file = new File(downloadsDir, fileName);
+        File partFile = FileTransfers.partFile(downloadsDir, fileName, resumeKey);
+        if (acceptDuplicate(transferId, fileName, expectedFileSize, file, partFile, contentHash)) {
+            return;
+        }
+
+        // An older version under the same name is the basis of a delta, unless an earlier attempt can be resumed
+        boolean delta = (flags & FrameType.FLAG_FILE_DELTA) != 0 && FileDelta.isEnabled() && file.isFile()
+                && FileDelta.canBeBasis(file.length()) && partFile.length() == 0;
+
+        if (!striped && expectedFileSize > 0 && partFile.length() == expectedFileSize) {
+            // A full-size part file is only resumed if its content checks out, which means hashing all of it
+            ConnectionExecutors.execute("Resume-" + fileName, () -> {
+                try {
+                    IncomingTransfer transfer = new IncomingTransfer(fileName, expectedFileSize, file, partFile,
+                            false, contentHash);
+                    loop.execute(() -> acceptTransfer(transferId, flags, transfer, false, 0));
+                } catch (IOException e) {
+                    loop.execute(() -> rejectTransfer(transferId, e.getMessage()));
+                }
+            });
+            return;
+        }
+
+        IncomingTransfer transfer;
+        try {
+            transfer = new IncomingTransfer(fileName, expectedFileSize, file, partFile, striped && !delta,
+                    contentHash);
+        } catch (IOException e) {
+            rejectTransfer(transferId, e.getMessage());
+            return;
+        }
+        acceptTransfer(transferId, flags, transfer, delta, stripeToken);
+    }
+
+    private void rejectTransfer(long transferId, String reason) {
+        try {
+            replies.send(FrameType.FILE_ACCEPT, FrameType.FLAG_FILE_REJECTED,
+                    FileTransfers.encodeFileAccept(transferId, 0));
+        } catch (IOException e) {
+            /* The sender sees the connection close instead */ }
+        listener.onFileFailed(peerName, reason);
+    }
+
+    // Starts receiving an opened transfer and tells the sender where to start and how much it may send
+    private void acceptTransfer(long transferId, int flags, IncomingTransfer transfer, boolean delta,
+            long stripeToken) {
+        if (closed) {
+            transfer.suspend(); // The connection closed while the part file was checked
+            return;
+        }
+        boolean striped = (flags & FrameType.FLAG_FILE_STRIPED) != 0;
+        String fileName = transfer.getFileName();
+        incomingTransfers.put(transferId, transfer);
+        if (delta) {
+            try {
+                transfer.openBasis(transfer.getFile());
+            } catch (IOException e) {
+                /* No signatures then; the sender sends the whole file */ }
+        } else if (striped) {
+            STRIPED_TRANSFERS.put(stripeToken, new StripedTransfer(this, transferId, transfer));
+        }
+
+        // Tell the sender how much we already have so it only sends the rest
+        int acceptFlags = (flags & FrameType.FLAG_FILE_COMPRESSION) != 0 ? FrameType.FLAG_FILE_COMPRESSION_OK : 0;
+        long creditLimit = -1;
+        if (!striped && !delta && (flags & FrameType.FLAG_FILE_FLOW_CONTROL) != 0 && FlowControl.isEnabled()) {
+            FlowControl.Receiver window = new FlowControl.Receiver(transfer.getResumedFrom());
+            receiveWindows.put(transferId, window);
+            acceptFlags |= FrameType.FLAG_FILE_CREDIT;
+            creditLimit = window.getLimit();
+        }
+        if ((flags & FrameType.FLAG_FILE_CHECKSUMS) != 0) {
+            transfer.setRepairable(true);
+            acceptFlags |= FrameType.FLAG_FILE_CHECKSUMS_OK;
+        }
+        if (delta) {
+            acceptFlags |= FrameType.FLAG_FILE_DELTA_OK;
+        }
+        try {
+            replies.send(FrameType.FILE_ACCEPT, acceptFlags,
+                    FileTransfers.encodeFileAccept(transferId, transfer.getResumedFrom(), creditLimit));
+        } catch (IOException e) {
+            /* The sender sees the connection close instead */ }
+        if (delta) {
+            // Signing a large file takes a while, so it stays off the thread that reads this connection
+            ConnectionExecutors.execute("Signatures-" + fileName, () -> sendSignatures(transferId, transfer));
+        }
+        listener.onFileReceiving(peerName, fileName, transfer.getExpectedSize(), transfer.getResumedFrom());
+    }
+
+    // Runs on the connection executor
+    private void sendSignatures(long transferId, IncomingTransfer transfer) {
+        FileDelta.Signatures signatures;
+        try {
+            signatures = transfer.getBasis() != null
+                    ? FileDelta.sign(transfer.getBasis(), transfer.getBasisSize()) : FileDelta.Signatures.none();
+        } catch (IOException e) {
+            signatures = FileDelta.Signatures.none(); // The sender sends the whole file instead
+        }
+        try {
+            for (ByteBuffer payload : FileTransfers.encodeFileSignatures(transferId, signatures)) {
+                replies.send(FrameType.FILE_SIGNATURES, 0, payload);
+            }
+        } catch (IOException e) {
+            /* The sender sees the connection close instead */ }
+    }
+
+    /**
+     * Completes a transfer straight away from a local file with the same
+     * content, if the index knows one, and tells the sender to skip the data.
+     */
+    private boolean acceptDuplicate(long transferId, String fileName, long fileSize, File file, File partFile,
+            String contentHash) throws IOException {
+        File existing = contentHash.isEmpty() ? null : contentIndex.find(contentHash, fileSize);
+        if (existing == null) {
+            return false;
+        }
+
+        IncomingTransfer transfer;
+        try {
+            transfer = IncomingTransfer.fromLocalCopy(fileName, fileSize, file, partFile, existing, contentHash);
+        } catch (IOException e) {
+            return false; // Receive it over the network instead
+        }
+        contentIndex.put(file, contentHash);
+        replies.send(FrameType.FILE_ACCEPT, FrameType.FLAG_FILE_DUPLICATE,
+                FileTransfers.encodeFileAccept(transferId, fileSize));
+        listener.onFileReceived(peerName, transfer);
+        return true;
+    }
+
+    private void handleFileData(int flags, ByteBuffer payload) throws IOException {
+        // Payload: transferId, the file offset if sent again, the CRC32 if checksummed, then raw file
+        // bytes up to the end of the frame, or if compressed the raw length and deflated bytes
+        long transferId = FrameCodec.getVarLong(payload);
+        long offset = (flags & FrameType.FLAG_DATA_OFFSET) != 0 ? FrameCodec.getVarLong(payload) : -1;
+        boolean checksummed = (flags & FrameType.FLAG_DATA_CHECKSUM) != 0;
+        if (checksummed && payload.remaining() < 4) {
+            throw new IOException("FILE_DATA frame too short for its checksum");
+        }
+        int expectedChecksum = checksummed ? payload.getInt() : 0;
+        IncomingTransfer transfer = incomingTransfers.get(transferId);
+        if (transfer == null) {
+            return; // Unknown or already failed transfer
+        }
+
+        try {
+            ByteBuffer data = payload;
+            int length = payload.remaining();
+            if ((flags & FrameType.FLAG_DATA_COMPRESSED) != 0) {
+                if (decompressor == null) {
+                    decompressor = new ChunkCompressor.Decompressor();
+                }
+                length = FrameCodec.getVarInt(payload.duplicate());
+                try {
+                    data = decompressor.decompress(payload);
+                } catch (IOException e) {
+                    if (!checksummed) {
+                        throw e;
+                    }
+                    data = null; // Damaged on the way; treated like a failed checksum
+                }
+            }
+            boolean intact = data != null
+                    && (!checksummed || FileTransfers.checksum(checksum, data) == expectedChecksum);
+            if (offset >= 0) {
+                if (intact) {
+                    transfer.repair(data, offset);
+                } // Otherwise the range stays damaged and is asked for in the next round
+            } else if (intact) {
+                transfer.write(data);
+            } else {
+                transfer.skip(length);
+            }
+        } catch (IOException e) {
+            failTransfer(transferId, e.getMessage());
+            return;
+        }
+
+        FlowControl.Receiver window = offset < 0 ? receiveWindows.get(transferId) : null;
+        if (window != null) {
+            long written = transfer.getReceived();
+            long creditLimit = window.onWritten(written);
+            if (creditLimit >= 0) {
+                replies.send(FrameType.FILE_CREDIT, 0, FileTransfers.encodeFileCredit(transferId, written, creditLimit));
+            }
+        }
+    }
+
+    private void handleFileCopy(int flags, ByteBuffer payload) throws IOException {
+        // Payload: transferId, first block of the basis, number of blocks
+        long transferId = FrameCodec.getVarLong(payload);
+        long firstBlock = FrameCodec.getVarLong(payload);
+        long count = FrameCodec.getVarLong(payload);
+        IncomingTransfer transfer = incomingTransfers.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+
+        try {
+            transfer.copyFromBasis(firstBlock, count);
+        } catch (IOException e) {
+            failTransfer(transferId, e.getMessage());
+        }
+    }
+
+    private void handleFileRange(int flags, ByteBuffer payload) throws IOException {
+        // Payload: stripe token, file offset, then raw file bytes up to the end of the frame
+        long stripeToken = FrameCodec.getVarLong(payload);
+        long offset = FrameCodec.getVarLong(payload);
+        StripedTransfer striped = STRIPED_TRANSFERS.get(stripeToken);
+        if (striped == null) {
+            return; // Unknown or already failed transfer
+        }
+
+        // The range may arrive on any data connection; what follows belongs on the owning session's loop
+        PeerSession owner = striped.owner;
+        try {
+            striped.transfer.writeAt(payload, offset);
+        } catch (IOException e) {
+            owner.loop.execute(() -> owner.failTransfer(striped.transferId, e.getMessage()));
+            return;
+        }
+        if (striped.transfer.tryComplete()) {
+            owner.loop.execute(() -> {
+                try {
+                    owner.checkTransfer(striped.transferId);
+                } catch (IOException e) {
+                    owner.failTransfer(striped.transferId, e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void handleFileHashes(int flags, ByteBuffer payload) throws IOException {
+        // Payload: transferId, index of the first leaf, number of leaves, then the leaf hashes
+        long transferId = FrameCodec.getVarLong(payload);
+        int first = FrameCodec.getVarInt(payload);
+        int total = FrameCodec.getVarInt(payload);
+        IncomingTransfer transfer = incomingTransfers.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+
+        try {
+            if (!transfer.addSenderLeafHashes(first, total, payload)) {
+                return; // More to come
+            }
+        } catch (IOException e) {
+            failTransfer(transferId, e.getMessage());
+            return;
+        }
+        if (transfer.markDifferingLeaves() == 0) {
+            // Every leaf matches yet the root did not: the sender's file is not what it announced
+            failTransfer(transferId, "Content hash mismatch for " + transfer.getFileName());
+            return;
+        }
+        replies.send(FrameType.FILE_REPAIR, 0, FileTransfers.encodeFileRepair(transferId, transfer.getBadRanges()));
+    }
+
+    private void handleFileEnd(int flags, ByteBuffer payload) throws IOException {
+        long transferId = FrameCodec.getVarLong(payload);
+        IncomingTransfer transfer = incomingTransfers.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+
+        if (transfer.isStriped() && !transfer.isRepairing()) {
+            // Ranges may still be in flight on the data connections
+            transfer.markEnd();
+            if (transfer.tryComplete()) {
+                checkTransfer(transferId);
+            }
+            return;
+        }
+        checkTransfer(transferId);
+    }
+
+    /**
+     * Completes a transfer once all its data has arrived. When the sender
+     * checksums its chunks, damaged ranges are asked for again first, and a
+     * file that does not match its content hash gets the sender's leaf
+     * hashes asked for, to find the ranges that differ.
+     */
+    private void checkTransfer(long transferId) throws IOException {
+        IncomingTransfer transfer = incomingTransfers.get(transferId);
+        if (transfer == null) {
+            return;
+        }
+        List<long[]> badRanges = transfer.isRepairable() ? transfer.getBadRanges() : Collections.emptyList();
+        if (!badRanges.isEmpty()) {
+            if (transfer.startRepairRound()) {
+                replies.send(FrameType.FILE_REPAIR, 0, FileTransfers.encodeFileRepair(transferId, badRanges));
+            } else {
+                failTransfer(transferId, "Content hash mismatch for " + transfer.getFileName());
+            }
+            return;
+        }
+
+        // Hashing what was not hashed on the way in reads the file, so it stays off this connection's thread
+        ConnectionExecutors.execute("Verify-" + transfer.getFileName(), () -> {
+            try {
+                boolean verified = transfer.verify();
+                loop.execute(() -> onVerified(transferId, transfer, verified));
+            } catch (IOException e) {
+                loop.execute(() -> {
+                    if (incomingTransfers.get(transferId) == transfer) {
+                        failTransfer(transferId, e.getMessage());
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on the loop once the content hash of a complete transfer is known
+    private void onVerified(long transferId, IncomingTransfer transfer, boolean verified) {
+        if (incomingTransfers.get(transferId) != transfer) {
+            return; // Failed or closed while it was hashed
+        }
+        if (verified || !transfer.isRepairable()) {
+            completeTransfer(transferId); // Fails it if the hash does not match
+            return;
+        }
+        if (transfer.requestLeafHashes() && transfer.startRepairRound()) {
+            try {
+                replies.send(FrameType.FILE_REPAIR, FrameType.FLAG_REPAIR_HASHES,
+                        FileTransfers.encodeFileRepair(transferId, transfer.getBadRanges()));
+            } catch (IOException e) {
+                /* The sender sees the connection close instead */ }
+            return;
+        }
+        failTransfer(transferId, "Content hash mismatch for " + transfer.getFileName());
+    }
+
+    private void completeTransfer(long transferId) {
+        receiveWindows.remove(transferId);
+        IncomingTransfer transfer = incomingTransfers.remove(transferId);
+        if (transfer == null) {
+            return;
+        }
+        STRIPED_TRANSFERS.values().removeIf(striped -> striped.transfer == transfer);
+
+        try {
+            transfer.finish();
+            contentIndex.put(transfer.getFile(), transfer.getContentHash());
+            sendDone(transferId, transfer, 0);
+            ConnectionMetrics.fileReceived(transfer.getExpectedSize() - transfer.getResumedFrom(),
+                    System.currentTimeMillis() - transfer.getStartTime());
+            listener.onFileReceived(peerName, transfer);
+        } catch (IOException e) {
+            transfer.abort();
+            sendDone(transferId, transfer, FrameType.FLAG_DONE_FAILED);
+            listener.onFileFailed(peerName, e.getMessage());
+        }
+    }
+
+    private void failTransfer(long transferId, String reason) {
+        receiveWindows.remove(transferId);
+        IncomingTransfer transfer = incomingTransfers.remove(transferId);
+        if (transfer == null) {
+            return;
+        }
+        STRIPED_TRANSFERS.values().removeIf(striped -> striped.transfer == transfer);
+        transfer.abort();
+        sendDone(transferId, transfer, FrameType.FLAG_DONE_FAILED);
+        listener.onFileFailed(peerName, reason);
+    }
+
+    // Tells a sender that checksums its chunks how the transfer ended, so it stops waiting to send ranges again
+    private void sendDone(long transferId, IncomingTransfer transfer, int flags) {
+        if (!transfer.isRepairable()) {
+            return;
+        }
+        try {
+            replies.send(FrameType.FILE_DONE, flags, FileTransfers.encodeTransferId(transferId));
+        } catch (IOException e) {
+            /* The sender sees the connection close instead */ }
+    }
+
+    private void handleBundleStart(int flags, ByteBuffer payload) throws IOException {
+        // Payload: bundleId, entry count, total size, name
+        long bundleId = FrameCodec.getVarLong(payload);
+        int entryCount = FrameCodec.getVarInt(payload);
+        long totalSize = FrameCodec.getVarLong(payload);
+        String name = FrameCodec.getString(payload);
+
+        IncomingBundle bundle;
+        try {
+            bundle = new IncomingBundle(name, entryCount, totalSize, downloadsDir);
+        } catch (IOException e) {
+            replies.send(FrameType.FILE_DONE, FrameType.FLAG_DONE_FAILED, FileTransfers.encodeTransferId(bundleId));
+            listener.onFileFailed(peerName, e.getMessage());
+            return;
+        }
+        incomingBundles.put(bundleId, bundle);
+        reportProgress(bundle);
+    }
+
+    private void handleBundleEntries(int flags, ByteBuffer payload) throws IOException {
+        // Payload: bundleId, count, then a path and size for each entry
+        long bundleId = FrameCodec.getVarLong(payload);
+        int count = FrameCodec.getVarInt(payload);
+        IncomingBundle bundle = incomingBundles.get(bundleId);
+        if (bundle == null) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < count; i++) {
+                bundle.addEntry(FrameCodec.getString(payload), FrameCodec.getVarLong(payload));
+            }
+        } catch (IOException e) {
+            failBundle(bundleId, e.getMessage());
+            return;
+        }
+        reportProgress(bundle);
+    }
+
+    private void handleBundleData(int flags, ByteBuffer payload) throws IOException {
+        // Payload: bundleId, then the next bytes of the contents up to the end of the frame
+        long bundleId = FrameCodec.getVarLong(payload);
+        IncomingBundle bundle = incomingBundles.get(bundleId);
+        if (bundle == null) {
+            return; // Unknown or already failed bundle
+        }
+
+        try {
+            bundle.write(payload);
+        } catch (IOException e) {
+            failBundle(bundleId, e.getMessage());
+            return;
+        }
+        reportProgress(bundle);
+    }
+
+    private void handleBundleEnd(int flags, ByteBuffer payload) throws IOException {
+        // Payload: bundleId, CRC32 of the contents
+        long bundleId = FrameCodec.getVarLong(payload);
+        if (payload.remaining() < 4) {
+            throw new IOException("BUNDLE_END frame too short for its checksum");
+        }
+        int expectedChecksum = payload.getInt();
+        IncomingBundle bundle = incomingBundles.get(bundleId);
+        if (bundle == null) {
+            return;
+        }
+
+        try {
+            bundle.finish(expectedChecksum);
+        } catch (IOException e) {
+            failBundle(bundleId, e.getMessage());
+            return;
+        }
+        incomingBundles.remove(bundleId);
+        replies.send(FrameType.FILE_DONE, 0, FileTransfers.encodeTransferId(bundleId));
+        ConnectionMetrics.fileReceived(bundle.getTotalSize(), System.currentTimeMillis() - bundle.getStartTime());
+        listener.onFilesReceived(peerName, bundle);
+    }
+
+    private void reportProgress(IncomingBundle bundle) {
+        if (bundle.takeProgressStep()) {
+            listener.onFilesReceiving(peerName, bundle.getName(), bundle.getFileCount(), bundle.getTotalSize(),
+                    bundle.getReceived());
+        }
+    }
+
+    private void failBundle(long bundleId, String reason) {
+        IncomingBundle bundle = incomingBundles.remove(bundleId);
+        if (bundle == null) {
+            return;
+        }
+        bundle.abort();
+        try {
+            replies.send(FrameType.FILE_DONE, FrameType.FLAG_DONE_FAILED, FileTransfers.encodeTransferId(bundleId));
+        } catch (IOException e) {
+            /* The sender sees the connection close instead */ }
+        listener.onFileFailed(peerName, reason);
+    }
+
+    private static class StripedTransfer {
+        private final PeerSession owner;
+        private final long transferId;
+        private final IncomingTransfer transfer;
+
+        StripedTransfer(PeerSession owner, long transferId, IncomingTransfer transfer) {
+            this.owner = owner;
+            this.transferId = transferId;
+            this.transfer = transfer;
+        }
+    }
+}
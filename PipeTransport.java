@@ -0,0 +1,340 @@
+package com.chatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory transport: both ends of every connection live in this process,
+ * joined by one byte pipe per direction. A pipe holds a socket buffer's
+ * worth of data and blocks the writer when it is full, like a socket. It can
+ * also delay every byte by a fixed latency and limit each direction to a
+ * bandwidth shared by all connections, as striped transfers share one real
+ * link, so tests and benchmarks see a slow or distant link without a
+ * network and without its noise.
+ *
+ * The receiving side calls {@link #listen(int)} and accepts connections from
+ * the listener; {@link #connect} ignores the host and finds the listener by
+ * port.
+ */
+public class PipeTransport implements Transport {
+    private static final int MAX_SEGMENT = 64 * 1024; // Largest piece one write copies into the pipe
+    private static final PipeConnection CLOSED = new PipeConnection(null, null, "closed");
+
+    private final long latencyNanos;
+    private final double bytesPerNano; // 0 when unlimited
+    private final Link toServerLink = new Link();
+    private final Link toClientLink = new Link();
+    private final Map<Integer, BlockingQueue<PipeConnection>> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger nextClient = new AtomicInteger();
+
+    public PipeTransport() {
+        this(0, 0);
+    }
+
+    /**
+     * @param latencyMillis One-way delay of every byte
+     * @param bytesPerSecond Bandwidth of each direction, or 0 for unlimited
+     */
+    public PipeTransport(long latencyMillis, long bytesPerSecond) {
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        this.bytesPerNano = bytesPerSecond / 1e9;
+    }
+
+    public Listener listen(int port) throws IOException {
+        BlockingQueue<PipeConnection> pending = new LinkedBlockingQueue<>();
+        if (listeners.putIfAbsent(port, pending) != null) {
+            throw new IOException("Pipe port already in use: " + port);
+        }
+        return new Listener(port, pending);
+    }
+
+    @Override
+    public Connection connect(String host, int port, int bufferSize) throws IOException {
+        BlockingQueue<PipeConnection> pending = listeners.get(port);
+        if (pending == null) {
+            throw new ConnectException("Connection refused: nothing listening on pipe port " + port);
+        }
+        Pipe toServer = new Pipe(bufferSize, toServerLink);
+        Pipe toClient = new Pipe(bufferSize, toClientLink);
+        pending.add(new PipeConnection(toServer, toClient, "pipe-client-" + nextClient.incrementAndGet()));
+        return new PipeConnection(toClient, toServer, host + ":" + port);
+    }
+
+    /**
+     * Accepts connections made to one pipe port.
+     */
+    public class Listener implements Closeable {
+        private final int port;
+        private final BlockingQueue<PipeConnection> pending;
+
+        Listener(int port, BlockingQueue<PipeConnection> pending) {
+            this.port = port;
+            this.pending = pending;
+        }
+
+        /**
+         * Waits for the next connection.
+         *
+         * @throws ClosedChannelException Once the listener is closed
+         */
+        public Connection accept() throws IOException {
+            try {
+                PipeConnection connection = pending.take();
+                if (connection == CLOSED) {
+                    pending.add(CLOSED); // For any other thread accepting
+                    throw new ClosedChannelException();
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while accepting");
+            }
+        }
+
+        @Override
+        public void close() {
+            listeners.remove(port, pending);
+            pending.add(CLOSED);
+        }
+    }
+
+    // One direction of the link between the two ends, shared by every connection
+    private class Link {
+        private long freeTime = 0; // When everything written so far has been sent
+
+        // Returns when data of the given length written now has been sent
+        synchronized long send(int length) {
+            long now = System.nanoTime();
+            if (bytesPerNano == 0) {
+                return now;
+            }
+            freeTime = Math.max(now, freeTime) + (long) (length / bytesPerNano);
+            return freeTime;
+        }
+    }
+
+    // One direction of a connection: segments in flight, each with the time it reaches the reader
+    private class Pipe {
+        private final int capacity;
+        private final Link link;
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        private int buffered = 0;
+        private boolean writerClosed = false; // Reader sees end of stream once the pipe is empty
+        private boolean readerClosed = false; // Writer sees a reset
+
+        Pipe(int capacity, Link link) {
+            this.capacity = Math.max(MAX_SEGMENT, capacity);
+            this.link = link;
+        }
+
+        synchronized int write(ByteBuffer source) throws IOException {
+            if (!source.hasRemaining()) {
+                return 0;
+            }
+            while (buffered >= capacity && !readerClosed && !writerClosed) {
+                await(0);
+            }
+            if (writerClosed) {
+                throw new ClosedChannelException();
+            }
+            if (readerClosed) {
+                throw new IOException("Connection reset by peer");
+            }
+
+            int length = Math.min(source.remaining(), Math.min(capacity - buffered, MAX_SEGMENT));
+            byte[] bytes = new byte[length];
+            source.get(bytes);
+            segments.add(new Segment(bytes, link.send(length) + latencyNanos));
+            buffered += length;
+            notifyAll();
+            return length;
+        }
+
+        synchronized int read(ByteBuffer target) throws IOException {
+            while (true) {
+                if (readerClosed) {
+                    throw new ClosedChannelException();
+                }
+                Segment head = segments.peek();
+                if (head == null) {
+                    if (writerClosed) {
+                        return -1;
+                    }
+                    await(0);
+                    continue;
+                }
+                long wait = head.arrivalTime - System.nanoTime();
+                if (wait <= 0) {
+                    break;
+                }
+                await(wait);
+            }
+
+            int total = 0;
+            long now = System.nanoTime();
+            Segment head;
+            while (target.hasRemaining() && (head = segments.peek()) != null && head.arrivalTime <= now) {
+                int length = Math.min(target.remaining(), head.bytes.length - head.offset);
+                target.put(head.bytes, head.offset, length);
+                head.offset += length;
+                total += length;
+                if (head.offset == head.bytes.length) {
+                    segments.poll();
+                }
+            }
+            buffered -= total;
+            notifyAll();
+            return total;
+        }
+
+        synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeReader() {
+            readerClosed = true;
+            segments.clear();
+            buffered = 0;
+            notifyAll();
+        }
+
+        // Waits to be notified, or at most the given time if it is not 0
+        private void await(long nanos) throws InterruptedIOException {
+            try {
+                if (nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted on a pipe");
+            }
+        }
+    }
+
+    private static class Segment {
+        private final byte[] bytes;
+        private final long arrivalTime;
+        private int offset = 0;
+
+        Segment(byte[] bytes, long arrivalTime) {
+            this.bytes = bytes;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+    private static class PipeConnection implements Connection {
+        private final Pipe in;
+        private final Pipe out;
+        private final String remoteName;
+        private final ReadableByteChannel input = new Input();
+        private final GatheringByteChannel output = new Output();
+        private volatile boolean open = true;
+
+        PipeConnection(Pipe in, Pipe out, String remoteName) {
+            this.in = in;
+            this.out = out;
+            this.remoteName = remoteName;
+        }
+
+        @Override
+        public ReadableByteChannel input() {
+            return input;
+        }
+
+        @Override
+        public GatheringByteChannel output() {
+            return output;
+        }
+
+        @Override
+        public void shutdownOutput() {
+            out.closeWriter();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteName;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            out.closeWriter();
+            in.closeReader();
+        }
+
+        private class Input implements ReadableByteChannel {
+            @Override
+            public int read(ByteBuffer target) throws IOException {
+                return in.read(target);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                PipeConnection.this.close();
+            }
+        }
+
+        private class Output implements GatheringByteChannel {
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                return out.write(source);
+            }
+
+            @Override
+            public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+                long total = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    int expected = sources[i].remaining();
+                    int written = out.write(sources[i]);
+                    total += written;
+                    if (written < expected) {
+                        break; // Pipe is full
+                    }
+                }
+                return total;
+            }
+
+            @Override
+            public long write(ByteBuffer[] sources) throws IOException {
+                return write(sources, 0, sources.length);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                PipeConnection.this.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the upload limits against what actually goes out. For several
+ * target rates a file of a few seconds' worth is sent twice: by a client to
+ * a receiver over an in-memory pipe under the per-connection limit, and by a
+ * server to a client over TCP loopback under the global limit. Chat messages
+ * go the same way every few milliseconds meanwhile, and as they are never
+ * limited their latency should stay low. The measured rate and its error
+ * against the target are printed.
+ *
+ * Usage: java com.chatapp.RateLimitBenchmark [seconds per run] [KB/s ...]
+ */
+public final class RateLimitBenchmark {
+    private static final int PIPE_PORT = 5556;
+    private static final long CHAT_INTERVAL = 20; // Milliseconds between chat messages
+
+    private RateLimitBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        List<Long> rates = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            rates.add(Long.parseLong(args[i]) * 1024);
+        }
+        if (rates.isEmpty()) {
+            rates.add(512L * 1024);
+            rates.add(2L * 1024 * 1024);
+            rates.add(8L * 1024 * 1024);
+            rates.add(32L * 1024 * 1024);
+        }
+        File directory = Files.createTempDirectory("chatapp-ratelimit").toFile();
+
+        // Client sending to a receiver over the pipe, limited per connection
+        Endpoint receiver = new Endpoint();
+        PipeTransport pipe = new PipeTransport();
+        AutoCloseable pipeEndpoint = PeerBenchmark.serve(pipe.listen(PIPE_PORT), new File(directory, "pipe"), receiver);
+        Endpoint clientEvents = new Endpoint();
+        PeerClient client = new PeerClient(pipe, "localhost", PIPE_PORT, new File(directory, "client"), clientEvents);
+        client.start();
+        clientEvents.connected.get(30, TimeUnit.SECONDS);
+        System.out.println("client -> pipe, per-connection limit");
+        for (long rate : rates) {
+            RateLimiter.setLimits(0, rate);
+            File file = sourceFile(directory, "client", rate, seconds);
+            receiver.reset();
+            clientEvents.reset();
+            long startTime = System.nanoTime();
+            client.sendFile(file);
+            Thread chatter = chat(receiver, client::sendMessage);
+            receiver.file.get(10, TimeUnit.MINUTES);
+            report(rate, file.length(), System.nanoTime() - startTime, receiver);
+            chatter.interrupt();
+        }
+        client.close();
+        pipeEndpoint.close();
+
+        // Server broadcasting to a client over TCP, limited globally
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Endpoint serverEvents = new Endpoint();
+        PeerServer server = new PeerServer(port, new File(directory, "server"), serverEvents);
+        server.start();
+        Endpoint downloader = new Endpoint();
+        PeerClient peer = new PeerClient(TcpTransport.INSTANCE, "127.0.0.1", port, new File(directory, "peer"),
+                downloader);
+        peer.start();
+        downloader.connected.get(30, TimeUnit.SECONDS);
+        while (server.getPeerCount() == 0) {
+            Thread.sleep(10);
+        }
+        System.out.println("server -> tcp, global limit");
+        for (long rate : rates) {
+            RateLimiter.setLimits(rate, 0);
+            File file = sourceFile(directory, "server", rate, seconds);
+            downloader.reset();
+            long startTime = System.nanoTime();
+            server.broadcastFile(file);
+            Thread chatter = chat(downloader, server::sendMessage);
+            downloader.file.get(10, TimeUnit.MINUTES);
+            report(rate, file.length(), System.nanoTime() - startTime, downloader);
+            chatter.interrupt();
+        }
+        peer.close();
+        server.stop();
+        RateLimiter.setLimits(0, 0);
+    }
+
+    private static File sourceFile(File directory, String name, long rate, int seconds) throws IOException {
+        File file = new File(directory, name + "-" + rate / 1024 + ".bin");
+        PeerBenchmark.writeRandomFile(file, rate * seconds);
+        return file;
+    }
+
+    // Sends a timestamped message every interval until interrupted
+    private static Thread chat(Endpoint receiver, MessageSender sender) {
+        Thread chatter = new Thread(() -> {
+            try {
+                while (!receiver.file.isDone()) {
+                    sender.send(Long.toString(System.nanoTime()));
+                    Thread.sleep(CHAT_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                /* Run finished */
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "Chatter");
+        chatter.setDaemon(true);
+        chatter.start();
+        return chatter;
+    }
+
+    private static void report(long rate, long bytes, long nanos, Endpoint receiver) {
+        double measured = bytes / (nanos / 1e9);
+        List<Long> latencies = new ArrayList<>(receiver.latencies);
+        Collections.sort(latencies);
+        System.out.printf("  target %8.0f KB/s  measured %8.0f KB/s  error %+5.1f%%  chat p50 %6.2f ms  p99 %6.2f ms%n",
+                rate / 1024.0, measured / 1024, (measured / rate - 1) * 100, PeerBenchmark.percentile(latencies, 50),
+                PeerBenchmark.percentile(latencies, 99));
+    }
+
+    private interface MessageSender {
+        void send(String message) throws IOException;
+    }
+
+    // Both ends' callbacks; only arrivals, connects and finished files are of interest
+    private static class Endpoint implements PeerServer.Listener, PeerClient.Listener {
+        private final CompletableFuture<String> connected = new CompletableFuture<>();
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private volatile CompletableFuture<IncomingTransfer> file = new CompletableFuture<>();
+
+        void reset() {
+            latencies.clear();
+            file = new CompletableFuture<>();
+        }
+
+        @Override
+        public void onMessage(String peer, String message) {
+            latencies.add(System.nanoTime() - Long.parseLong(message));
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+            file.complete(transfer);
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+            file.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onConnected(String peer) {
+            connected.complete(peer);
+        }
+
+        @Override
+        public void onStopped(String reason) {
+            connected.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onReconnecting(String reason, long delayMillis) {
+        }
+
+        @Override
+        public void onMessageQueued(String message) {
+        }
+
+        @Override
+        public void onMessagesSent(long upToSequence) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        }
+
+        @Override
+        public void onFileSending(String fileName, long fileSize) {
+        }
+
+        @Override
+        public void onFileAccepted(String fileName, long fileSize, long offset) {
+        }
+
+        @Override
+        public void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes,
+                long resentBytes) {
+        }
+
+        @Override
+        public void onFileSendFailed(String fileName, String reason) {
+        }
+
+        @Override
+        public void onPeerConnected(String peer, int peerCount) {
+        }
+
+        @Override
+        public void onPeerDisconnected(String peer, int peerCount) {
+        }
+
+        @Override
+        public void onFileSent(String peer, String fileName) {
+        }
+
+        @Override
+        public void onFileRejected(String peer, String fileName) {
+        }
+    }
+}
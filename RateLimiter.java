@@ -0,0 +1,122 @@
+package com.chatapp;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token-bucket limits on how fast file data is sent, so a transfer does not
+ * take the whole uplink from everything else on the machine. Chat, typing
+ * and protocol frames are never limited; only bulk file data takes tokens.
+ *
+ * Two buckets apply at once: one per connection and one shared by every
+ * connection in the process, and a chunk goes out only when neither is in
+ * debt. A bucket fills at its rate up to a burst of a tenth of a second's worth,
+ * so a transfer that was idle may briefly run ahead. A chunk larger than the
+ * tokens left is still sent and leaves the bucket in debt, which the next
+ * chunk waits out, so the long-run rate matches the limit whatever the chunk
+ * size.
+ *
+ * Both limits default to unlimited and can be changed at any time, from the
+ * Settings dialog or at startup with -Dchatapp.uploadLimit and
+ * -Dchatapp.connectionUploadLimit, in KB/s. A change applies to transfers
+ * already running.
+ */
+public final class RateLimiter {
+    public static final String GLOBAL_LIMIT_PROPERTY = "chatapp.uploadLimit";
+    public static final String CONNECTION_LIMIT_PROPERTY = "chatapp.connectionUploadLimit";
+
+    private static final long BURST_TIME = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100); // Limits can change while waiting
+
+    private static volatile long globalLimit = Math.max(0, Long.getLong(GLOBAL_LIMIT_PROPERTY, 0)) * 1024;
+    private static volatile long connectionLimit = Math.max(0, Long.getLong(CONNECTION_LIMIT_PROPERTY, 0)) * 1024;
+    private static final RateLimiter GLOBAL = new RateLimiter(() -> globalLimit, null);
+
+    private final LongSupplier rate; // Bytes per second, 0 for unlimited
+    private final RateLimiter parent;
+    private double tokens = 0;
+    private long lastRefill = 0; // 0 until the first refill, which fills the bucket
+
+    private RateLimiter(LongSupplier rate, RateLimiter parent) {
+        this.rate = rate;
+        this.parent = parent;
+    }
+
+    /**
+     * Creates the bucket of one connection, which also draws on the global one.
+     */
+    public static RateLimiter forConnection() {
+        return new RateLimiter(() -> connectionLimit, GLOBAL);
+    }
+
+    /**
+     * Changes both limits, in bytes per second; 0 means unlimited.
+     */
+    public static void setLimits(long globalBytesPerSecond, long connectionBytesPerSecond) {
+        globalLimit = Math.max(0, globalBytesPerSecond);
+        connectionLimit = Math.max(0, connectionBytesPerSecond);
+    }
+
+    public static long getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public static long getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    /**
+     * Takes tokens for bytes about to be sent, if both buckets allow it.
+     *
+     * @return 0 if the bytes may be sent now, or how many nanoseconds to
+     *         wait before asking again, in which case nothing was taken
+     */
+    public long tryAcquire(int bytes) {
+        long wait = Math.max(waitNanos(), parent != null ? parent.waitNanos() : 0);
+        if (wait > 0) {
+            return Math.min(wait, MAX_WAIT);
+        }
+        take(bytes);
+        if (parent != null) {
+            parent.take(bytes);
+        }
+        return 0;
+    }
+
+    /**
+     * Blocks until the bytes may be sent. For threads that write only bulk
+     * data, such as the data connections of a striped transfer.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long wait;
+        while ((wait = tryAcquire(bytes)) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+    }
+
+    private synchronized long waitNanos() {
+        long bytesPerSecond = rate.getAsLong();
+        if (bytesPerSecond <= 0) {
+            lastRefill = 0; // Starts full once a limit is set
+            return 0;
+        }
+        long now = System.nanoTime();
+        double burst = Math.max(MIN_BURST, bytesPerSecond * (BURST_TIME / 1e9));
+        tokens = lastRefill == 0 ? burst : Math.min(burst, tokens + (now - lastRefill) * (bytesPerSecond / 1e9));
+        lastRefill = now;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerSecond * 1e9);
+    }
+
+    private synchronized void take(int bytes) {
+        if (lastRefill != 0) {
+            tokens -= bytes;
+        }
+    }
+}
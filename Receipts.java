@@ -0,0 +1,211 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery and read receipts for chat messages.
+ *
+ * A sender numbers its messages: a CHAT frame with FLAG_CHAT_SEQUENCE starts
+ * with a varint sequence number, counting up from 1 for the life of the
+ * client or server. The receiver answers with RECEIPT frames carrying the
+ * highest sequence it has received and the highest it has shown to a user
+ * who was looking. Both are cumulative, so one frame acknowledges any number
+ * of messages, and the receiver sends at most one every ACK_INTERVAL while
+ * messages keep arriving; only reading, when the window comes into focus,
+ * sends one straight away.
+ *
+ * A cumulative receipt only speaks for the connection it arrives on. The
+ * sender remembers the first sequence each connection carried and applies
+ * receipts from that sequence up, so a message that went out on a
+ * connection that dropped before it was acknowledged is never shown as
+ * delivered by a receipt for later messages.
+ */
+public final class Receipts {
+    public static final long ACK_INTERVAL = 250; // Milliseconds between receipts while messages arrive
+
+    private Receipts() {
+    }
+
+    public static ByteBuffer encodeChat(long sequence, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(10 + bytes.length);
+        FrameCodec.putVarLong(payload, sequence);
+        payload.put(bytes);
+        payload.flip();
+        return payload;
+    }
+
+    public static ByteBuffer encodeReceipt(long delivered, long read) {
+        ByteBuffer payload = ByteBuffer.allocate(20);
+        FrameCodec.putVarLong(payload, delivered);
+        FrameCodec.putVarLong(payload, read);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Receive side of one connection: collects what has arrived and been
+     * read, and sends it back in batches.
+     */
+    public static class Acknowledger {
+        private final FrameSink sink;
+        private long delivered = 0;
+        private long read = 0;
+        private long sentDelivered = 0;
+        private long sentRead = 0;
+        private boolean scheduled = false;
+        private boolean closed = false;
+
+        public Acknowledger(FrameSink sink) {
+            this.sink = sink;
+        }
+
+        public synchronized void onDelivered(long sequence) {
+            if (sequence > delivered) {
+                delivered = sequence;
+                schedule();
+            }
+        }
+
+        /**
+         * Marks everything received so far as read.
+         *
+         * @param immediately Send the receipt now rather than with the next batch
+         */
+        public synchronized void markRead(boolean immediately) {
+            if (read < delivered) {
+                read = delivered;
+                if (immediately) {
+                    // Off the caller's thread, so a focus change never waits on a stalled peer
+                    ConnectionExecutors.execute("Receipts", this::flush);
+                } else {
+                    schedule();
+                }
+            }
+        }
+
+        public synchronized void close() {
+            closed = true;
+        }
+
+        private void schedule() {
+            if (!scheduled && !closed) {
+                scheduled = true;
+                // The timer thread only hands the send on
+                ConnectionExecutors.schedule(
+                        () -> ConnectionExecutors.execute("Receipts", this::flushScheduled), ACK_INTERVAL);
+            }
+        }
+
+        private void flushScheduled() {
+            synchronized (this) {
+                scheduled = false;
+            }
+            flush();
+        }
+
+        // Takes the receipt under the lock and sends it outside, so a slow send holds up no one else
+        private void flush() {
+            ByteBuffer payload;
+            synchronized (this) {
+                if (closed || (delivered == sentDelivered && read == sentRead)) {
+                    return;
+                }
+                payload = encodeReceipt(delivered, read);
+                sentDelivered = delivered;
+                sentRead = read;
+            }
+            try {
+                // Receipts are cumulative, so one overtaking another does no harm
+                sink.send(FrameType.RECEIPT, 0, payload);
+            } catch (IOException e) {
+                /* The connection is going away; the sender keeps its single tick */ }
+        }
+    }
+
+    /**
+     * Send side: numbers messages and combines the receipts of every
+     * connected peer into how far messages sent to all of them have been
+     * delivered and read.
+     */
+    public static class Tracker {
+        private final AtomicLong lastSequence = new AtomicLong();
+        // Per peer: first sequence it was sent, then how far it has acknowledged delivery and reading
+        private final Map<Object, long[]> peers = new ConcurrentHashMap<>();
+        private long from = 1;
+        private long delivered = 0;
+        private long read = 0;
+
+        public long next() {
+            return lastSequence.incrementAndGet();
+        }
+
+        /**
+         * @return The sequence the next message will get
+         */
+        public long peekNext() {
+            return lastSequence.get() + 1;
+        }
+
+        /**
+         * Starts tracking a peer whose first message will have the given sequence.
+         */
+        public void addPeer(Object peer, long firstSequence) {
+            peers.put(peer, new long[] { firstSequence, firstSequence - 1, firstSequence - 1 });
+        }
+
+        public void removePeer(Object peer) {
+            peers.remove(peer);
+        }
+
+        /**
+         * Records a peer's receipt.
+         *
+         * @return true if messages sent to every peer have been delivered or
+         *         read further than before; see {@link #getFrom()},
+         *         {@link #getDelivered()} and {@link #getRead()}
+         */
+        public synchronized boolean onReceipt(Object peer, long peerDelivered, long peerRead) {
+            long[] state = peers.get(peer);
+            if (state == null) {
+                return false;
+            }
+            state[1] = Math.max(state[1], Math.min(peerDelivered, lastSequence.get()));
+            state[2] = Math.max(state[2], Math.min(peerRead, state[1]));
+
+            // Receipts hold from the newest peer's first message up to the least any peer has acknowledged
+            long newFrom = 1;
+            long newDelivered = Long.MAX_VALUE;
+            long newRead = Long.MAX_VALUE;
+            for (long[] other : peers.values()) {
+                newFrom = Math.max(newFrom, other[0]);
+                newDelivered = Math.min(newDelivered, other[1]);
+                newRead = Math.min(newRead, other[2]);
+            }
+            if (newFrom == from && newDelivered <= delivered && newRead <= read) {
+                return false;
+            }
+            from = newFrom;
+            delivered = newDelivered;
+            read = newRead;
+            return newDelivered >= newFrom;
+        }
+
+        public synchronized long getFrom() {
+            return from;
+        }
+
+        public synchronized long getDelivered() {
+            return delivered;
+        }
+
+        public synchronized long getRead() {
+            return read;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Chat rooms on a server: which subscribers are in which room.
+ *
+ * A client joins a room with ROOM_JOIN and leaves with ROOM_LEAVE, and posts
+ * to a room it is in with ROOM_MESSAGE. The server sends the message on to
+ * every other subscriber of the room as a ROOM_MESSAGE carrying the room, the
+ * sender and the text. The frame is encoded once into a read-only buffer, and
+ * each subscriber gets a duplicate of it, so posting to a room of N peers
+ * costs one encoding and N queue insertions.
+ *
+ * Messages are posted far more often than rooms are joined or left, so each
+ * room's subscribers are a copy-on-write set: posting iterates a snapshot
+ * without locking, from any event loop, while joins and leaves copy the set.
+ * A room disappears with its last subscriber.
+ *
+ * A subscriber that cannot keep up must not hold the room back. Room
+ * messages are queued for each peer only while the ones it has not been
+ * sent yet stay under -Dchatapp.roomQueueLimit (KB). Beyond it,
+ * -Dchatapp.slowPeerPolicy decides whether the peer misses the message
+ * (drop, the default) or is disconnected (disconnect), after which a client
+ * reconnects and joins its rooms again.
+ *
+ * @param <S> The subscriber type
+ */
+public class Rooms<S> {
+    public static final String QUEUE_LIMIT_PROPERTY = "chatapp.roomQueueLimit";
+    public static final String SLOW_PEER_POLICY_PROPERTY = "chatapp.slowPeerPolicy";
+    public static final long QUEUE_LIMIT = Math.max(1, Long.getLong(QUEUE_LIMIT_PROPERTY, 1024)) * 1024;
+    public static final int MAX_NAME_LENGTH = 64; // UTF-8 bytes
+
+    /**
+     * What happens to a peer whose queue is over the limit when a room
+     * message is posted.
+     */
+    public enum SlowPeerPolicy {
+        DROP, DISCONNECT;
+
+        static SlowPeerPolicy fromProperty() {
+            String value = System.getProperty(SLOW_PEER_POLICY_PROPERTY, "drop");
+            return "disconnect".equalsIgnoreCase(value) ? DISCONNECT : DROP;
+        }
+    }
+
+    public static final SlowPeerPolicy SLOW_PEER_POLICY = SlowPeerPolicy.fromProperty();
+
+    private final Map<String, Set<S>> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if the subscriber was not in the room yet
+     */
+    public boolean join(String room, S subscriber) {
+        boolean[] added = new boolean[1];
+        subscribers.compute(room, (name, members) -> {
+            Set<S> set = members != null ? members : new CopyOnWriteArraySet<>();
+            added[0] = set.add(subscriber);
+            return set;
+        });
+        return added[0];
+    }
+
+    /**
+     * @return true if the subscriber was in the room
+     */
+    public boolean leave(String room, S subscriber) {
+        boolean[] removed = new boolean[1];
+        subscribers.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(subscriber);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Takes a subscriber out of every room, as when its connection closes.
+     */
+    public void leaveAll(S subscriber) {
+        for (String room : subscribers.keySet()) {
+            leave(room, subscriber);
+        }
+    }
+
+    /**
+     * @return The room's subscribers as they are now; safe to iterate while
+     *         others join and leave
+     */
+    public Set<S> subscribers(String room) {
+        Set<S> members = subscribers.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    public boolean contains(String room, S subscriber) {
+        return subscribers(room).contains(subscriber);
+    }
+
+    public int getRoomCount() {
+        return subscribers.size();
+    }
+
+    public static void checkName(String room) throws IOException {
+        int length = room.getBytes(StandardCharsets.UTF_8).length;
+        if (length == 0 || length > MAX_NAME_LENGTH) {
+            throw new IOException("Room names are 1 to " + MAX_NAME_LENGTH + " bytes");
+        }
+    }
+
+    public static ByteBuffer encodeName(String room) {
+        ByteBuffer payload = ByteBuffer.allocate(FrameCodec.stringSize(room));
+        FrameCodec.putString(payload, room);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Encodes a ROOM_MESSAGE payload. A client leaves the sender empty; the
+     * server fills in who it came from.
+     */
+    public static ByteBuffer encodeMessage(String room, String sender, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(FrameCodec.stringSize(room) + FrameCodec.stringSize(sender)
+                + bytes.length);
+        FrameCodec.putString(payload, room);
+        FrameCodec.putString(payload, sender);
+        payload.put(bytes);
+        payload.flip();
+        return payload;
+    }
+}
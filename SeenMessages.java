@@ -0,0 +1,128 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ids of the chat messages shown lately, so a message a sender's
+ * {@link Outbox} sends again is shown only once: after a reconnect, because
+ * its receipt was lost with the connection, and also after this side was
+ * restarted in between.
+ *
+ * Like the {@link Outbox} and the {@link ContentIndex}, the ids are an
+ * append-only log in the downloads directory, one line per id, read once
+ * when first used. Only the last MAX_IDS are remembered; the log is
+ * rewritten with just those once it holds twice as many.
+ */
+public class SeenMessages {
+    public static final int MAX_IDS = 65536;
+    private static final String FILE_NAME = ".chatapp-seen";
+
+    // One set per downloads directory, shared by every connection, as a sender resends on a new one
+    private static final Map<File, SeenMessages> SETS = new ConcurrentHashMap<>();
+
+    private final File logFile;
+    private final Set<Long> ids = new LinkedHashSet<>(); // Oldest first
+    private FileChannel log; // Open for appending once written to
+    private int logLines = 0;
+
+    private SeenMessages(File directory) {
+        this.logFile = new File(directory, FILE_NAME);
+        load();
+    }
+
+    public static SeenMessages forDirectory(File directory) {
+        return SETS.computeIfAbsent(directory.getAbsoluteFile(), SeenMessages::new);
+    }
+
+    /**
+     * Records a message id, writing it to the log before returning.
+     *
+     * @return False if the id was seen before
+     */
+    public synchronized boolean add(long id) {
+        if (!remember(id)) {
+            return false;
+        }
+        try {
+            append(id);
+        } catch (IOException e) {
+            System.out.println("Could not update seen messages: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private boolean remember(long id) {
+        if (!ids.add(id)) {
+            return false;
+        }
+        if (ids.size() > MAX_IDS) {
+            ids.remove(ids.iterator().next());
+        }
+        return true;
+    }
+
+    private void load() {
+        if (!logFile.exists()) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8)) {
+                try {
+                    remember(Long.parseUnsignedLong(line, 16));
+                    logLines++;
+                } catch (NumberFormatException e) {
+                    /* A line cut short when the app stopped; the ones before it still count */ }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read seen messages: " + e.getMessage());
+        }
+    }
+
+    private void append(long id) throws IOException {
+        if (logLines >= 2 * MAX_IDS) {
+            compact();
+            return;
+        }
+        if (log == null) {
+            File directory = logFile.getParentFile();
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        ByteBuffer line = ByteBuffer.wrap((Long.toHexString(id) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (line.hasRemaining()) {
+            log.write(line);
+        }
+        logLines++;
+    }
+
+    // Rewrites the log with only the ids still remembered, the newest included
+    private void compact() throws IOException {
+        if (log != null) {
+            log.close(); // Windows cannot replace a file that is open
+            log = null;
+        }
+        List<String> lines = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            lines.add(Long.toHexString(id));
+        }
+        File temp = new File(logFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        IncomingTransfer.moveIntoPlace(temp, logFile);
+        logLines = lines.size();
+    }
+}
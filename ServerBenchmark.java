@@ -0,0 +1,222 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback benchmark of a {@link PeerServer} holding many connections. A
+ * few hundred peers connect and stay idle, answering the server's
+ * heartbeats from one selector thread; then a handful of others send
+ * timestamped chat messages for a while, at a steady rate or, with a rate of
+ * 0, as fast as they can. The rate the server took messages at, their
+ * latency and how many idle peers are still connected at the end are
+ * printed. Runs longer than the heartbeat timeout show whether the idle
+ * peers are kept.
+ *
+ * Usage: java com.chatapp.ServerBenchmark [idle peers] [chatting peers] [msg/s per peer, 0 for no limit] [seconds]
+ */
+public final class ServerBenchmark {
+    private static final int DECODER_BUFFER_SIZE = 256; // Idle peers only ever read heartbeats
+
+    private ServerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int idleCount = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        int chattingCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int messagesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 15;
+
+        int port = PeerBenchmark.freePort();
+        Receiver receiver = new Receiver();
+        PeerServer server = new PeerServer(port, Files.createTempDirectory("chatapp-server").toFile(), receiver);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        // Idle peers: connect them all, then answer every PING from one thread
+        Selector selector = Selector.open();
+        AtomicLong pongs = new AtomicLong();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < idleCount; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            FrameWriter writer = new FrameWriter(channel);
+            writer.writePreamble();
+            channel.configureBlocking(false);
+            FrameDecoder decoder = new FrameDecoder(DECODER_BUFFER_SIZE);
+            decoder.register(FrameType.PING, (flags, payload) -> {
+                writer.writeFrame(FrameType.PONG, 0, payload);
+                pongs.incrementAndGet();
+            });
+            channel.register(selector, SelectionKey.OP_READ, decoder);
+        }
+        AtomicInteger dropped = new AtomicInteger();
+        Thread responder = new Thread(() -> answerHeartbeats(selector, dropped), "Heartbeats");
+        responder.setDaemon(true);
+        responder.start();
+        awaitPeers(server, idleCount);
+        System.out.printf("%d idle peers connected in %.2f s%n", idleCount, (System.nanoTime() - startTime) / 1e9);
+
+        // Chatting peers: each sends at its own steady rate until the end time
+        long messageInterval = messagesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / messagesPerSecond : 0;
+        AtomicLong sent = new AtomicLong();
+        List<Thread> chatters = new ArrayList<>();
+        startTime = System.nanoTime();
+        long endTime = startTime + TimeUnit.SECONDS.toNanos(seconds);
+        for (int i = 0; i < chattingCount; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            Thread chatter = new Thread(() -> chat(channel, messageInterval, endTime, sent), "Chatter-" + i);
+            chatter.start();
+            chatters.add(chatter);
+        }
+        for (Thread chatter : chatters) {
+            chatter.join();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (receiver.received.get() < sent.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        double elapsed = (receiver.lastReceived - startTime) / 1e9;
+
+        List<Long> latencies = new ArrayList<>(receiver.latencies);
+        Collections.sort(latencies);
+        System.out.printf("chat  %8.0f msg/s  %d of %d messages  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n",
+                receiver.received.get() / elapsed, receiver.received.get(), sent.get(),
+                PeerBenchmark.percentile(latencies, 50), PeerBenchmark.percentile(latencies, 99),
+                PeerBenchmark.percentile(latencies, 100));
+        System.out.printf("%d of %d idle peers still connected after %.0f s, %d heartbeats answered,"
+                + " %d peers on the server%n", idleCount - dropped.get(), idleCount,
+                (System.nanoTime() - startTime) / 1e9, pongs.get(), server.getPeerCount());
+
+        responder.interrupt();
+        responder.join();
+        server.stop();
+    }
+
+    private static void awaitPeers(PeerServer server, int count) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (server.getPeerCount() < count) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Only " + server.getPeerCount() + " of " + count + " peers connected");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // Runs until interrupted, then closes every idle connection
+    private static void answerHeartbeats(Selector selectorToClose, AtomicInteger dropped) {
+        try (Selector selector = selectorToClose) {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (((FrameDecoder) key.attachment()).readFrom((SocketChannel) key.channel()) < 0) {
+                            throw new IOException("Closed by the server");
+                        }
+                    } catch (IOException e) {
+                        dropped.incrementAndGet();
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        } catch (IOException e) {
+            System.out.println("Heartbeats stopped: " + e.getMessage());
+        }
+    }
+
+    // Sends timestamped messages at a fixed interval; replies are left unread, as the server sends few
+    private static void chat(SocketChannel channel, long intervalNanos, long endTime, AtomicLong sent) {
+        try (SocketChannel closing = channel) {
+            FrameWriter writer = new FrameWriter(closing);
+            writer.writePreamble();
+            for (long next = System.nanoTime(); System.nanoTime() < endTime; next += intervalNanos) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                writer.writeText(FrameType.CHAT, 0, Long.toString(System.nanoTime()));
+                sent.incrementAndGet();
+            }
+            Thread.sleep(1000); // Let the last messages be read before closing
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Chatter stopped: " + e.getMessage());
+        }
+    }
+
+    private static class Receiver implements PeerServer.Listener {
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong received = new AtomicLong();
+        private volatile long lastReceived = System.nanoTime();
+
+        @Override
+        public void onMessage(String peer, String message) {
+            lastReceived = System.nanoTime();
+            latencies.add(lastReceived - Long.parseLong(message));
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onPeerConnected(String peer, int peerCount) {
+        }
+
+        @Override
+        public void onPeerDisconnected(String peer, int peerCount) {
+        }
+
+        @Override
+        public void onFileSent(String peer, String fileName) {
+        }
+
+        @Override
+        public void onFileRejected(String peer, String fileName) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares sending one file over a single connection with sending it as
+ * stripes over several, from the client to a receiver over an in-memory
+ * pipe with some latency. Each connection can only have a socket buffer's
+ * worth of data in flight, so on a distant link one connection cannot fill
+ * it and stripes should come close to the link's bandwidth. Each run uses a
+ * fresh receiver, so the file is never skipped as already there.
+ *
+ * Usage: java com.chatapp.StripeBenchmark [file MB] [latency ms] [link MB/s] [stripes]
+ */
+public final class StripeBenchmark {
+    private static final int PIPE_PORT = 5560;
+
+    private StripeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        long bytesPerSecond = (long) ((args.length > 2 ? Double.parseDouble(args[2]) : 0) * 1024 * 1024);
+        int stripes = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        File directory = Files.createTempDirectory("chatapp-stripes").toFile();
+        File source = new File(directory, "source.bin");
+        PeerBenchmark.writeRandomFile(source, fileMegabytes * 1024L * 1024);
+        System.out.printf("Pipe, %d ms latency, %s, %d MB file%n", latencyMillis,
+                bytesPerSecond > 0 ? (bytesPerSecond / (1024 * 1024)) + " MB/s" : "unlimited bandwidth",
+                fileMegabytes);
+
+        String previous = System.getProperty(FileTransfers.STRIPES_PROPERTY);
+        try {
+            for (int count : new int[] { 1, stripes }) {
+                System.setProperty(FileTransfers.STRIPES_PROPERTY, Integer.toString(count));
+                long nanos = send(source, new File(directory, "run" + count), latencyMillis, bytesPerSecond);
+                double seconds = nanos / 1e9;
+                System.out.printf("%d stripe%s %8.1f MB/s  (%.2f s)%n", count, count == 1 ? " " : "s",
+                        source.length() / seconds / (1024 * 1024), seconds);
+            }
+        } finally {
+            if (previous == null) {
+                System.clearProperty(FileTransfers.STRIPES_PROPERTY);
+            } else {
+                System.setProperty(FileTransfers.STRIPES_PROPERTY, previous);
+            }
+        }
+    }
+
+    // Sends the file to a new receiver over a new pipe, returning how long it took
+    private static long send(File source, File directory, long latencyMillis, long bytesPerSecond) throws Exception {
+        PipeTransport pipe = new PipeTransport(latencyMillis, bytesPerSecond);
+        Endpoint receiver = new Endpoint();
+        AutoCloseable pipeEndpoint = PeerBenchmark.serve(pipe.listen(PIPE_PORT), new File(directory, "downloads"),
+                receiver);
+        Endpoint sender = new Endpoint();
+        PeerClient client = new PeerClient(pipe, "localhost", PIPE_PORT, new File(directory, "client"), sender);
+        try {
+            client.start();
+            sender.connected.get(30, TimeUnit.SECONDS);
+            long startTime = System.nanoTime();
+            client.sendFile(source);
+            sender.sent.get(10, TimeUnit.MINUTES);
+            return System.nanoTime() - startTime;
+        } finally {
+            client.close();
+            pipeEndpoint.close();
+        }
+    }
+
+    // Both ends' callbacks; the sender's finished file is what is timed
+    private static class Endpoint implements PeerClient.Listener {
+        private final CompletableFuture<String> connected = new CompletableFuture<>();
+        private final CompletableFuture<String> sent = new CompletableFuture<>();
+
+        @Override
+        public void onConnected(String peer) {
+            connected.complete(peer);
+        }
+
+        @Override
+        public void onStopped(String reason) {
+            connected.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onFileSendFinished(String fileName, long sentBytes, long millis, long savedBytes,
+                long resentBytes) {
+            sent.complete(fileName);
+        }
+
+        @Override
+        public void onFileSendFailed(String fileName, String reason) {
+            sent.completeExceptionally(new IOException(reason));
+        }
+
+        @Override
+        public void onFileFailed(String peer, String reason) {
+            System.out.println("Receive failed: " + reason);
+        }
+
+        @Override
+        public void onMessage(String peer, String message) {
+        }
+
+        @Override
+        public void onRoomMessage(String room, String sender, String message) {
+        }
+
+        @Override
+        public void onTyping(String peer, boolean typing) {
+        }
+
+        @Override
+        public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+        }
+
+        @Override
+        public void onFileReceived(String peer, IncomingTransfer transfer) {
+        }
+
+        @Override
+        public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                long receivedBytes) {
+        }
+
+        @Override
+        public void onFilesReceived(String peer, IncomingBundle bundle) {
+        }
+
+        @Override
+        public void onReconnecting(String reason, long delayMillis) {
+        }
+
+        @Override
+        public void onMessageQueued(String message) {
+        }
+
+        @Override
+        public void onMessagesSent(long upToSequence) {
+        }
+
+        @Override
+        public void onReceipts(long fromSequence, long deliveredUpTo, long readUpTo) {
+        }
+
+        @Override
+        public void onFileSending(String fileName, long fileSize) {
+        }
+
+        @Override
+        public void onFileAccepted(String fileName, long fileSize, long offset) {
+        }
+    }
+}
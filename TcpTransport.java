@@ -0,0 +1,181 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections over TCP. Sockets are channel backed so file data can be sent
+ * zero-copy, with Nagle off for chat latency and keepalive on.
+ *
+ * A host with several addresses is connected to by racing them, as in RFC
+ * 8305 ("happy eyeballs"): the addresses from {@link HostResolver}, whose
+ * families alternate, are tried one every CONNECTION_ATTEMPT_DELAY, or at
+ * once when the previous attempt fails, and the first to connect wins. A
+ * stale or unreachable address, often IPv6, then costs a quarter of a second
+ * instead of the whole connect timeout.
+ */
+public class TcpTransport implements Transport {
+    public static final TcpTransport INSTANCE = new TcpTransport();
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final long CONNECTION_ATTEMPT_DELAY = 250; // Milliseconds, as RFC 8305 recommends
+    private static final int LINGER_SECONDS = 30; // Let queued data go out on close
+
+    @Override
+    public Connection connect(String host, int port, int bufferSize) throws IOException {
+        List<InetAddress> addresses = HostResolver.resolve(host);
+        SocketChannel channel;
+        try {
+            channel = race(addresses, port, bufferSize);
+        } catch (IOException e) {
+            HostResolver.forget(host); // Look the host up again next time, in case it moved
+            throw e;
+        }
+        try {
+            channel.configureBlocking(true);
+            channel.socket().setSoLinger(true, LINGER_SECONDS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        HostResolver.connected(host, channel.socket().getInetAddress());
+        return new TcpConnection(channel, host + ":" + port);
+    }
+
+    // Starts an attempt per address, staggered, and returns the first that connects
+    private static SocketChannel race(List<InetAddress> addresses, int port, int bufferSize) throws IOException {
+        List<SocketChannel> attempts = new ArrayList<>();
+        SocketChannel winner = null;
+        IOException failure = null;
+        try (Selector selector = Selector.open()) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+            long nextAttempt = System.nanoTime();
+            int next = 0;
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (next < addresses.size() && (now >= nextAttempt || attempts.isEmpty())) {
+                    InetSocketAddress address = new InetSocketAddress(addresses.get(next++), port);
+                    nextAttempt = now + TimeUnit.MILLISECONDS.toNanos(CONNECTION_ATTEMPT_DELAY);
+                    SocketChannel channel = open(bufferSize);
+                    try {
+                        if (channel.connect(address)) {
+                            winner = channel;
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT);
+                            attempts.add(channel);
+                        }
+                    } catch (IOException e) {
+                        failure = e; // Unreachable at once, such as no route for the family
+                        channel.close();
+                        nextAttempt = now;
+                    }
+                    continue;
+                }
+                if (attempts.isEmpty()) {
+                    throw failure != null ? failure : new IOException("No addresses to connect to");
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Connect timed out");
+                }
+                long until = next < addresses.size() ? Math.min(nextAttempt, deadline) : deadline;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(until - now)));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect() && winner == null) {
+                            winner = channel;
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                        key.cancel();
+                        channel.close();
+                        attempts.remove(channel);
+                        nextAttempt = now; // The next address need not wait out the delay
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.close();
+                }
+            }
+        }
+        return winner; // Closing the selector deregistered it, so it can be made blocking again
+    }
+
+    private static SocketChannel open(int bufferSize) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(0); // No timeout for large transfers
+            socket.setReceiveBufferSize(bufferSize); // Before connecting, so the window can scale
+            socket.setSendBufferSize(bufferSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private static class TcpConnection implements Connection {
+        private final SocketChannel channel;
+        private final String remoteName;
+
+        TcpConnection(SocketChannel channel, String remoteName) {
+            this.channel = channel;
+            this.remoteName = remoteName;
+        }
+
+        @Override
+        public ReadableByteChannel input() {
+            return channel;
+        }
+
+        @Override
+        public GatheringByteChannel output() {
+            return channel;
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            channel.shutdownOutput();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteName;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (channel.isConnected()) {
+                    channel.shutdownOutput();
+                    channel.shutdownInput();
+                }
+            } catch (IOException e) {
+                /* Ignore, closing anyway */ }
+            channel.close();
+        }
+    }
+}
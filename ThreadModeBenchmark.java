@@ -0,0 +1,136 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark of the two chatapp.threads modes. For each mode, an
+ * executor from {@link ConnectionExecutors#create} runs one blocking
+ * receiver loop per connection, as clients do, each echoing back the
+ * timestamps it reads. Every round writes a timestamp to all connections
+ * and reads the echoes. For each mode the time to start the loops, the
+ * platform threads and heap they take and the echo rate and latency are
+ * printed. Virtual threads need Java 21; on older runtimes that row runs on
+ * platform threads and says so.
+ *
+ * Usage: java com.chatapp.ThreadModeBenchmark [connections] [rounds]
+ */
+public final class ThreadModeBenchmark {
+    private ThreadModeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.printf("TCP loopback, %d connections, %d rounds%n", connectionCount, rounds);
+        run(ConnectionExecutors.MODE_PLATFORM, connectionCount, rounds); // Warm up the JIT
+        for (String mode : new String[] { ConnectionExecutors.MODE_PLATFORM, ConnectionExecutors.MODE_VIRTUAL }) {
+            run(mode, connectionCount, rounds);
+        }
+    }
+
+    private static void run(String mode, int connectionCount, int rounds) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        ExecutorService executor = ConnectionExecutors.create(mode);
+        List<SocketChannel> connections = new ArrayList<>();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connectionCount);
+            CountDownLatch started = new CountDownLatch(connectionCount);
+            boolean[] virtual = new boolean[1];
+            long startTime = System.nanoTime();
+            for (int i = 0; i < connectionCount; i++) {
+                SocketChannel connection = SocketChannel.open(server.getLocalAddress());
+                connections.add(connection);
+                SocketChannel accepted = server.accept();
+                executor.execute(() -> {
+                    virtual[0] = Thread.currentThread().getName().startsWith("chatapp-virtual-");
+                    started.countDown();
+                    echo(accepted);
+                });
+            }
+            started.await();
+            double startMillis = (System.nanoTime() - startTime) / 1e6;
+            int threadCount = threads.getThreadCount() - threadsBefore;
+            long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+            List<Long> latencies = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            long echoStart = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (SocketChannel connection : connections) {
+                    buffer.clear();
+                    buffer.putLong(System.nanoTime()).flip();
+                    write(connection, buffer);
+                }
+                for (SocketChannel connection : connections) {
+                    buffer.clear();
+                    read(connection, buffer);
+                    latencies.add(System.nanoTime() - buffer.getLong(0));
+                }
+            }
+            double echoSeconds = (System.nanoTime() - echoStart) / 1e9;
+
+            Collections.sort(latencies);
+            String label = mode.equals(ConnectionExecutors.MODE_VIRTUAL) && !virtual[0] ? mode + "*" : mode;
+            System.out.printf("%-10s start %7.1f ms  %5d threads  %6.1f MB heap  %8.0f echoes/s"
+                    + "  p50 %6.2f ms  p99 %6.2f ms%n", label, startMillis, threadCount, heap / (1024.0 * 1024.0),
+                    latencies.size() / echoSeconds, PeerBenchmark.percentile(latencies, 50),
+                    PeerBenchmark.percentile(latencies, 99));
+            if (!label.equals(mode)) {
+                System.out.println("* Virtual threads are not available here, so this ran on platform threads");
+            }
+        } finally {
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    // The receiver loop: blocks in read and writes back each timestamp until the connection closes
+    private static void echo(SocketChannel connection) {
+        try (SocketChannel channel = connection) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            while (true) {
+                buffer.clear();
+                read(channel, buffer);
+                buffer.flip();
+                write(channel, buffer);
+            }
+        } catch (IOException e) {
+            /* Closed at the end of the run */ }
+    }
+
+    private static void read(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark of a file transfer to a receiver whose disk is slower
+ * than the network. The receiver's read loop is throttled to a fixed rate,
+ * standing in for the slow disk, while the sender streams a file and sends a
+ * timestamped chat message every few milliseconds. The transfer runs once
+ * with flow control and once without, and for each the throughput and the
+ * time chat messages took to arrive are printed.
+ *
+ * Usage: java com.chatapp.TransferBenchmark [file MB] [receiver MB/s]
+ */
+public final class TransferBenchmark {
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024 * 1024; // As the client connection
+    private static final long CHAT_INTERVAL = 20; // Milliseconds between chat messages
+
+    private TransferBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        double receiveRate = (args.length > 1 ? Double.parseDouble(args[1]) : 32) * 1024 * 1024;
+
+        File directory = Files.createTempDirectory("chatapp-benchmark").toFile();
+        File source = new File(directory, "source.bin");
+        writeRandomFile(source, fileMegabytes * 1024L * 1024);
+        System.out.printf("%d MB file, receiver writing at %.0f MB/s%n", fileMegabytes, receiveRate / (1024 * 1024));
+
+        run("flow control", source, new File(directory, "flow"), receiveRate, true);
+        run("no flow control", source, new File(directory, "plain"), receiveRate, false);
+    }
+
+    private static void run(String label, File source, File downloadsDir, double receiveRate, boolean flowControl)
+            throws Exception {
+        List<Long> chatLatencies = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<IncomingTransfer> received = new CompletableFuture<>();
+        ChatListener listener = new ChatListener() {
+            @Override
+            public void onMessage(String peer, String message) {
+                chatLatencies.add(System.nanoTime() - Long.parseLong(message));
+            }
+
+            @Override
+            public void onRoomMessage(String room, String sender, String message) {
+            }
+
+            @Override
+            public void onFilesReceiving(String peer, String name, int fileCount, long totalSize,
+                    long receivedBytes) {
+            }
+
+            @Override
+            public void onFilesReceived(String peer, IncomingBundle bundle) {
+            }
+
+            @Override
+            public void onTyping(String peer, boolean typing) {
+            }
+
+            @Override
+            public void onFileReceiving(String peer, String fileName, long fileSize, long resumedFrom) {
+            }
+
+            @Override
+            public void onFileReceived(String peer, IncomingTransfer transfer) {
+                received.complete(transfer);
+            }
+
+            @Override
+            public void onFileFailed(String peer, String reason) {
+                received.completeExceptionally(new IOException(reason));
+            }
+        };
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread receiver = new Thread(() -> receive(server, downloadsDir, listener, receiveRate), "Receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            try (SocketChannel channel = SocketChannel.open();
+                    FileChannel fileChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+                channel.connect(server.getLocalAddress());
+                FrameWriter writer = new FrameWriter(channel);
+                writer.writePreamble();
+                OutboundWriter outbound = new OutboundWriter(writer);
+                outbound.start("Writer");
+
+                // Replies from the receiver: the accept, then credit as it writes
+                CompletableFuture<long[]> accept = new CompletableFuture<>();
+                Map<Long, FlowControl.Sender> credits = new ConcurrentHashMap<>();
+                FrameDecoder decoder = new FrameDecoder();
+                decoder.register(FrameType.FILE_ACCEPT, (flags, payload) -> {
+                    FrameCodec.getVarLong(payload);
+                    long offset = FrameCodec.getVarLong(payload);
+                    long limit = (flags & FrameType.FLAG_FILE_CREDIT) != 0 ? FrameCodec.getVarLong(payload) : -1;
+                    accept.complete(new long[] { offset, limit });
+                });
+                decoder.register(FrameType.FILE_CREDIT, (flags, payload) -> {
+                    FlowControl.Sender credit = credits.get(FrameCodec.getVarLong(payload));
+                    long written = FrameCodec.getVarLong(payload);
+                    long limit = FrameCodec.getVarLong(payload);
+                    if (credit != null) {
+                        credit.grant(written, limit);
+                    }
+                });
+                ConnectionExecutors.execute("Replies", () -> {
+                    try {
+                        while (decoder.readFrom(channel) >= 0) {
+                            // Dispatched as they complete
+                        }
+                    } catch (IOException e) {
+                        /* Closed at the end of the run */ }
+                });
+
+                long fileSize = fileChannel.size();
+                int startFlags = flowControl ? FrameType.FLAG_FILE_FLOW_CONTROL : 0;
+                outbound.send(OutboundWriter.LANE_CONTROL, FrameType.FILE_START, startFlags,
+                        FileTransfers.encodeFileStart(1, fileSize, label.replace(' ', '-') + ".bin",
+                                "benchmark-" + System.nanoTime(), ""));
+                long[] accepted = accept.get(30, TimeUnit.SECONDS);
+                FlowControl.Sender credit = accepted[1] >= 0 ? new FlowControl.Sender(accepted[0], accepted[1]) : null;
+                if (credit != null) {
+                    credits.put(1L, credit);
+                }
+
+                Thread chatter = new Thread(() -> {
+                    try {
+                        while (!received.isDone()) {
+                            outbound.sendText(OutboundWriter.LANE_CHAT, FrameType.CHAT, 0,
+                                    Long.toString(System.nanoTime()));
+                            Thread.sleep(CHAT_INTERVAL);
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        /* Stop chatting */ }
+                }, "Chatter");
+                chatter.start();
+
+                long startTime = System.nanoTime();
+                OutboundWriter.Stream stream = outbound.openStream(1, OutboundWriter.DEFAULT_WEIGHT);
+                FileTransfers.sendChunks(stream, fileChannel, accepted[0], fileSize, null, credit, false);
+                stream.close();
+                IncomingTransfer transfer = received.get(10, TimeUnit.MINUTES);
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                chatter.join();
+                outbound.close();
+
+                List<Long> latencies = new ArrayList<>(chatLatencies);
+                Collections.sort(latencies);
+                System.out.printf("%-16s %6.1f MB/s  chat p50 %7.1f ms  p99 %7.1f ms  max %7.1f ms  (%d messages)%n",
+                        label, transfer.getExpectedSize() / seconds / (1024 * 1024), percentile(latencies, 50),
+                        percentile(latencies, 99), percentile(latencies, 100), latencies.size());
+            }
+        }
+    }
+
+    // Receives on one connection, reading no faster than the given rate
+    private static void receive(ServerSocketChannel server, File downloadsDir, ChatListener listener,
+            double bytesPerSecond) {
+        try (SocketChannel channel = server.accept()) {
+            FrameWriter writer = new FrameWriter(channel);
+            writer.writePreamble();
+            PeerSession session = new PeerSession("sender", downloadsDir, listener, writer::writeFrame);
+            long startTime = System.nanoTime();
+            long total = 0;
+            int read;
+            while ((read = session.readFrom(channel)) >= 0) {
+                total += read;
+                long due = startTime + (long) (total / bytesPerSecond * 1e9);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            session.close();
+        } catch (IOException | InterruptedException e) {
+            /* Sender finished */ }
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(42);
+        ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += block.capacity()) {
+                random.nextBytes(block.array());
+                block.clear();
+                block.limit((int) Math.min(block.capacity(), size - written));
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+            }
+        }
+    }
+
+    private static double percentile(List<Long> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = Math.min(sorted.size() - 1, sorted.size() * percent / 100);
+        return sorted.get(index) / 1e6;
+    }
+}
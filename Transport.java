@@ -0,0 +1,43 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * How a client reaches a peer. The client connection and striped file
+ * transfers open their connections through a transport rather than straight
+ * from sockets, so the same code runs over TCP in the app and over an
+ * in-memory pipe when both ends live in one process, as in benchmarks.
+ */
+public interface Transport {
+    /**
+     * Opens a blocking connection to a peer.
+     *
+     * @param bufferSize Send and receive buffer size to ask for
+     */
+    Connection connect(String host, int port, int bufferSize) throws IOException;
+
+    /**
+     * One open, blocking connection. Reading and writing have their own
+     * channels, so a TCP connection can hand its socket channel to
+     * FileChannel.transferTo and keep zero-copy sends.
+     */
+    interface Connection extends Channel {
+        ReadableByteChannel input();
+
+        GatheringByteChannel output();
+
+        /**
+         * Stops sending; the peer reads end of stream once everything
+         * written so far has arrived.
+         */
+        void shutdownOutput() throws IOException;
+
+        /**
+         * @return A readable name of the remote end, such as its address
+         */
+        String getRemoteName();
+    }
+}
@@ -0,0 +1,106 @@
+package com.chatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark of the two ways file data leaves the sender: with
+ * FileChannel.transferTo, straight from the page cache to the socket, and
+ * through a heap buffer, as with chatapp.disableZeroCopy. A file is written
+ * as FILE_DATA frames to a socket whose other end reads and discards
+ * everything, alternating the two paths for a few rounds. For each path the
+ * throughput and the sending thread's CPU time per GB are printed.
+ *
+ * Usage: java com.chatapp.ZeroCopyBenchmark [file MB] [rounds]
+ */
+public final class ZeroCopyBenchmark {
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024 * 1024; // As the client connection
+
+    private ZeroCopyBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File directory = Files.createTempDirectory("chatapp-zerocopy").toFile();
+        File source = new File(directory, "source.bin");
+        PeerBenchmark.writeRandomFile(source, fileMegabytes * 1024L * 1024);
+        System.out.printf("TCP loopback, %d MB file, %d rounds%n", fileMegabytes, rounds);
+
+        try (FileChannel fileChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            send(fileChannel, true); // Warm up the page cache and the JIT
+            for (int round = 0; round < rounds; round++) {
+                report("zero-copy", fileChannel.size(), send(fileChannel, true));
+                report("heap copy", fileChannel.size(), send(fileChannel, false));
+            }
+        }
+    }
+
+    // Sends the whole file once; returns the wall and sending thread CPU nanoseconds
+    private static long[] send(FileChannel fileChannel, boolean zeroCopy) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            CompletableFuture<Long> drained = new CompletableFuture<>();
+            ConnectionExecutors.execute("Drain", () -> drain(server, drained));
+
+            try (SocketChannel channel = SocketChannel.open()) {
+                channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+                channel.connect(server.getLocalAddress());
+                FrameWriter writer = new FrameWriter(channel, zeroCopy);
+                ByteBuffer prefix = ByteBuffer.allocate(10);
+                FrameCodec.putVarLong(prefix, 1);
+                prefix.flip();
+
+                long fileSize = fileChannel.size();
+                long startTime = System.nanoTime();
+                long startCpu = threads.getCurrentThreadCpuTime();
+                for (long position = 0; position < fileSize; position += FileTransfers.FILE_CHUNK_SIZE) {
+                    int length = (int) Math.min(FileTransfers.FILE_CHUNK_SIZE, fileSize - position);
+                    writer.writeFileRegion(FrameType.FILE_DATA, 0, prefix, fileChannel, position, length);
+                }
+                long cpu = threads.getCurrentThreadCpuTime() - startCpu;
+                channel.shutdownOutput();
+                drained.get(5, TimeUnit.MINUTES);
+                return new long[] { System.nanoTime() - startTime, cpu };
+            }
+        }
+    }
+
+    // Reads one connection to the end, throwing the bytes away
+    private static void drain(ServerSocketChannel server, CompletableFuture<Long> drained) {
+        try (SocketChannel channel = server.accept()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            long total = 0;
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                total += read;
+                buffer.clear();
+            }
+            drained.complete(total);
+        } catch (IOException e) {
+            drained.completeExceptionally(e);
+        }
+    }
+
+    private static void report(String label, long bytes, long[] nanos) {
+        double seconds = nanos[0] / 1e9;
+        double gigabytes = bytes / (1024.0 * 1024.0 * 1024.0);
+        System.out.printf("%-10s %8.1f MB/s  %6.2f CPU s/GB%n", label, bytes / seconds / (1024 * 1024),
+                nanos[1] / 1e9 / gigabytes);
+    }
+}